@@ -0,0 +1,176 @@
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/*
+ * This class owns the pool of CommunicationThreads and keeps resizing it while the server runs, instead of the one fixed maximum it used to have. Once
+ * per interval a controller thread compares the latency of the requests finished in that interval (the short-term latency) with the latency the server
+ * usually has (a slow moving average of the same, the long-term latency), like the "gradient" limiters do:
+ *
+ *     gradient = clamp(tolerance * long / short, 0.5, 1)
+ *     new limit = limit * gradient + headroom
+ *
+ * While requests are as fast as usual the gradient is 1 and the limit grows by the headroom (the square root of the limit), but only when the pool
+ * is actually busy: connections were refused because every thread was taken, requests wait in a bulkhead queue, or most threads are working. Once
+ * requests get slower than tolerance times the usual latency the gradient drops below 1 and the limit shrinks, by half at the most per interval.
+ * The step is smoothed so that one noisy interval does not throw the limit around, and the limit always stays between the floor and the ceiling.
+ * Latency is measured from the moment a request asks for its bulkhead slot until it gives it back, so time spent queueing counts as well. The
+ * long-term latency rises slowly but falls within a few intervals, so that it tracks how fast the server can be rather than how slow it has been.
+ *
+ * pool.adaptive      - resize the pool at all (default true); without it the pool keeps server.maxThreads
+ * server.maxThreads  - the limit the pool starts with (default 100)
+ * pool.minThreads    - the floor, which is also how many threads are kept even when idle (default 5)
+ * pool.maxThreads    - the ceiling (default four times server.maxThreads)
+ * pool.keepAlive     - how long a thread above the floor may sit idle before it ends, in ms (default 60000)
+ * pool.interval      - how often the limit is reconsidered, in ms (default 1000)
+ * pool.tolerance     - how much slower than usual requests may get before the limit shrinks (default 1.5)
+ * pool.smoothing     - how much of each step is taken at once, between 0 and 1 (default 0.2)
+ */
+class AdaptivePool {
+
+	static AdaptivePool main;
+
+	ThreadPoolExecutor executor;
+	int floor;
+	int ceiling;
+	double tolerance;
+	double smoothing;
+	long interval;
+
+	volatile double limit;				//Kept as a double so that small steps add up; the executor gets it rounded
+	volatile double shortLatency = 0;	//ms, the average of the last interval
+	volatile double longLatency = 0;	//ms, 0 until the first interval with requests
+	private LongAdder latencySum = new LongAdder();
+	private LongAdder latencyCount = new LongAdder();
+	private AtomicLong rejected = new AtomicLong();
+
+	//How many intervals the long-term latency remembers, roughly
+	static final int LONG_WINDOW = 60;
+
+	public AdaptivePool(int initial, int floor, int ceiling, long keepAlive, long interval, double tolerance, double smoothing){
+		this.floor = floor;
+		this.ceiling = Math.max(floor, ceiling);
+		this.limit = Math.min(this.ceiling, Math.max(floor, initial));
+		this.interval = interval;
+		this.tolerance = tolerance;
+		this.smoothing = smoothing;
+		executor = new ThreadPoolExecutor(floor, (int) limit, keepAlive, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
+		ServerMetrics.gauge("pool_limit", new DoubleSupplier(){
+			public double getAsDouble(){
+				return executor.getMaximumPoolSize();
+			}
+		});
+		ServerMetrics.gauge("pool_threads", new DoubleSupplier(){
+			public double getAsDouble(){
+				return executor.getPoolSize();
+			}
+		});
+		ServerMetrics.gauge("pool_active", new DoubleSupplier(){
+			public double getAsDouble(){
+				return executor.getActiveCount();
+			}
+		});
+		ServerMetrics.gauge("pool_latency_short_ms", new DoubleSupplier(){
+			public double getAsDouble(){
+				return shortLatency;
+			}
+		});
+		ServerMetrics.gauge("pool_latency_long_ms", new DoubleSupplier(){
+			public double getAsDouble(){
+				return longLatency;
+			}
+		});
+	}
+
+	/*
+	 * Builds the pool from the configuration and, unless pool.adaptive is off, starts the controller thread.
+	 */
+	public static AdaptivePool fromConfig(){
+		int initial = Math.max(1, ServerConfig.getInt("server.maxThreads", 100));
+		int floor = Math.max(1, ServerConfig.getInt("pool.minThreads", 5));
+		AdaptivePool pool = new AdaptivePool(Math.max(floor, initial), floor,
+				ServerConfig.getInt("pool.maxThreads", 4 * Math.max(floor, initial)),
+				Math.max(1, ServerConfig.getLong("pool.keepAlive", 60000)),
+				Math.max(10, ServerConfig.getLong("pool.interval", 1000)),
+				Math.max(1.0, ServerConfig.getDouble("pool.tolerance", 1.5)),
+				Math.min(1.0, Math.max(0.01, ServerConfig.getDouble("pool.smoothing", 0.2))));
+		if(ServerConfig.getBoolean("pool.adaptive", true)){
+			pool.start();
+		}
+		return pool;
+	}
+
+	private void start(){
+		Thread thread = new Thread(new Runnable(){
+			public void run(){
+				while(true){
+					try{
+						Thread.sleep(interval);
+					}catch(InterruptedException e){
+						return;
+					}
+					adjust();
+				}
+			}
+		}, "pool-controller");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//Called for every request that held a bulkhead slot, with the time from asking for the slot until giving it back
+	public static void record(long nanos){
+		if(main != null){
+			main.latencySum.add(nanos);
+			main.latencyCount.increment();
+		}
+	}
+
+	//Called when a connection had to be refused because every thread was busy
+	public void rejected(){
+		rejected.incrementAndGet();
+	}
+
+	/*
+	 * One step of the controller. Every change of the executor's maximum is counted as pool_adjustments{direction=up} or {direction=down}.
+	 */
+	void adjust(){
+		long count = latencyCount.sumThenReset();
+		long sum = latencySum.sumThenReset();
+		long refused = rejected.getAndSet(0);
+		int active = executor.getActiveCount();
+		double current = limit;
+
+		double next = current;
+		if(count > 0){
+			shortLatency = sum / (double) count / 1000000.0;
+			if(longLatency == 0){
+				longLatency = shortLatency;
+			}else if(shortLatency < longLatency){
+				//The usual latency falls quickly, so that slow first requests (class loading, cold caches) do not hide an overload for minutes
+				longLatency += (shortLatency - longLatency) / 4;
+			}else{
+				longLatency += (shortLatency - longLatency) / LONG_WINDOW;
+			}
+			double gradient = Math.max(0.5, Math.min(1.0, tolerance * longLatency / Math.max(shortLatency, 0.001)));
+			//Growing only makes sense while the threads are in use; an idle pool that is fast says nothing about a larger one
+			boolean busy = refused > 0 || Bulkhead.totalWaiting() > 0 || active >= current * 0.8;
+			double headroom = gradient >= 1.0 && busy ? Math.sqrt(current) : 0;
+			next = current * gradient + headroom;
+		}
+		//With no request finished at all the limit stays: either nothing is happening, or every thread is stuck in a slow request and more of them would
+		//only add to it
+		next = current + (next - current) * smoothing;
+		next = Math.min(ceiling, Math.max(floor, next));
+		limit = next;
+		int rounded = (int) Math.round(next);
+		int old = executor.getMaximumPoolSize();
+		if(rounded != old){
+			//Threads above a lower maximum end once they are idle; a larger maximum takes effect with the next connection
+			executor.setMaximumPoolSize(rounded);
+			ServerMetrics.increment(ServerMetrics.labelled("pool_adjustments", "direction", rounded > old ? "up" : "down"));
+		}
+	}
+}
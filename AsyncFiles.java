@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+
+/*
+ * This class reads large files for the static path without the connection's thread doing the reading. A file of at least asyncio.minBytes is opened as
+ * an AsynchronousFileChannel whose reads run on a small executor of disk threads, and read a chunk at a time, several chunks ahead of what has been sent:
+ * while the connection's thread writes one chunk to the socket, the disk threads are already reading the next ones. A file that is in the page cache
+ * is read ahead faster than any client takes it, so its thread never waits; a cold one costs its thread only the part of the disk latency that the
+ * socket writes did not already cover, and never more than one chunk's worth at a time.
+ *
+ * The reads all connections have outstanding together are bounded, so that a burst of cold files queues up in front of the disk instead of piling
+ * into it; that queue is the disk_queue_depth metric (reads issued and not yet completed), and asyncio_stalls counts the times a connection had to wait
+ * for a chunk that was not read yet, which is how often cold reads actually held a request up.
+ *
+ * asyncio.enabled      - read large files this way at all (default true)
+ * asyncio.minBytes     - smaller files are read by the connection's thread as before (default 4 MB)
+ * asyncio.chunk        - bytes per read (default 256 KB)
+ * asyncio.readahead    - reads a file may have outstanding at once (default 4)
+ * asyncio.threads      - disk threads, for all files together (default 8)
+ * asyncio.maxInFlight  - reads outstanding for all files together (default 64)
+ */
+class AsyncFiles {
+
+	static boolean enabled = true;
+	static long minBytes = 4L * 1024 * 1024;
+	static int chunk = 256 * 1024;
+	static int readahead = 4;
+	static ExecutorService disk;
+	static Semaphore slots;
+	static AtomicInteger depth = new AtomicInteger();
+
+	public static void configure(){
+		enabled = ServerConfig.getBoolean("asyncio.enabled", enabled);
+		minBytes = ServerConfig.getLong("asyncio.minBytes", minBytes);
+		chunk = Math.max(4096, ServerConfig.getInt("asyncio.chunk", chunk));
+		readahead = Math.max(1, ServerConfig.getInt("asyncio.readahead", readahead));
+		if(!enabled){
+			return;
+		}
+		int threads = Math.max(1, ServerConfig.getInt("asyncio.threads", 8));
+		disk = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		((ThreadPoolExecutor) disk).allowCoreThreadTimeOut(true);
+		slots = new Semaphore(Math.max(readahead, ServerConfig.getInt("asyncio.maxInFlight", 64)));
+		ServerMetrics.gauge("disk_queue_depth", new DoubleSupplier(){
+			public double getAsDouble(){
+				return depth.get();
+			}
+		});
+	}
+
+	//True for the files that are read this way
+	public static boolean applies(StaticFile file){
+		return enabled && disk != null && file.size >= minBytes;
+	}
+
+	public static InputStream open(Path p, StaticFile file) throws IOException{
+		AsynchronousFileChannel channel = AsynchronousFileChannel.open(p, Collections.singleton(StandardOpenOption.READ), disk);
+		return new AsyncFileInputStream(channel, file.size);
+	}
+}
+
+/*
+ * The chunks of one file, read ahead on the disk threads and handed out in order. Only the bytes up to the size the file had when it was loaded are
+ * read, like everywhere else on the static path.
+ */
+class AsyncFileInputStream extends InputStream {
+	private AsynchronousFileChannel channel;
+	private long size;
+	private long issued = 0;		//Position of the next read to issue
+	private ArrayDeque<ChunkRead> pending = new ArrayDeque<ChunkRead>();
+	private ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private ByteBuffer current;		//The chunk being handed out, null before the first
+	private boolean closed = false;
+
+	/*
+	 * One read in flight. A read that comes back short (which a file channel may do) is continued from where it stopped, so the chunk is complete
+	 * when its future completes, or as complete as the file is.
+	 */
+	static class ChunkRead implements CompletionHandler<Integer, Void> {
+		AsynchronousFileChannel channel;
+		ByteBuffer buffer;
+		long position;
+		CompletableFuture<ByteBuffer> done = new CompletableFuture<ByteBuffer>();
+
+		void start(){
+			AsyncFiles.depth.incrementAndGet();
+			ServerMetrics.increment("asyncio_reads");
+			channel.read(buffer, position + buffer.position(), null, this);
+		}
+
+		public void completed(Integer n, Void nothing){
+			if(n > 0 && buffer.hasRemaining()){
+				try{
+					channel.read(buffer, position + buffer.position(), null, this);
+					return;
+				}catch(RuntimeException e){
+					failed(e, null);
+					return;
+				}
+			}
+			AsyncFiles.depth.decrementAndGet();
+			AsyncFiles.slots.release();
+			buffer.flip();
+			done.complete(buffer);
+		}
+
+		public void failed(Throwable e, Void nothing){
+			AsyncFiles.depth.decrementAndGet();
+			AsyncFiles.slots.release();
+			done.completeExceptionally(e);
+		}
+	}
+
+	public AsyncFileInputStream(AsynchronousFileChannel channel, long size){
+		this.channel = channel;
+		this.size = size;
+	}
+
+	/*
+	 * Issues reads until the file's readahead is used up. With reads of this file still outstanding it takes only the slots that are free right now;
+	 * with none it waits for one, since otherwise nothing would ever be read.
+	 */
+	private void readAhead() throws IOException{
+		while(issued < size && pending.size() < AsyncFiles.readahead){
+			if(!AsyncFiles.slots.tryAcquire()){
+				if(!pending.isEmpty()){
+					return;
+				}
+				try{
+					AsyncFiles.slots.acquire();
+				}catch(InterruptedException e){
+					throw new IOException("Interrupted waiting to read the file");
+				}
+			}
+			ChunkRead read = new ChunkRead();
+			read.channel = channel;
+			ByteBuffer buffer = free.poll();
+			read.buffer = buffer != null ? buffer : ByteBuffer.allocate(AsyncFiles.chunk);
+			read.buffer.clear();
+			read.buffer.limit((int) Math.min(AsyncFiles.chunk, size - issued));
+			read.position = issued;
+			issued += read.buffer.limit();
+			pending.add(read);
+			try{
+				read.start();
+			}catch(RuntimeException e){
+				read.failed(e, null);
+			}
+		}
+	}
+
+	//Makes sure there is a chunk with bytes left to hand out; false at the end of the file
+	private boolean next() throws IOException{
+		if(current != null && current.hasRemaining()){
+			return true;
+		}
+		if(current != null){
+			free.add(current);
+			current = null;
+		}
+		readAhead();
+		ChunkRead read = pending.poll();
+		if(read == null){
+			return false;
+		}
+		if(!read.done.isDone()){
+			ServerMetrics.increment("asyncio_stalls");
+		}
+		try{
+			current = read.done.get();
+		}catch(InterruptedException e){
+			throw new IOException("Interrupted waiting for the file to be read");
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		}
+		//Taking this chunk made room for one more read of the file, which goes out before the chunk is written
+		readAhead();
+		if(!current.hasRemaining()){
+			//The file ended early; the caller notices the missing bytes
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException{
+		if(!next()){
+			return -1;
+		}
+		return current.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException{
+		if(len == 0){
+			return 0;
+		}
+		if(!next()){
+			return -1;
+		}
+		int n = Math.min(len, current.remaining());
+		current.get(b, off, n);
+		return n;
+	}
+
+	/*
+	 * Closes the channel. Reads still outstanding end with an AsynchronousCloseException, which gives their slots back.
+	 */
+	@Override
+	public void close() throws IOException{
+		if(!closed){
+			closed = true;
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,12 @@
+import java.io.IOException;
+
+/*
+ * Thrown while a chunked body is read when a chunk size line is not a hexadecimal number or is negative, so that the request can be refused with 400.
+ */
+class BadChunkException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public BadChunkException(String sizeLine){
+		super("Bad chunk size "+sizeLine);
+	}
+}
@@ -0,0 +1,12 @@
+import java.io.IOException;
+
+/*
+ * Thrown while a request body is read when it turns out to be longer than the server accepts, so that the request can be refused with 413.
+ */
+class BodyTooLargeException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public BodyTooLargeException(){
+		super("Request body too large");
+	}
+}
@@ -0,0 +1,124 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+
+/*
+ * This class keeps the different kinds of requests from taking each other down. Every request is put into one of three classes as soon as its request line
+ * has been read (and, for a GET, once it is known whether it carries If-Modified-Since):
+ *
+ *  - static       GETs of plain files, which may have to read a large file from the disk
+ *  - conditional  HEADs and GETs with If-Modified-Since, which usually end in a cheap 304 or a header block
+ *  - cgi          POSTs, which start a script that can run for a long time
+ *
+ * Each class has its own number of requests that may be worked on at once, its own queue of requests that wait for one of those slots and its own
+ * limit on how long they wait. A request that finds the queue full, or that waits too long, is refused with a 503 while the other classes carry on, so a
+ * burst of slow scripts can no longer use up every thread that static files need. The limits are set with
+ *
+ *     bulkhead.<class>.limit         requests of the class worked on at once
+ *     bulkhead.<class>.queue         requests of the class that may wait for a slot (0 refuses at once when all slots are taken)
+ *     bulkhead.<class>.queueTimeout  how long a request waits for a slot before it is refused, in ms
+ */
+class Bulkhead {
+
+	static Bulkhead staticFiles;
+	static Bulkhead conditional;
+	static Bulkhead cgi;
+
+	String name;
+	int limit;
+	int queue;
+	long queueTimeout;
+	private Semaphore slots;
+	private AtomicInteger waiting = new AtomicInteger();
+
+	public Bulkhead(String name, int limit, int queue, long queueTimeout){
+		this.name = name;
+		this.limit = limit;
+		this.queue = queue;
+		this.queueTimeout = queueTimeout;
+		this.slots = new Semaphore(limit, true);
+		ServerMetrics.gauge(ServerMetrics.labelled("bulkhead_active", "class", name), new DoubleSupplier(){
+			public double getAsDouble(){
+				return Bulkhead.this.limit - slots.availablePermits();
+			}
+		});
+		ServerMetrics.gauge(ServerMetrics.labelled("bulkhead_waiting", "class", name), new DoubleSupplier(){
+			public double getAsDouble(){
+				return waiting.get();
+			}
+		});
+		ServerMetrics.gauge(ServerMetrics.labelled("bulkhead_limit", "class", name), new DoubleSupplier(){
+			public double getAsDouble(){
+				return Bulkhead.this.limit;
+			}
+		});
+	}
+
+	/*
+	 * Creates the three bulkheads from the configuration. Together their limits should stay below the size of the connection thread pool, so that every class
+	 * can always get a thread to be refused on.
+	 */
+	public static void configure(){
+		staticFiles = fromConfig("static", 32, 32, 2000);
+		conditional = fromConfig("conditional", 16, 16, 1000);
+		cgi = fromConfig("cgi", 8, 8, 5000);
+	}
+
+	private static Bulkhead fromConfig(String name, int limit, int queue, long queueTimeout){
+		return new Bulkhead(name,
+				Math.max(1, ServerConfig.getInt("bulkhead."+name+".limit", limit)),
+				Math.max(0, ServerConfig.getInt("bulkhead."+name+".queue", queue)),
+				Math.max(0, ServerConfig.getLong("bulkhead."+name+".queueTimeout", queueTimeout)));
+	}
+
+	/*
+	 * Picks the bulkhead for a request. The method and If-Modified-Since are all that is needed, so this can be done before the file is even looked at.
+	 */
+	public static Bulkhead classify(String command, boolean conditionalGet){
+		if(command.equals("POST")){
+			return cgi;
+		}
+		if(command.equals("HEAD") || conditionalGet){
+			return conditional;
+		}
+		return staticFiles;
+	}
+
+	/*
+	 * Takes a slot, waiting in the queue for one if necessary. Returns false if the request has to be refused, either because the queue is full or because
+	 * no slot came free within the queue timeout. Every true must be matched by exactly one leave().
+	 */
+	public boolean enter(){
+		if(slots.tryAcquire()){
+			ServerMetrics.increment(ServerMetrics.labelled("bulkhead_admitted", "class", name));
+			return true;
+		}
+		if(waiting.incrementAndGet() > queue){
+			waiting.decrementAndGet();
+			ServerMetrics.increment(ServerMetrics.labelled("bulkhead_rejected_queue_full", "class", name));
+			return false;
+		}
+		try{
+			if(slots.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS)){
+				ServerMetrics.increment(ServerMetrics.labelled("bulkhead_admitted", "class", name));
+				return true;
+			}
+			ServerMetrics.increment(ServerMetrics.labelled("bulkhead_rejected_timeout", "class", name));
+			return false;
+		}catch(InterruptedException e){
+			return false;
+		}finally{
+			waiting.decrementAndGet();
+		}
+	}
+
+	public void leave(){
+		slots.release();
+	}
+
+	//Requests of every class that are waiting for a slot right now
+	public static int totalWaiting(){
+		return staticFiles.waiting.get() + conditional.waiting.get() + cgi.waiting.get();
+	}
+}
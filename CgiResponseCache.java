@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/*
+ * This class is an opt-in cache for the output of CGI scripts that are pure functions of their input. A script is only cached when it has a TTL configured:
+ *
+ *     cgi.cache.ttl./calc.cgi=30000
+ *
+ * The key is a SHA-256 digest of the script path, the script's modification time, the environment handed to it and the decoded POST body, so the index never
+ * keeps a copy of a (possibly large) body, and replacing the script on disk makes its old entries unreachable. The outputs themselves are stored once per
+ * distinct content, so many inputs that produce the same output share one byte array. The total size of the stored outputs is bounded by cgi.cache.maxBytes,
+ * and the least recently used entries are evicted first.
+ */
+class CgiResponseCache {
+
+	//Created at startup; stays null when no script has a TTL, so that the CGI path pays nothing for it
+	static CgiResponseCache instance;
+
+	HashMap<String, Long> ttls = new HashMap<String, Long>();
+	long maxBytes;
+	long maxEntryBytes;
+
+	//Key digest -> entry, in access order so that the eldest entry is the least recently used one
+	private LinkedHashMap<String, CgiCacheEntry> index = new LinkedHashMap<String, CgiCacheEntry>(64, 0.75f, true);
+	//Output digest -> output, shared by every entry with the same output
+	private HashMap<String, CgiStoredOutput> outputs = new HashMap<String, CgiStoredOutput>();
+	private long storedBytes = 0;
+
+	private HashMap<String, LongAdder[]> scriptStats = new HashMap<String, LongAdder[]>();
+
+	//Runs of the same script with the same input that are in progress right now
+	private SingleFlight<String, byte[]> runs = new SingleFlight<String, byte[]>("cgi");
+	long waitTimeout;
+
+	public static CgiResponseCache fromConfig(){
+		CgiResponseCache cache = new CgiResponseCache();
+		cache.maxBytes = ServerConfig.getLong("cgi.cache.maxBytes", 32L * 1024 * 1024);
+		cache.maxEntryBytes = ServerConfig.getLong("cgi.cache.maxEntryBytes", 1024 * 1024);
+		cache.waitTimeout = ServerConfig.getLong("cgi.cache.waitTimeout", 10000);
+		for(String key : ServerConfig.keysWithPrefix("cgi.cache.ttl.")){
+			String script = key.substring("cgi.cache.ttl.".length());
+			long ttl = ServerConfig.getLong(key, 0);
+			if(ttl > 0){
+				cache.ttls.put(script, ttl);
+				cache.stats(script);
+			}
+		}
+		if(cache.ttls.isEmpty()){
+			return null;
+		}
+		ServerMetrics.gauge("cgi_cache_bytes", new DoubleSupplier(){
+			public double getAsDouble(){
+				return cache.storedBytes();
+			}
+		});
+		return cache;
+	}
+
+	//The TTL in milliseconds for the script at this path (without the query), or 0 if its output is not cached
+	public long ttlFor(String scriptName){
+		Long ttl = ttls.get(scriptName);
+		return ttl == null ? 0 : ttl;
+	}
+
+	/*
+	 * Digest of everything the script's output may depend on. Each part is length-prefixed so that two different inputs can not run together into the same bytes.
+	 */
+	public String keyFor(String scriptPath, long mtime, String[] envp, byte[] body){
+		MessageDigest md = sha256();
+		update(md, scriptPath.getBytes(StandardCharsets.UTF_8));
+		update(md, Long.toString(mtime).getBytes(StandardCharsets.UTF_8));
+		for(String env : envp){
+			update(md, env.getBytes(StandardCharsets.UTF_8));
+		}
+		update(md, body);
+		return hex(md.digest());
+	}
+
+	/*
+	 * Returns the cached output for this key, or null on a miss or when the entry has expired. Hits and misses are counted per script.
+	 */
+	public synchronized byte[] get(String key, String scriptName){
+		LongAdder[] s = stats(scriptName);
+		CgiCacheEntry entry = index.get(key);
+		if(entry != null && entry.expiresAt <= System.currentTimeMillis()){
+			remove(key, entry);
+			entry = null;
+		}
+		if(entry == null){
+			s[1].increment();
+			return null;
+		}
+		s[0].increment();
+		return entry.output.data;
+	}
+
+	/*
+	 * Stores the output of one run. Outputs larger than cgi.cache.maxEntryBytes are not kept, since they would push out many smaller entries.
+	 */
+	public synchronized void put(String key, String scriptName, byte[] output, long ttl){
+		if(output.length > maxEntryBytes){
+			return;
+		}
+		CgiCacheEntry old = index.get(key);
+		if(old != null){
+			remove(key, old);
+		}
+		String outputKey = hex(sha256().digest(output));
+		CgiStoredOutput stored = outputs.get(outputKey);
+		if(stored == null){
+			stored = new CgiStoredOutput(outputKey, output);
+			outputs.put(outputKey, stored);
+			storedBytes += output.length;
+		}
+		stored.refs++;
+		index.put(key, new CgiCacheEntry(stored, System.currentTimeMillis() + ttl));
+
+		//Least recently used entries go first until the outputs fit again
+		Iterator<Map.Entry<String, CgiCacheEntry>> it = index.entrySet().iterator();
+		while(storedBytes > maxBytes && it.hasNext()){
+			Map.Entry<String, CgiCacheEntry> eldest = it.next();
+			it.remove();
+			release(eldest.getValue().output);
+			ServerMetrics.increment("cgi_cache_evictions");
+		}
+	}
+
+	/*
+	 * Runs the script for a key that missed the cache and stores the output. If the same key is already being run by another request, this waits (up to
+	 * cgi.cache.waitTimeout) for that run's output instead, and runs the script itself only if the wait times out.
+	 */
+	public byte[] runOnce(final String key, final String scriptName, final long ttl, final Callable<byte[]> run) throws IOException{
+		try{
+			return runs.execute(key, new Callable<byte[]>(){
+				public byte[] call() throws Exception{
+					byte[] output = run.call();
+					put(key, scriptName, output, ttl);
+					return output;
+				}
+			}, waitTimeout);
+		}catch(TimeoutException e){
+			try{
+				return run.call();
+			}catch(IOException e1){
+				throw e1;
+			}catch(Exception e1){
+				throw new IOException(e1);
+			}
+		}catch(IOException e){
+			throw e;
+		}catch(Exception e){
+			throw new IOException(e);
+		}
+	}
+
+	public synchronized long storedBytes(){
+		return storedBytes;
+	}
+
+	private void remove(String key, CgiCacheEntry entry){
+		index.remove(key);
+		release(entry.output);
+	}
+
+	private void release(CgiStoredOutput stored){
+		stored.refs--;
+		if(stored.refs == 0){
+			outputs.remove(stored.digest);
+			storedBytes -= stored.data.length;
+		}
+	}
+
+	/*
+	 * Hit and miss counters of a script, which are also registered as metrics the first time the script is seen, together with its hit ratio.
+	 */
+	private synchronized LongAdder[] stats(String scriptName){
+		LongAdder[] s = scriptStats.get(scriptName);
+		if(s == null){
+			final LongAdder[] created = new LongAdder[]{new LongAdder(), new LongAdder()};
+			s = created;
+			scriptStats.put(scriptName, s);
+			ServerMetrics.gauge(ServerMetrics.labelled("cgi_cache_hits", "script", scriptName), new DoubleSupplier(){
+				public double getAsDouble(){
+					return created[0].sum();
+				}
+			});
+			ServerMetrics.gauge(ServerMetrics.labelled("cgi_cache_misses", "script", scriptName), new DoubleSupplier(){
+				public double getAsDouble(){
+					return created[1].sum();
+				}
+			});
+			ServerMetrics.gauge(ServerMetrics.labelled("cgi_cache_hit_ratio", "script", scriptName), new DoubleSupplier(){
+				public double getAsDouble(){
+					long hits = created[0].sum();
+					long total = hits + created[1].sum();
+					return total == 0 ? 0 : Math.round(hits * 1000.0 / total) / 1000.0;
+				}
+			});
+		}
+		return s;
+	}
+
+	private static void update(MessageDigest md, byte[] part){
+		int n = part.length;
+		md.update(new byte[]{(byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n});
+		md.update(part);
+	}
+
+	private static MessageDigest sha256(){
+		try{
+			return MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e){
+			//Every Java runtime is required to have SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] digest){
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for(byte b : digest){
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
+
+//One cached response: the shared output and the time it stops being valid
+class CgiCacheEntry {
+	CgiStoredOutput output;
+	long expiresAt;
+
+	public CgiCacheEntry(CgiStoredOutput output, long expiresAt){
+		this.output = output;
+		this.expiresAt = expiresAt;
+	}
+}
+
+//The bytes of one distinct CGI output and the number of cache entries pointing at them
+class CgiStoredOutput {
+	String digest;
+	byte[] data;
+	int refs = 0;
+
+	public CgiStoredOutput(String digest, byte[] data){
+		this.digest = digest;
+		this.data = data;
+	}
+}
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Body stream that removes chunked framing as it reads, ending after the last chunk and its trailers.
+ */
+class ChunkedInputStream extends InputStream {
+	RequestReader in;
+	long chunkRemaining = 0;
+	boolean done = false;
+
+	public ChunkedInputStream(RequestReader in){
+		this.in = in;
+	}
+
+	public int read() throws IOException{
+		byte[] one = new byte[1];
+		return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException{
+		if(done){
+			return -1;
+		}
+		if(chunkRemaining == 0){
+			String sizeLine = in.readLine();
+			if(sizeLine == null){
+				throw new IOException("Chunked body ended early");
+			}
+			int semi = sizeLine.indexOf(';');
+			long size;
+			try{
+				size = Long.parseLong((semi < 0 ? sizeLine : sizeLine.substring(0, semi)).trim(), 16);
+			}catch(NumberFormatException e){
+				throw new BadChunkException(sizeLine);
+			}
+			if(size < 0){
+				throw new BadChunkException(sizeLine);
+			}
+			chunkRemaining = size;
+			if(chunkRemaining == 0){
+				String trailer;
+				while((trailer = in.readLine()) != null && !trailer.equals("")){}
+				done = true;
+				return -1;
+			}
+		}
+		int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+		if(n < 0){
+			throw new IOException("Chunked body ended early");
+		}
+		chunkRemaining -= n;
+		if(chunkRemaining == 0){
+			in.readLine();	//CRLF after the chunk data
+		}
+		return n;
+	}
+
+	public void close(){
+		//The connection stays open for the response
+	}
+}
@@ -0,0 +1,807 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+/*
+ * This class represents the runnable thread class for all of the client communications to be handled in when a client is connected to the server. 
+ * In this class, the client requests are read, and responses are sent back to the client with the correct HTTP status code, headers an content.
+ * HTTP/1.1 connections are persistent by default, so for those clients the thread keeps reading requests off the same connection until the client asks for it
+ * to be closed, an error closes it, or it sits idle past the timeout. HTTP/1.0 clients still get exactly one response per connection, in the same format as always.
+ */
+class CommunicationThread implements Runnable{
+	Socket connectionSocket;
+	
+	DataOutputStream outToClient;
+	RequestReader clientMessage;
+	String SERVER_PORT;
+	String SERVER_NAME;
+	
+	static final int MAX_KEEPALIVE_REQUESTS = 100;	//Requests served on one persistent connection before it is closed anyway
+	boolean http11 = false;		//True while the current request is HTTP/1.1, which decides the format of every response to it
+	boolean persistent = false;	//True if the connection stays open for another request after the current response
+	int requestCount = 0;		//Number of requests started on this connection
+	
+	static int maxLineLength = 8192;	//Longest request line or header line accepted (414/431 beyond it)
+	static int maxHeaderBytes = 65536;	//Most header bytes accepted for one request (431 beyond it)
+	static long maxBodyBytes = 16L * 1024 * 1024;	//Longest request body accepted (413 beyond it)
+	static long readTimeout = 3000;		//Longest any read from the client may wait before the request gets a 408, in ms
+	static long keepAliveTimeout = 3000;	//How long a persistent connection may wait for its next request before it is closed, in ms
+	static long closeDelay = 500;		//How long a connection that is done stays open before it is closed, so that the client has the whole response
+	ConnectionWatch watch;				//Deadlines and byte rates of this connection, enforced by the SlowClientGuard
+	Bulkhead bulkhead;					//The bulkhead whose slot the current request holds, null if none
+	long bulkheadSince;					//When the current request asked for that slot (System.nanoTime), for the latency the AdaptivePool follows
+	RequestSample sample;				//The allocation and CPU readings of the current request, null unless it is one of the measured ones
+	boolean detached = false;			//Serves one pipelined request from memory into memory, and must never close the connection itself
+	//Creates a new thread passing the client connectionsocket, so everything that is done in this thread will be pertinent to this client connection
+	public CommunicationThread(Socket connectionSocket, DataOutputStream outToClient, RequestReader clientMessage, ConnectionWatch watch, String ServerName, String ServerPort){
+		
+		this.connectionSocket = connectionSocket;
+		this.watch = watch;
+		this.clientMessage = clientMessage;
+		this.outToClient = outToClient;
+		this.SERVER_PORT = ServerPort;
+		this.SERVER_NAME = ServerName;
+	}
+	
+	
+	/*
+	 * Run method for the thread, which handles requests one after the other for as long as the connection is persistent. 
+	 */
+	@Override
+	public void run() {
+		SlowClientGuard.register(watch);
+		try{
+			boolean more = true;
+			while(more){
+				sample = RequestAccounting.start(true);
+				watch.out.sniffer = sample != null ? sample.sniffer : null;
+				try{
+					more = handleRequest();
+				}finally{
+					leaveBulkhead();
+					watch.out.sniffer = null;
+					RequestAccounting.finish(sample, 0, null);
+					clientMessage.endRequest();
+				}
+				//Requests the client has already sent behind this one are served side by side, and answered in order
+				if(more && Pipeline.workers != null){
+					try{
+						if(clientMessage.ready()){
+							more = Pipeline.serve(this);
+						}
+					}catch(IOException e){
+						//The next read finds out what is wrong with the connection
+					}
+				}
+				//The connection stays open, so go back for the next request
+			}
+		}catch(RuntimeException e){
+			//A bug in serving the request must not leave the client's socket open with nobody reading it
+			System.err.println("Error serving a request: "+e);
+			closeConnections();
+		}finally{
+			SlowClientGuard.unregister(watch);
+		}
+	}
+	
+	/*
+	 * Handles a single request, which actually takes in the client input, parses the input based on the spaces, and then attempts to get what the client is asking for or returns the 
+	 * appropriate http response. A connection timeout is also set for the client socket, so that that particular connection is closed if the client does not enter anything for three seconds,
+	 * and this in particular returns the 408 request timeout response. Returns true if the connection was left open for another request. 
+	 */
+	private boolean handleRequest() {
+		String postString = "";
+		
+		String clientInput;
+		String command = null;
+		String path = null;
+		boolean clheader = false;
+		boolean ctheader = false;
+        
+        int postContentLength = 0;
+		int loopCount = 1;	//Keeps track of the request line
+		boolean LM = false;	//The request carries If-Modified-Since
+		
+		boolean skipline = false;
+		
+		boolean hostheader = false;		//HTTP/1.1 requests must carry a Host header
+		boolean chunkedBody = false;	//The POST body is sent with Transfer-Encoding: chunked
+		boolean expectContinue = false;	//The client waits for 100 Continue before sending the body
+		boolean upgradeH2c = false;		//The client asks to switch this connection to HTTP/2
+		String http2Settings = null;	//The client's HTTP/2 settings that come with such an upgrade
+		ArrayList<String> headerLines = new ArrayList<String>();	//Every header line, for the Origin or the HTTP/2 stream an upgraded request becomes
+		
+		int headerBytes = 0;
+		
+		http11 = false;
+		persistent = false;
+		requestCount++;
+		//The whole request line and headers have to arrive before the header deadline, however slowly they trickle in
+		watch.startHeaders();
+		clientMessage.maxLineLength = maxLineLength;
+		
+		//The following portion of the code is responsible creating the different datastreams connecting the server socket to the client socket in orde to be able to pass messages from one 
+		//to the other
+		try {
+			
+			//This sets the read timeout (ie - if there is no input in 3000 milliseconds, then the read throws the socketTimeoutexception, writing the bad reques http response
+			//to the output and closing the associated sockets/streams). The deadline is kept by the TimerWheel instead of a socket timeout, and between two
+			//requests on a persistent connection the keep-alive timeout applies instead.
+			clientMessage.readTimeout = requestCount > 1 ? keepAliveTimeout : readTimeout;
+			/* This while loop continually read input from the client until a blank line is encountered at which the loop is exited or if there is a bad request or command not implemented which would also lead to a response to the client and the connections closing. 			
+			 */
+			while(true){
+			
+				//Gonna parse some lines
+				clientInput = clientMessage.readLine();
+				//The client closed the connection, which is how a persistent connection normally ends
+				if(clientInput == null){
+					closeConnections();
+					return false;
+				}
+				//Empty lines in front of a request line are ignored
+				if(loopCount == 1 && clientInput.equals("")){
+					continue;
+				}
+				//The request has started, so the rest of it gets the ordinary read timeout
+				clientMessage.readTimeout = readTimeout;
+				headerBytes += clientInput.length() + 2;
+				if(headerBytes > maxHeaderBytes){
+					ServerMetrics.increment(ServerMetrics.labelled("limit_rejections", "limit", "headers"));
+					sendError("431 Request Header Fields Too Large");
+					return false;
+				}
+				StringTokenizer tokens = null;
+				if(!clientInput.equals("")){
+					tokens = new StringTokenizer(clientInput);	
+				}
+				//A client with prior knowledge starts the connection with the HTTP/2 preface, whose first line looks like a request line
+				if(loopCount == 1 && clientInput.equals(Http2Connection.PREFACE_LINE) && Http2Connection.enabled){
+					return serveHttp2(null, null);
+				}
+				//First iteration checks for the standard stuff: <command> <path> HTTP/x.y
+				if(loopCount == 1 && !clientInput.equals("")){
+					
+					//checks for proper number of tokens for first line
+					if(tokens.countTokens() != 3){
+						//Bad request
+						sendError("400 Bad Request");
+						return false;
+						
+					}else{
+						
+						ServerMetrics.increment("requests_total");
+						String x = tokens.nextToken();
+						command = x;
+						if(sample != null){
+							sample.method = command;
+						}
+						//If the command isn't one of the designated 6 that are allowed, then it automatically becomes a bad request regardless of any other errors that may be present because this 400 level error is greater than the other ones.
+						if(!(x.equals("DELETE") || x.equals("PUT") || x.equals("LINK") || x.equals("UNLINK") || x.equals("POST") || x.equals("GET") || x.equals("HEAD"))){
+							sendError("400 Bad Request");
+							return false;						
+						}
+						//Gets the path and makes sure it's valid
+						//This checks the format of the next token (the link) in order to ensure that it is properly formatted. If not, it also results in a bad request and closes all connections. 
+						x = tokens.nextToken();
+						if(!x.startsWith("/")){
+							
+							sendError("400 Bad Request");
+							return false;
+							
+						}else{
+							path = x;
+							
+						}						
+						
+						
+						x = tokens.nextToken();
+						//This checks that the final part of the command with the HTTP version is properly formatted, first checking the "/" and then making sure it is an HTTP request. If either of these are not fulfilled, then it is a 400 bad request.
+						if(!x.contains("/")){
+							
+							sendError("400 Bad Request");
+							return false;
+							
+						}else{
+							
+							String[] req = x.split("/");
+							if(!req[0].equals("HTTP")){
+								
+								sendError("400 Bad Request");
+								return false;
+							}
+							
+							try{
+								/*
+								 * This portion parses the float after HTTP/ in order to check the version and ensure that it is actually a float. If it is not a float, then this is an error as that would be a bad request and is caught with the NumberFormatException. 
+								 */
+								float y = Float.parseFloat(req[1]);
+								
+								if(y > 1.1f){
+									//Otherwise, if the number is a float but is greater than 1.1 then it is a version that is not supported by this particular web server. 
+									sendError("505 HTTP Version Not Supported");
+									return false;
+								}
+								//From here on every response uses the HTTP/1.1 format, and the connection stays open unless the client says otherwise
+								if(y > 1.0f){
+									http11 = true;
+									persistent = requestCount < MAX_KEEPALIVE_REQUESTS;
+								}
+								
+							}catch(NumberFormatException e){
+								sendError("400 Bad Request");
+								return false;
+							}
+							
+							//Paths that are configured as proxy routes are forwarded upstream as they are, whatever the method, instead of being looked up locally.
+							if(ReverseProxy.instance != null){
+								ProxyRoute route = ReverseProxy.instance.match(path);
+								if(route != null){
+									return serveHandler(null, route, command, path);
+								}
+							}
+							
+							//Paths that belong to an in-process handler are handed to it with any method, the handler decides what it supports
+							if(RouteTrie.routes != null){
+								int q = path.indexOf('?');
+								HttpHandler handler = RouteTrie.routes.match(q < 0 ? path : path.substring(0, q));
+								if(handler != null){
+									return serveHandler(handler, null, command, path);
+								}
+							}
+								
+							//Assures that the request command is implemented, so essentially if the command is DELETE or UNLINK or LINK or PUT, then that would result in a 501 Not Implemented. 
+							if(!command.equals("POST") && !command.equals("HEAD") && !command.equals("GET")){
+								sendError("501 Not Implemented");
+								return false;
+							}
+							if(command.equals("POST") && path.contains(".cgi") ==false){
+								sendError("405 Method Not Allowed");
+								return false;
+							}
+						}							
+					}
+					
+					loopCount++;  //Allows the code below to be executed on next iteration (so reads further lines)
+					
+					}else{
+						//This portion is reached with all lines following the first.
+						//Checks if the request is done
+						
+						if(clientInput.equals("") && !command.equals("POST")){
+							break;
+						}else if("".equals(clientInput)){
+							
+						}
+						/*else if(clientInput.equals("") && skipline == false && command.equals("POST")){
+							System.out.println("INP "+clientInput);
+							skipline = true;
+							continue;
+						}*/
+						
+						//Makes sure that there aren't more than 2 lines of actual text in the request if the command is POST. 
+						if(loopCount > 2 && command.equals("POST") == false){
+							
+							sendError("400 Bad Request");
+							return false;
+						}
+						
+
+						//Handles If-Modified-Since
+						
+						String x = null;
+						if(!clientInput.equals("")){
+						x = tokens.nextToken();
+						}
+						
+						//Headers that only matter to HTTP/1.1: Host is required, and the others decide how the body is read and whether the connection stays open
+						if(http11 && x != null){
+							if("Host:".equalsIgnoreCase(x)){
+								hostheader = true;
+							}else if("Connection:".equalsIgnoreCase(x)){
+								while(tokens.hasMoreTokens()){
+									if(tokens.nextToken().toLowerCase().startsWith("close")){
+										persistent = false;
+									}
+								}
+							}else if("Transfer-Encoding:".equalsIgnoreCase(x)){
+								while(tokens.hasMoreTokens()){
+									if(tokens.nextToken().toLowerCase().startsWith("chunked")){
+										chunkedBody = true;
+									}
+								}
+							}else if("Expect:".equalsIgnoreCase(x)){
+								if(tokens.hasMoreTokens() && "100-continue".equalsIgnoreCase(tokens.nextToken())){
+									expectContinue = true;
+								}
+							}else if("Upgrade:".equalsIgnoreCase(x)){
+								while(tokens.hasMoreTokens()){
+									if(tokens.nextToken().toLowerCase().startsWith("h2c")){
+										upgradeH2c = true;
+									}
+								}
+							}else if("HTTP2-Settings:".equalsIgnoreCase(x)){
+								http2Settings = tokens.hasMoreTokens() ? tokens.nextToken() : "";
+							}
+						}
+						if(x != null){
+							headerLines.add(clientInput);
+						}
+						
+						//The date itself is read by the Origin; that there is one is enough to pick the bulkhead
+						if("If-Modified-Since:".equalsIgnoreCase(x)){
+							LM = true;
+						}
+					
+						if(command.equals("POST")){
+						
+							//The body of an HTTP/1.1 request is read after the headers, by its declared length
+							if(clientInput.equals("") && http11){
+								break;
+							}
+							
+							if(clientInput.equals("")){
+								
+								if(clientMessage.ready()){
+									//The body is not a header line, so the header line limit does not apply to it
+									clientMessage.maxLineLength = Integer.MAX_VALUE;
+									clientInput = clientMessage.readLine();
+								}else{
+									break;
+								}
+								
+								if(clientInput.equals("")){
+									break;
+								}
+								
+								//if(clientInput != null){
+									postString = clientInput;
+									
+									break;
+								//}else{
+								//	break;
+								//}
+							}
+							
+							if("Content-Type:".equals(x)){
+								
+								x = tokens.nextToken();
+								
+								if(("application/x-www-form-urlencoded".equals(x)) == false){
+									sendError("500 Internal Server Error");
+									return false;
+								}
+								ctheader = true;
+								
+							}
+							if("Content-Length:".equals(x)){
+								//do something with length.
+		                       
+								//checks for the proper number of tokens in this header line
+		                        if(tokens.countTokens() != 1){
+		                        	
+		                            sendError("411 Length Required");
+		                            return false;
+		                        }
+							
+							//sets x to the numeric length of the content as a string
+								x = tokens.nextToken();
+								
+								//checks that the content length is a valid numeric value
+								long declaredLength;
+								try{
+									declaredLength = Long.parseLong(x);
+								}catch(NumberFormatException badNum){
+									sendError("411 Length Required");
+									return false;
+								}
+								//A negative length can not be a body at all, and a body longer than the limit is not read into memory
+								if(declaredLength < 0){
+									sendError("400 Bad Request");
+									return false;
+								}
+								if(declaredLength > maxBodyBytes){
+									ServerMetrics.increment(ServerMetrics.labelled("limit_rejections", "limit", "body"));
+									sendError("413 Payload Too Large");
+									return false;
+								}
+								postContentLength = (int) declaredLength;
+								
+								
+								
+								clheader = true;
+							}
+							
+							
+						loopCount++;
+					
+						/*if(skipline =true){
+							System.out.println("BREAKING");
+							break;
+						}*/
+					}																					
+				}
+			}
+			
+			
+		//Goes to this block if the request line or a header line is longer than the limit
+		}catch(LineTooLongException e){
+			
+			ServerMetrics.increment(ServerMetrics.labelled("limit_rejections", "limit", loopCount == 1 ? "request_line" : "header_line"));
+			sendError(loopCount == 1 ? "414 URI Too Long" : "431 Request Header Fields Too Large");
+			return false;
+			
+		//Goes to this block if a timeout occurs and the client does not input anything within 3 seconds.
+		}catch(SocketTimeoutException e){
+			
+			//A persistent connection that stays quiet between two requests is simply closed
+			if(requestCount > 1 && loopCount == 1){
+				closeConnections();
+				return false;
+			}
+			//System.err.println("408 Bad Request");
+			sendError("408 Request Timeout");
+			return false;
+			
+		}catch(Exception e){ //will specify exceptions later
+			//Exception!
+		}
+		
+		watch.endHeaders();
+		
+		//Nothing usable was read, so there is nothing to respond to
+		if(command == null){
+			closeConnections();
+			return false;
+		}
+		
+		if(http11 && hostheader == false){
+			sendError("400 Bad Request");
+			return false;
+		}
+		
+		//A request without a body may switch the connection to HTTP/2; it is then answered as stream 1 of the new connection. With a body the upgrade is
+		//simply ignored, which the client has to accept.
+		if(http11 && upgradeH2c && http2Settings != null && Http2Connection.enabled && !command.equals("POST")){
+			try{
+				outToClient.writeBytes("HTTP/1.1 101 Switching Protocols"+"\r\n"+"Connection: Upgrade"+"\r\n"+"Upgrade: h2c"+"\r\n"+"\r\n");
+				outToClient.flush();
+			}catch(IOException e){
+				closeConnections();
+				return false;
+			}
+			ArrayList<String[]> fields = new ArrayList<String[]>();
+			fields.add(new String[]{":method", command});
+			fields.add(new String[]{":scheme", "http"});
+			fields.add(new String[]{":path", path});
+			for(String line : headerLines){
+				String name = ReverseProxy.headerName(line).toLowerCase();
+				if(name.equals("host")){
+					fields.add(new String[]{":authority", ReverseProxy.headerValue(line)});
+				}else if(!name.equals("connection") && !name.equals("upgrade") && !name.equals("http2-settings") && !name.equals("keep-alive") && !name.equals("transfer-encoding")){
+					fields.add(new String[]{name, ReverseProxy.headerValue(line)});
+				}
+			}
+			return serveHttp2(fields, http2Settings);
+		}
+		
+		//A chunked body carries its own length
+		if(chunkedBody){
+			clheader = true;
+		}
+		
+		if(command.equals("POST") && (clheader == false)){
+			sendError("411 Length Required");
+			return false;
+		}else if(command.equals("POST") && (ctheader == false)){
+			sendError("500 Internal Server Error");
+			return false;
+		}
+		
+		//The request waits for a slot in the bulkhead of its class, so that the other classes are not affected when one of them is overloaded
+		Bulkhead wanted = Bulkhead.classify(command, LM);
+		bulkheadSince = System.nanoTime();
+		if(wanted.enter() == false){
+			sendError("503 Service Unavailable");
+			return false;
+		}
+		bulkhead = wanted;
+		
+		//Reads the body of an HTTP/1.1 POST, telling the client to go ahead first if it asked to be told
+		if(http11 && command.equals("POST")){
+			try{
+				if(expectContinue){
+					outToClient.writeBytes("HTTP/1.1 100 Continue"+"\r\n"+"\r\n");
+					outToClient.flush();
+				}
+				watch.startBody();
+				byte[] body = chunkedBody ? readChunkedBody() : readFixedBody(postContentLength);
+				watch.endBody();
+				postContentLength = body.length;
+				postString = new String(body, "ISO-8859-1");
+			}catch(SocketTimeoutException e){
+				sendError("408 Request Timeout");
+				return false;
+			}catch(BodyTooLargeException e){
+				ServerMetrics.increment(ServerMetrics.labelled("limit_rejections", "limit", "body"));
+				sendError("413 Payload Too Large");
+				return false;
+			}catch(BadChunkException e){
+				sendError("400 Bad Request");
+				return false;
+			}catch(IOException e){
+				System.err.println("IOException: Error reading the request body");
+				closeConnections();
+				return false;
+			}
+		}
+		
+		/*if(postString.length() >= postContentLength){
+			postString = postString.substring(0, postContentLength-1);
+		}*/
+		
+		
+		//The body the script gets. An HTTP/1.0 body is the one line that was read, which may be shorter than the length the client declared.
+		byte[] postBody = postString.getBytes(StandardCharsets.ISO_8859_1);
+		if(postBody.length > postContentLength){
+			postBody = Arrays.copyOf(postBody, postContentLength);
+		}
+		
+		//Everything else is served from the pack or the document root, by the same Origin as HTTP/2 requests
+		ParsedRequest request = new ParsedRequest(command, path, version(), connectionSocket, clientMessage);
+		request.headers = headerLines;
+		request.body = new ByteArrayInputStream(postBody);
+		StreamingResponse response = new StreamingResponse(outToClient, version(), persistent, command.equals("HEAD"));
+		try{
+			Origin.serve(request, response, SERVER_NAME, SERVER_PORT);
+			persistent = response.finish();
+		}catch(IOException e){
+			System.err.println("IOException in serving "+path+": "+e.getMessage());
+			if(response.isCommitted() == false){
+				sendError("500 Internal Server Error");
+				return false;
+			}
+			//Half a response has gone out, so the only way to tell the client is to close the connection
+			closeConnections();
+			return false;
+		}
+		
+		//At this point, all connections will be closed, and the socket will also be closed (unless the connection is persistent). 
+		return finishResponse();
+	}
+	
+	/*
+	 * Hands the connection over to HTTP/2 for the rest of its life. This thread goes on reading frames until the client is done.
+	 */
+	private boolean serveHttp2(ArrayList<String[]> upgradedRequest, String settings){
+		watch.endHeaders();
+		new Http2Connection(connectionSocket, clientMessage, outToClient, SERVER_NAME, SERVER_PORT).serve(upgradedRequest, settings);
+		closeConnections();
+		return false;
+	}
+	
+	/*
+	 * Serves the one request of a detached thread (see Pipeline). Returns true if the connection may stay open after its response.
+	 */
+	boolean serveDetached(){
+		try{
+			return handleRequest();
+		}finally{
+			leaveBulkhead();
+		}
+	}
+	
+	//Gives back the bulkhead slot of the current request, if it holds one. The response is complete by then, so the slot is free before any wait before closing.
+	private void leaveBulkhead(){
+		if(bulkhead != null){
+			bulkhead.leave();
+			bulkhead = null;
+			AdaptivePool.record(System.nanoTime() - bulkheadSince);
+		}
+	}
+	
+	/*
+	 * Called once a response has been sent completely. A persistent connection is left open for the next request, anything else is closed 0.5 seconds 
+	 * later like it always was.
+	 */
+	private boolean finishResponse(){
+		leaveBulkhead();
+		if(persistent){
+			return true;
+		}
+		closeLater();
+		return false;
+	}
+	
+	//The version written in front of every status line, which follows the version of the request
+	private String version(){
+		return http11 ? "HTTP/1.1" : "HTTP/1.0";
+	}
+	
+	//HTTP/1.1 connections are persistent unless this header says otherwise; HTTP/1.0 connections are always closed so they never need it
+	private String connectionHeader(){
+		return (http11 && !persistent) ? "Connection: close"+"\r\n" : "";
+	}
+	
+	/*
+	 * Writes a response that has no body. HTTP/1.0 clients get the bare status line exactly as before, while HTTP/1.1 clients get a complete header block
+	 * with a zero Content-Length so that the connection can carry on with the next request.
+	 */
+	private void writeStatus(String status) throws IOException{
+		if(http11){
+			outToClient.writeBytes("HTTP/1.1 "+status+"\r\n"+"Content-Length: 0"+"\r\n"+connectionHeader()+"\r\n");
+		}else{
+			outToClient.writeBytes("HTTP/1.0 "+status);
+		}
+		outToClient.flush();
+	}
+	
+	/*
+	 * Sends an error response and closes the connection 0.5 seconds later like everywhere else. Errors always end the connection, even a persistent one,
+	 * since the rest of the request may still be sitting unread on it.
+	 */
+	private void sendError(String status){
+		leaveBulkhead();
+		persistent = false;
+		try {
+			writeStatus(status);
+		} catch (IOException e) {
+			System.err.println("IO Exception: Error writing messages.");
+		}
+		closeLater();
+	}
+	
+	/*
+	 * Runs an in-process handler, or forwards to a proxy route (exactly one of the two is given), for a request whose request line has been read. The
+	 * headers and body are read through the request view and the response is streamed through the sink, and the connection then carries on (or is
+	 * closed) exactly like it would after a file.
+	 */
+	private boolean serveHandler(HttpHandler handler, ProxyRoute route, String command, String target){
+		ParsedRequest request = new ParsedRequest(command, target, version(), connectionSocket, clientMessage);
+		try{
+			if(request.readHeaders(maxHeaderBytes) == false){
+				closeConnections();
+				return false;
+			}
+			watch.endHeaders();
+			if(request.tooLarge){
+				ServerMetrics.increment(ServerMetrics.labelled("limit_rejections", "limit", "headers"));
+				sendError("431 Request Header Fields Too Large");
+				return false;
+			}
+			if(request.badFraming){
+				sendError("400 Bad Request");
+				return false;
+			}
+			if(http11){
+				if(request.header("Host") == null){
+					sendError("400 Bad Request");
+					return false;
+				}
+				String connection = request.header("Connection");
+				if(connection != null && connection.toLowerCase().contains("close")){
+					persistent = false;
+				}
+				if("100-continue".equalsIgnoreCase(request.header("Expect"))){
+					outToClient.writeBytes("HTTP/1.1 100 Continue"+"\r\n"+"\r\n");
+					outToClient.flush();
+				}
+			}
+			StreamingResponse response = new StreamingResponse(outToClient, version(), persistent, command.equals("HEAD"));
+			watch.startBody();
+			try{
+				if(route != null){
+					ReverseProxy.instance.forward(route, request, response);
+				}else{
+					handler.handle(request, response);
+				}
+			}catch(Exception e){
+				System.err.println("Exception in "+(route != null ? "forwarding " : "handler for ")+target+": "+e);
+				if(response.isCommitted() == false){
+					//The client's own mistakes in the body are answered as such, anything else is ours
+					if(e instanceof BodyTooLargeException){
+						ServerMetrics.increment(ServerMetrics.labelled("limit_rejections", "limit", "body"));
+						sendError("413 Payload Too Large");
+					}else if(e instanceof BadChunkException){
+						sendError("400 Bad Request");
+					}else if(e instanceof SocketTimeoutException){
+						sendError("408 Request Timeout");
+					}else{
+						sendError("500 Internal Server Error");
+					}
+					return false;
+				}
+				//Half a response has gone out, so the only way to tell the client is to close the connection
+				closeConnections();
+				return false;
+			}
+			persistent = response.finish();
+			if(persistent && request.drainBody(1024 * 1024) == false){
+				persistent = false;
+			}
+			watch.endBody();
+		}catch(LineTooLongException e){
+			ServerMetrics.increment(ServerMetrics.labelled("limit_rejections", "limit", "header_line"));
+			sendError("431 Request Header Fields Too Large");
+			return false;
+		}catch(SocketTimeoutException e){
+			sendError("408 Request Timeout");
+			return false;
+		}catch(IOException e){
+			System.err.println("IOException in handling "+target);
+			persistent = false;
+		}
+		return finishResponse();
+	}
+	
+	//Reads exactly length bytes of request body
+	private byte[] readFixedBody(int length) throws IOException{
+		byte[] body = new byte[length];
+		int off = 0;
+		while(off < length){
+			int n = clientMessage.read(body, off, length - off);
+			if(n < 0){
+				throw new IOException("Request body ended early");
+			}
+			off += n;
+		}
+		return body;
+	}
+	
+	//Reads a chunked request body, returning only the data of the chunks; BodyTooLargeException once they add up to more than maxBodyBytes
+	private byte[] readChunkedBody() throws IOException{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		ReverseProxy.copyChunked(clientMessage, body, maxBodyBytes);
+		return body.toByteArray();
+	}
+		
+	
+	/*
+	 * Closes the connection after the close delay, without holding this thread for it: the response is flushed now and the timer closes the socket later,
+	 * so the thread is free for another connection in the meantime.
+	 */
+	void closeLater(){
+		if(detached){
+			persistent = false;
+			return;
+		}
+		try{
+			outToClient.flush();
+		}catch(IOException e){
+			//The client is gone already; closing it is all there is left to do
+		}
+		TimerWheel.shared.schedule(new Runnable(){
+			public void run(){
+				closeConnections();
+			}
+		}, closeDelay);
+	}
+	
+	//This method was written so as not to have to repeatedly write out all of the closing statements at each point when we may wish to 
+	//exit the program. This method is called whenever a response is sent to the user and the socket and appropriate connections all need to be closed. 
+	public void closeConnections(){
+		//A detached thread's connection belongs to the thread that writes its response, which closes it once the response is out
+		if(detached){
+			persistent = false;
+			return;
+		}
+		try{
+			
+			outToClient.close();
+			clientMessage.close();
+			connectionSocket.close();
+			return;
+			
+		}catch(IOException e){
+			System.err.println("IOException in closing the streams/socket");
+		}
+	}
+}
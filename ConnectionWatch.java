@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.net.Socket;
+
+/*
+ * What the guard knows about one connection. The CommunicationThread marks when it starts and finishes reading headers and a body; the byte counts and the
+ * blocked reads and writes come from the connection's streams.
+ */
+class ConnectionWatch {
+	Socket socket;
+	RequestReader in;
+	MeteredOutputStream out;
+	private TimerWheel.Timeout headerDeadline;	//null while no headers are being read; guarded by this
+	volatile long bodyStart = 0;		//0 while no body is being read
+	volatile long bodyStartBytes = 0;
+
+	public ConnectionWatch(Socket socket, RequestReader in, MeteredOutputStream out){
+		this.socket = socket;
+		this.in = in;
+		this.out = out;
+	}
+
+	public synchronized void startHeaders(){
+		if(headerDeadline != null){
+			headerDeadline.cancel();
+		}
+		final ConnectionWatch watch = this;
+		headerDeadline = TimerWheel.shared.schedule(new Runnable(){
+			public void run(){
+				SlowClientGuard.close(watch, "header_deadline");
+			}
+		}, SlowClientGuard.headerTimeout);
+	}
+
+	public synchronized void endHeaders(){
+		if(headerDeadline != null){
+			headerDeadline.cancel();
+			headerDeadline = null;
+		}
+	}
+
+	public void startBody(){
+		bodyStartBytes = in.bytesRead;
+		bodyStart = System.currentTimeMillis();
+	}
+
+	public void endBody(){
+		bodyStart = 0;
+	}
+
+	void kill(){
+		try{
+			socket.close();
+		}catch(IOException e){
+			System.err.println("IOException in closing a slow client's socket");
+		}
+	}
+}
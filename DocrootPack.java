@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * This class serves an immutable release of the document root from a single pack file built offline by the DocrootPacker. The pack is mapped into memory
+ * once at startup and never read through the filesystem again: a path is looked up through a minimal perfect hash that lives in the mapped memory itself,
+ * the header block of every file (Content-Type, Content-Length, Last-Modified, ETag) was written out by the packer, and the body is copied straight from
+ * the mapping. Opening a pack only reads its fixed size header, so startup takes the same time whatever the number of files.
+ *
+ * The pack is used when pack.file names one. GET and HEAD requests for a path in the pack are answered from it; everything else, and any path the pack
+ * does not have, goes on to the document root as before.
+ *
+ * Layout (all numbers big-endian):
+ *
+ *     header   magic "HPK1", version, entry count n, bucket count r
+ *     seeds    r ints; bucket b places its keys with seed seeds[b]
+ *     entries  n records of ENTRY_SIZE bytes, one per slot of the perfect hash
+ *     data     paths, ETags, header blocks and bodies the records point at
+ */
+class DocrootPack {
+
+	static final int MAGIC = 0x48504b31;	//"HPK1"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	static final int ENTRY_SIZE = 88;
+
+	//Offsets of the fields within an entry record
+	static final int E_PATH = 0;			//long offset, int length
+	static final int E_LAST_MODIFIED = 12;	//long
+	static final int E_ETAG = 20;			//long offset, int length
+	static final int E_HEAD = 32;			//long offset, int length
+	static final int E_BODY = 44;			//long offset, long length
+	static final int E_GZIP_HEAD = 60;		//long offset, int length
+	static final int E_GZIP_BODY = 72;		//long offset, long length (0 when there is no gzip variant)
+
+	//The pack is opened once at startup; it stays null when pack.file is not set
+	static DocrootPack instance;
+
+	private MappedByteBuffer map;
+	private int count;
+	private int buckets;
+	private int entriesAt;
+
+	/*
+	 * Maps the pack named by pack.file. Returns null, with a message, when there is none or it can not be used.
+	 */
+	public static DocrootPack fromConfig(){
+		String file = ServerConfig.getString("pack.file", "");
+		if(file.equals("")){
+			return null;
+		}
+		try{
+			DocrootPack pack = new DocrootPack(file);
+			System.out.println("Serving "+pack.count+" files from the pack "+file);
+			return pack;
+		}catch(IOException e){
+			System.err.println("Cannot use the pack "+file+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	public DocrootPack(String file) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE){
+				throw new IOException("pack is larger than 2 GB");
+			}
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}finally{
+			//The mapping stays valid after the file is closed
+			raf.close();
+		}
+		if(map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC){
+			throw new IOException("not a pack file");
+		}
+		if(map.getInt(4) != VERSION){
+			throw new IOException("unsupported pack version "+map.getInt(4));
+		}
+		count = map.getInt(8);
+		buckets = map.getInt(12);
+		entriesAt = HEADER_SIZE + 4 * buckets;
+		if(count < 0 || buckets < 1 || (long) entriesAt + (long) count * ENTRY_SIZE > map.capacity()){
+			throw new IOException("pack is truncated");
+		}
+	}
+
+	/*
+	 * Returns the entry for this request path, or -1 if the pack does not have it. Only mapped memory is touched.
+	 */
+	public int find(String path){
+		if(count == 0){
+			return -1;
+		}
+		long h = hash(path, 0);
+		int seed = map.getInt(HEADER_SIZE + 4 * (int) Long.remainderUnsigned(h, buckets));
+		int slot = (int) Long.remainderUnsigned(hash(path, seed), count);
+		int e = entriesAt + slot * ENTRY_SIZE;
+		//The perfect hash places every packed path in its own slot, but any other path lands in some slot too, so the key is compared
+		int at = (int) map.getLong(e + E_PATH);
+		int length = map.getInt(e + E_PATH + 8);
+		if(length != path.length()){
+			return -1;
+		}
+		for(int i = 0; i < length; i++){
+			if((map.get(at + i) & 0xff) != path.charAt(i)){
+				return -1;
+			}
+		}
+		return e;
+	}
+
+	//The request path the entry is for
+	public String path(int e){
+		return string((int) map.getLong(e + E_PATH), map.getInt(e + E_PATH + 8));
+	}
+
+	public long bodyLength(int e, boolean gzip){
+		return map.getLong(e + (gzip ? E_GZIP_BODY : E_BODY) + 8);
+	}
+
+	public long lastModified(int e){
+		return map.getLong(e + E_LAST_MODIFIED);
+	}
+
+	public String etag(int e){
+		return string((int) map.getLong(e + E_ETAG), map.getInt(e + E_ETAG + 8));
+	}
+
+	public boolean hasGzip(int e){
+		return map.getLong(e + E_GZIP_BODY + 8) > 0;
+	}
+
+	/*
+	 * Writes the precomputed header lines of the identity or gzip variant, each ending in CRLF but without the blank line that ends the block.
+	 */
+	public void writeHeaders(int e, boolean gzip, OutputStream out) throws IOException{
+		int field = gzip ? E_GZIP_HEAD : E_HEAD;
+		copy((int) map.getLong(e + field), map.getInt(e + field + 8), out);
+	}
+
+	//The same header lines as text, for HTTP/2 responses that send them as fields
+	public String headers(int e, boolean gzip){
+		int field = gzip ? E_GZIP_HEAD : E_HEAD;
+		return string((int) map.getLong(e + field), map.getInt(e + field + 8));
+	}
+
+	public void writeBody(int e, boolean gzip, OutputStream out) throws IOException{
+		int field = gzip ? E_GZIP_BODY : E_BODY;
+		copy((int) map.getLong(e + field), (int) map.getLong(e + field + 8), out);
+	}
+
+	private void copy(int at, int length, OutputStream out) throws IOException{
+		//A duplicate has its own position, so any number of requests can copy out of the mapping at once
+		ByteBuffer src = map.duplicate();
+		src.position(at);
+		byte[] buffer = new byte[Math.min(length, 64 * 1024)];
+		int remaining = length;
+		while(remaining > 0){
+			int n = Math.min(buffer.length, remaining);
+			src.get(buffer, 0, n);
+			out.write(buffer, 0, n);
+			remaining -= n;
+		}
+	}
+
+	private String string(int at, int length){
+		char[] chars = new char[length];
+		for(int i = 0; i < length; i++){
+			chars[i] = (char) (map.get(at + i) & 0xff);
+		}
+		return new String(chars);
+	}
+
+	/*
+	 * The hash that the packer and the lookup share: FNV-1a over the path's bytes (request paths are read as Latin-1, so every char is one byte), started
+	 * from the seed and mixed at the end so that different seeds give unrelated values.
+	 */
+	static long hash(CharSequence key, int seed){
+		long h = 0xcbf29ce484222325L ^ (seed * 0x9E3779B97F4A7C15L);
+		for(int i = 0; i < key.length(); i++){
+			h ^= key.charAt(i) & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,257 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TimeZone;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * This is the offline tool that turns a document root into a pack for the DocrootPack, for example:
+ *
+ *     java DocrootPacker /srv/site /srv/site.pack -gzip
+ *
+ * Every regular file under the directory becomes an entry under the path a client asks for it by ("/" followed by its path relative to the directory).
+ * With -gzip, every text file that gets smaller when compressed also gets a gzip variant, which is sent to clients that accept it. The pack is written next
+ * to its final name and moved there at the end, so a server never sees half of one.
+ */
+class DocrootPacker {
+
+	//Content types that are already compressed and are not worth a gzip variant
+	static final String[] COMPRESSED = {"image/gif", "image/jpeg", "image/png", "application/pdf", "application/z-gzip", "application/zip"};
+
+	public static void main(String[] args){
+		if(args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("-gzip"))){
+			System.err.println("Usage: java DocrootPacker <docroot> <pack file> [-gzip]");
+			return;
+		}
+		try{
+			long start = System.currentTimeMillis();
+			int n = pack(Paths.get(args[0]), Paths.get(args[1]), args.length == 3);
+			System.out.println("Packed "+n+" files into "+args[1]+" in "+(System.currentTimeMillis() - start)+" ms");
+		}catch(IOException e){
+			System.err.println("IOException in packing "+args[0]+": "+e.getMessage());
+		}
+	}
+
+	/*
+	 * One file to be packed. slot is where the perfect hash puts it.
+	 */
+	static class Item {
+		Path file;
+		String key;
+		int slot;
+	}
+
+	public static int pack(Path root, Path target, boolean gzip) throws IOException{
+		final ArrayList<Item> items = new ArrayList<Item>();
+		Stream<Path> walk = Files.walk(root);
+		try{
+			Iterator<Path> it = walk.iterator();
+			while(it.hasNext()){
+				Path p = it.next();
+				if(!Files.isRegularFile(p)){
+					continue;
+				}
+				Item item = new Item();
+				item.file = p;
+				item.key = latin1(("/"+root.relativize(p).toString().replace('\\', '/')).getBytes(StandardCharsets.UTF_8));
+				items.add(item);
+			}
+		}finally{
+			walk.close();
+		}
+
+		int buckets = Math.max(1, (items.size() + 2) / 3);
+		int[] seeds = placeAll(items, buckets);
+
+		int entriesAt = DocrootPack.HEADER_SIZE + 4 * buckets;
+		long dataAt = entriesAt + (long) items.size() * DocrootPack.ENTRY_SIZE;
+		ByteBuffer index = ByteBuffer.allocate((int) dataAt);
+		index.putInt(DocrootPack.MAGIC).putInt(DocrootPack.VERSION).putInt(items.size()).putInt(buckets);
+		for(int seed : seeds){
+			index.putInt(seed);
+		}
+
+		Path temp = target.resolveSibling(target.getFileName()+".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp.toFile(), "rw");
+		try{
+			raf.setLength(0);
+			FileChannel out = raf.getChannel();
+			long at = dataAt;
+			SimpleDateFormat form = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+			form.setTimeZone(TimeZone.getTimeZone("GMT"));
+			for(Item item : items){
+				byte[] body = Files.readAllBytes(item.file);
+				long lastModified = Files.getLastModifiedTime(item.file).toMillis();
+				String contentType = StaticFiles.contentType(item.file);
+				byte[] gz = gzip && compressible(contentType) ? gzip(body) : null;
+				if(gz != null && gz.length >= body.length){
+					gz = null;
+				}
+				String etag = digest(body);
+				String common = "Last-Modified: "+form.format(lastModified)+"\r\n";
+				String allow = "Allow: GET, POST, HEAD"+"\r\n"+(gz != null ? "Vary: Accept-Encoding"+"\r\n" : "");
+				String head = "Content-Type: "+contentType+"\r\n"+"Content-Length: "+body.length+"\r\n"+common+"ETag: \""+etag+"\""+"\r\n"+"Content-Encoding: identity"+"\r\n"+allow;
+
+				int e = entriesAt + item.slot * DocrootPack.ENTRY_SIZE;
+				index.putLong(e + DocrootPack.E_LAST_MODIFIED, lastModified);
+				at = put(out, at, index, e + DocrootPack.E_PATH, item.key.getBytes(StandardCharsets.ISO_8859_1), true);
+				at = put(out, at, index, e + DocrootPack.E_ETAG, etag.getBytes(StandardCharsets.ISO_8859_1), true);
+				at = put(out, at, index, e + DocrootPack.E_HEAD, head.getBytes(StandardCharsets.ISO_8859_1), true);
+				at = put(out, at, index, e + DocrootPack.E_BODY, body, false);
+				if(gz != null){
+					String gzipHead = "Content-Type: "+contentType+"\r\n"+"Content-Length: "+gz.length+"\r\n"+common+"ETag: \""+etag+"-gz\""+"\r\n"+"Content-Encoding: gzip"+"\r\n"+allow;
+					at = put(out, at, index, e + DocrootPack.E_GZIP_HEAD, gzipHead.getBytes(StandardCharsets.ISO_8859_1), true);
+					at = put(out, at, index, e + DocrootPack.E_GZIP_BODY, gz, false);
+				}
+				if(at > Integer.MAX_VALUE){
+					throw new IOException("the pack would be larger than 2 GB");
+				}
+			}
+			index.clear();
+			while(index.hasRemaining()){
+				out.write(index, index.position());
+			}
+			out.force(true);
+		}finally{
+			raf.close();
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return items.size();
+	}
+
+	//Writes one piece of data and records where it went in the entry; shortLength fields hold an int length instead of a long
+	private static long put(FileChannel out, long at, ByteBuffer index, int field, byte[] data, boolean shortLength) throws IOException{
+		ByteBuffer src = ByteBuffer.wrap(data);
+		long pos = at;
+		while(src.hasRemaining()){
+			pos += out.write(src, pos);
+		}
+		index.putLong(field, at);
+		if(shortLength){
+			index.putInt(field + 8, data.length);
+		}else{
+			index.putLong(field + 8, data.length);
+		}
+		return pos;
+	}
+
+	/*
+	 * Builds the minimal perfect hash ("hash and displace"): every key goes into a bucket by its unseeded hash, and then, biggest bucket first, each bucket
+	 * gets the first seed that sends all of its keys to slots nobody has taken yet. Returns the seed of every bucket and sets every item's slot.
+	 */
+	static int[] placeAll(ArrayList<Item> items, int buckets) throws IOException{
+		final ArrayList<ArrayList<Item>> byBucket = new ArrayList<ArrayList<Item>>();
+		for(int b = 0; b < buckets; b++){
+			byBucket.add(new ArrayList<Item>());
+		}
+		for(Item item : items){
+			byBucket.get((int) Long.remainderUnsigned(DocrootPack.hash(item.key, 0), buckets)).add(item);
+		}
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int b = 0; b < buckets; b++){
+			order.add(b);
+		}
+		Collections.sort(order, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return byBucket.get(b).size() - byBucket.get(a).size();
+			}
+		});
+
+		int n = items.size();
+		boolean[] taken = new boolean[n];
+		int[] seeds = new int[buckets];
+		int[] slots = new int[16];
+		for(int b : order){
+			ArrayList<Item> bucket = byBucket.get(b);
+			if(bucket.isEmpty()){
+				break;
+			}
+			if(slots.length < bucket.size()){
+				slots = new int[bucket.size()];
+			}
+			int seed = 1;
+			while(true){
+				if(seed > (1 << 24)){
+					throw new IOException("no perfect hash found (are there duplicate paths?)");
+				}
+				if(tryPlace(bucket, seed, n, taken, slots)){
+					break;
+				}
+				seed++;
+			}
+			seeds[b] = seed;
+			for(int i = 0; i < bucket.size(); i++){
+				bucket.get(i).slot = slots[i];
+				taken[slots[i]] = true;
+			}
+		}
+		return seeds;
+	}
+
+	private static boolean tryPlace(ArrayList<Item> bucket, int seed, int n, boolean[] taken, int[] slots){
+		for(int i = 0; i < bucket.size(); i++){
+			int slot = (int) Long.remainderUnsigned(DocrootPack.hash(bucket.get(i).key, seed), n);
+			if(taken[slot]){
+				return false;
+			}
+			for(int j = 0; j < i; j++){
+				if(slots[j] == slot){
+					return false;
+				}
+			}
+			slots[i] = slot;
+		}
+		return true;
+	}
+
+	private static boolean compressible(String contentType){
+		for(String t : COMPRESSED){
+			if(t.equals(contentType)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] gzip(byte[] body) throws IOException{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gz = new GZIPOutputStream(out);
+		gz.write(body);
+		gz.close();
+		return out.toByteArray();
+	}
+
+	//The ETag is taken from the contents, so it stays the same when an unchanged file is packed again
+	private static String digest(byte[] body) throws IOException{
+		try{
+			byte[] d = MessageDigest.getInstance("SHA-256").digest(body);
+			StringBuilder hex = new StringBuilder();
+			for(int i = 0; i < 8; i++){
+				hex.append(String.format("%02x", d[i] & 0xff));
+			}
+			return hex.toString();
+		}catch(NoSuchAlgorithmException e){
+			throw new IOException(e);
+		}
+	}
+
+	//Turns the path's bytes into the String a client's request line would give for it, one char per byte
+	private static String latin1(byte[] bytes){
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+}
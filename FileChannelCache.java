@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.DoubleSupplier;
+
+/*
+ * This class keeps the files that are served often open, so that a request for a hot file does not pay for an open() and a close() every time. Every open
+ * file is a FileChannel that any number of requests can read at once (reads are positional, so they do not disturb each other), and it counts the requests
+ * that are using it right now.
+ *
+ * An entry is only used if the file on disk is still the one that was opened: the caller passes in what it just read from the disk (modification time,
+ * size and file key), and an entry that does not match is retired and a new channel is opened. A retired or evicted channel is never closed under a request
+ * that is still reading it; the last request to let go of it closes it. So a file that is replaced or deleted keeps being served to the requests that had
+ * already started on it, and nothing else.
+ *
+ * filecache.maxOpen   - how many files are kept open (default 256, 0 turns the cache off)
+ * filecache.fdBudget  - how many channels the cache may have open at once, including retired ones still being read; when it is used up requests open the
+ *                       file the old way. Defaults to a quarter of the process's file descriptor limit.
+ */
+class FileChannelCache {
+
+	static int maxOpen = 256;
+	static int fdBudget = 1024;
+
+	//Access ordered, so the eldest entry is the one that was used least recently
+	private static LinkedHashMap<String, OpenFile> open = new LinkedHashMap<String, OpenFile>(16, 0.75f, true);
+	private static int channels = 0;	//Channels opened by the cache and not closed yet, retired ones included
+
+	public static void configure(){
+		maxOpen = Math.max(0, ServerConfig.getInt("filecache.maxOpen", maxOpen));
+		fdBudget = Math.max(1, ServerConfig.getInt("filecache.fdBudget", defaultBudget()));
+		ServerMetrics.gauge("filecache_open", new DoubleSupplier(){
+			public double getAsDouble(){
+				synchronized(FileChannelCache.class){
+					return open.size();
+				}
+			}
+		});
+		ServerMetrics.gauge("filecache_channels", new DoubleSupplier(){
+			public double getAsDouble(){
+				synchronized(FileChannelCache.class){
+					return channels;
+				}
+			}
+		});
+		ServerMetrics.gauge("filecache_fd_budget", new DoubleSupplier(){
+			public double getAsDouble(){
+				return fdBudget;
+			}
+		});
+	}
+
+	//A quarter of the descriptor limit leaves the rest for sockets, scripts and everything else
+	private static int defaultBudget(){
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.UnixOperatingSystemMXBean){
+			long max = ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+			if(max > 0){
+				return (int) Math.max(16, Math.min(Integer.MAX_VALUE, max / 4));
+			}
+		}
+		return fdBudget;
+	}
+
+	/*
+	 * Returns an open channel for the version of the file described by file, with one reference held for the caller, who must release() it when done.
+	 * Returns null if the cache is off or its descriptor budget is used up; the caller then reads the file on its own.
+	 */
+	public static OpenFile acquire(Path p, StaticFile file) throws IOException{
+		synchronized(FileChannelCache.class){
+			if(maxOpen == 0){
+				return null;
+			}
+			OpenFile cached = open.get(file.key);
+			if(cached != null){
+				if(cached.matches(file)){
+					cached.refs++;
+					ServerMetrics.increment("filecache_hits");
+					return cached;
+				}
+				//The file was replaced or changed on disk since it was opened
+				open.remove(file.key);
+				retire(cached);
+				ServerMetrics.increment("filecache_stale");
+			}
+			Iterator<OpenFile> eldest = open.values().iterator();
+			while((open.size() >= maxOpen || channels >= fdBudget) && eldest.hasNext()){
+				OpenFile victim = eldest.next();
+				eldest.remove();
+				retire(victim);
+				ServerMetrics.increment("filecache_evictions");
+			}
+			if(channels >= fdBudget){
+				//Everything left open is retired but still being read
+				ServerMetrics.increment("filecache_budget_exhausted");
+				return null;
+			}
+			//The slot is taken before the file is opened, so that concurrent misses cannot overshoot the budget
+			channels++;
+		}
+		ServerMetrics.increment("filecache_misses");
+		FileChannel channel = null;
+		long openedSize;
+		try{
+			channel = FileChannel.open(p, StandardOpenOption.READ);
+			openedSize = channel.size();
+		}catch(IOException e){
+			if(channel != null){
+				channel.close();
+			}
+			synchronized(FileChannelCache.class){
+				channels--;
+			}
+			throw e;
+		}
+		OpenFile opened = new OpenFile(file.key, channel, file.lastModified, file.size, file.fileKey);
+		synchronized(FileChannelCache.class){
+			opened.refs = 1;
+			OpenFile raced = open.get(file.key);
+			if(openedSize != file.size){
+				//The file changed between the caller's look at it and the open, so this channel is for this request only
+				opened.retired = true;
+			}else if(raced != null && raced.matches(file)){
+				//Another request opened the same version meanwhile; its entry stays, this channel goes away after this request
+				opened.retired = true;
+			}else{
+				if(raced != null){
+					retire(raced);
+				}
+				open.put(file.key, opened);
+			}
+		}
+		return opened;
+	}
+
+	/*
+	 * Forgets the file at this path, for example because it no longer exists. Requests that are still reading it are not affected.
+	 */
+	public static void invalidate(String key){
+		synchronized(FileChannelCache.class){
+			OpenFile cached = open.remove(key);
+			if(cached != null){
+				retire(cached);
+			}
+		}
+	}
+
+	//Only called with the class lock held
+	private static void retire(OpenFile f){
+		f.retired = true;
+		if(f.refs == 0){
+			close(f);
+		}
+	}
+
+	//Only called with the class lock held
+	private static void close(OpenFile f){
+		channels--;
+		try{
+			f.channel.close();
+		}catch(IOException e){
+			System.err.println("IOException in closing "+f.key);
+		}
+	}
+
+	static void release(OpenFile f){
+		synchronized(FileChannelCache.class){
+			f.refs--;
+			if(f.refs == 0 && f.retired){
+				close(f);
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Body stream that ends after a fixed number of bytes, without closing the connection underneath.
+ */
+class FixedLengthInputStream extends InputStream {
+	InputStream in;
+	long remaining;
+
+	public FixedLengthInputStream(InputStream in, long length){
+		this.in = in;
+		this.remaining = length;
+	}
+
+	public int read() throws IOException{
+		byte[] one = new byte[1];
+		return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException{
+		if(remaining <= 0){
+			return -1;
+		}
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if(n < 0){
+			throw new IOException("Request body ended early");
+		}
+		remaining -= n;
+		return n;
+	}
+
+	public int available() throws IOException{
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	public void close(){
+		//The connection stays open for the response
+	}
+}
@@ -0,0 +1,34 @@
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * The request as seen by an HttpHandler. This is a view of what the server has already parsed off the connection: the header lines are the ones read from
+ * the socket, looked up in place rather than copied into a map, and the body is read straight from the connection's buffer as the handler asks for it.
+ *
+ */
+public interface HandlerRequest {
+
+	//GET, POST, PUT, ...
+	String method();
+
+	//The path part of the request target, without the query string
+	String path();
+
+	//The query string without the leading "?", or null if there is none
+	String query();
+
+	//"HTTP/1.0" or "HTTP/1.1"
+	String version();
+
+	//The value of the first header with this name (ignoring case), or null
+	String header(String name);
+
+	//Every header line as it was received, "Name: value"
+	List<String> headerLines();
+
+	//The request body, which ends after Content-Length bytes (or the last chunk); empty when there is no body
+	InputStream body();
+
+	//Address of the client, as text
+	String remoteAddress();
+}
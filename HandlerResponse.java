@@ -0,0 +1,26 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The response sink handed to an HttpHandler. The status and headers can be changed until the body is first written to; after that they have been sent.
+ * The body is streamed to the client as it is written: with a Content-Length if the handler set one, otherwise chunked for HTTP/1.1 clients and until the
+ * connection closes for HTTP/1.0 clients.
+ *
+ */
+public interface HandlerResponse {
+
+	//Defaults to 200 OK
+	void setStatus(int code, String reason);
+
+	//Replaces any earlier value of the same header. Connection, Content-Length and Transfer-Encoding are managed by the server.
+	void setHeader(String name, String value);
+
+	//Declares the exact number of body bytes that will be written
+	void setContentLength(long length);
+
+	//The body stream; writing to it sends the status line and headers first
+	OutputStream body() throws IOException;
+
+	//True once the status line and headers have been sent
+	boolean isCommitted();
+}
@@ -0,0 +1,330 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+/*
+ * This class makes a restart look like steady state. While the server runs it counts how often every file is served and how many bytes that took, and
+ * every so often writes the hottest paths to a manifest. When the server starts again it reads the manifest and prefetches those files in parallel,
+ * hottest first: a file in the pack has its pages of the mapping touched and a file up to staticfiles.bufferLimit is loaded (which keeps it open in the
+ * FileChannelCache), so that all of them are in the OS page cache before the first client asks. Larger files are left alone; they are streamed anyway,
+ * and one of them could take the whole budget. Prefetching stops at a budget of bytes and of time, whichever runs out first.
+ *
+ * Counts are halved every time the manifest is written, so the ranking follows what is hot now rather than what was hot last week.
+ *
+ * hotset.file          - the manifest; nothing is tracked or prefetched without one. Keep it outside the document root, or anyone can read it.
+ * hotset.interval      - how often the manifest is written, in ms (default 60000)
+ * hotset.size          - paths kept in the manifest, hottest first (default 1000)
+ * hotset.track         - most paths counted between two writes (default 10000)
+ * hotset.budgetBytes   - most bytes prefetched at startup (default 256 MB)
+ * hotset.budgetMs      - most time spent prefetching at startup (default 10000)
+ * hotset.threads       - files prefetched at once (default 4)
+ * hotset.blockStartup  - prefetch before accepting connections instead of alongside (default false)
+ */
+class HotSet {
+
+	static HotSet instance;
+
+	String file;
+	long interval;
+	int size;
+	int track;
+	long budgetBytes;
+	long budgetMs;
+	int threads;
+
+	private ConcurrentHashMap<String, HotPath> paths = new ConcurrentHashMap<String, HotPath>();
+	private AtomicLong prefetchedBytes = new AtomicLong();
+	private AtomicLong prefetchedFiles = new AtomicLong();
+	private volatile long prefetchMs = 0;
+
+	/*
+	 * Counts for one path. Halved on every write of the manifest.
+	 */
+	static class HotPath {
+		String path;
+		AtomicLong hits = new AtomicLong();
+		AtomicLong bytes = new AtomicLong();
+
+		public HotPath(String path){
+			this.path = path;
+		}
+	}
+
+	public static HotSet fromConfig(){
+		String file = ServerConfig.getString("hotset.file", null);
+		if(file == null){
+			return null;
+		}
+		HotSet set = new HotSet();
+		set.file = file;
+		set.interval = Math.max(1000, ServerConfig.getLong("hotset.interval", 60000));
+		set.size = Math.max(1, ServerConfig.getInt("hotset.size", 1000));
+		set.track = Math.max(set.size, ServerConfig.getInt("hotset.track", 10000));
+		set.budgetBytes = ServerConfig.getLong("hotset.budgetBytes", 256L * 1024 * 1024);
+		set.budgetMs = ServerConfig.getLong("hotset.budgetMs", 10000);
+		set.threads = Math.max(1, ServerConfig.getInt("hotset.threads", 4));
+		final HotSet metered = set;
+		ServerMetrics.gauge("hotset_tracked", new DoubleSupplier(){
+			public double getAsDouble(){
+				return metered.paths.size();
+			}
+		});
+		ServerMetrics.gauge("hotset_prefetched_files", new DoubleSupplier(){
+			public double getAsDouble(){
+				return metered.prefetchedFiles.get();
+			}
+		});
+		ServerMetrics.gauge("hotset_prefetched_bytes", new DoubleSupplier(){
+			public double getAsDouble(){
+				return metered.prefetchedBytes.get();
+			}
+		});
+		ServerMetrics.gauge("hotset_prefetch_ms", new DoubleSupplier(){
+			public double getAsDouble(){
+				return metered.prefetchMs;
+			}
+		});
+		return set;
+	}
+
+	//Called for every file body sent, with the request path and the bytes it took
+	public static void record(String path, long bytes){
+		HotSet set = instance;
+		if(set == null){
+			return;
+		}
+		HotPath hot = set.paths.get(path);
+		if(hot == null){
+			//Beyond the tracking limit new paths wait for the next write, which makes room by dropping the coldest ones
+			if(set.paths.size() >= set.track){
+				return;
+			}
+			HotPath fresh = new HotPath(path);
+			hot = set.paths.putIfAbsent(path, fresh);
+			if(hot == null){
+				hot = fresh;
+			}
+		}
+		hot.hits.incrementAndGet();
+		hot.bytes.addAndGet(bytes);
+	}
+
+	/*
+	 * Starts the thread that writes the manifest and runs the prefetch, either right here or on its own threads while the server starts accepting.
+	 */
+	public void start(){
+		if(ServerConfig.getBoolean("hotset.blockStartup", false)){
+			prefetch();
+		}else{
+			Thread warm = new Thread(new Runnable(){
+				public void run(){
+					prefetch();
+				}
+			}, "hotset-prefetch");
+			warm.setDaemon(true);
+			warm.start();
+		}
+		Thread writer = new Thread(new Runnable(){
+			public void run(){
+				while(true){
+					try{
+						Thread.sleep(interval);
+					}catch(InterruptedException e){
+						return;
+					}
+					persist();
+				}
+			}
+		}, "hotset-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	//Hottest first: most hits, and among equal hits the most bytes
+	private static final Comparator<HotPath> HOTTEST = new Comparator<HotPath>(){
+		public int compare(HotPath a, HotPath b){
+			int byHits = Long.compare(b.hits.get(), a.hits.get());
+			return byHits != 0 ? byHits : Long.compare(b.bytes.get(), a.bytes.get());
+		}
+	};
+
+	/*
+	 * Writes the hottest paths as "path TAB hits TAB bytes" lines, to a file next to the manifest that is then moved over it, and halves every count.
+	 * Paths whose counts have dropped to nothing are forgotten, so the tracking limit is not taken up by paths nobody asks for any more.
+	 */
+	void persist(){
+		ArrayList<HotPath> ranked = new ArrayList<HotPath>(paths.values());
+		Collections.sort(ranked, HOTTEST);
+		Path target = Paths.get(file);
+		Path temp = target.resolveSibling(target.getFileName()+".tmp");
+		try{
+			BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+			try{
+				for(int i = 0; i < ranked.size() && i < size; i++){
+					HotPath hot = ranked.get(i);
+					out.write(hot.path+"\t"+hot.hits.get()+"\t"+hot.bytes.get()+"\n");
+				}
+			}finally{
+				out.close();
+			}
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			ServerMetrics.increment("hotset_persisted");
+		}catch(IOException e){
+			System.err.println("IOException in writing the hot set to "+file+": "+e.getMessage());
+		}
+		Iterator<HotPath> it = paths.values().iterator();
+		while(it.hasNext()){
+			HotPath hot = it.next();
+			if(hot.hits.get() <= 1){
+				it.remove();
+			}else{
+				hot.hits.set(hot.hits.get() / 2);
+				hot.bytes.set(hot.bytes.get() / 2);
+			}
+		}
+	}
+
+	/*
+	 * Reads the manifest left by the last run and prefetches its paths, hottest first, until a budget runs out. The paths also start out with the counts
+	 * they had, so the next manifest does not forget them just because the server was restarted.
+	 */
+	void prefetch(){
+		final long start = System.currentTimeMillis();
+		final ArrayList<String> wanted = new ArrayList<String>();
+		try{
+			BufferedReader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+			try{
+				String line;
+				while((line = in.readLine()) != null){
+					String[] fields = line.split("\t");
+					if(fields.length != 3 || !fields[0].startsWith("/") || fields[0].contains("..")){
+						continue;
+					}
+					HotPath hot = new HotPath(fields[0]);
+					try{
+						hot.hits.set(Long.parseLong(fields[1]) / 2);
+						hot.bytes.set(Long.parseLong(fields[2]) / 2);
+					}catch(NumberFormatException e){
+						continue;
+					}
+					paths.putIfAbsent(hot.path, hot);
+					wanted.add(hot.path);
+				}
+			}finally{
+				in.close();
+			}
+		}catch(IOException e){
+			//No manifest yet, which is normal for the first start
+			return;
+		}
+
+		final long deadline = start + budgetMs;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for(final String path : wanted){
+			pool.execute(new Runnable(){
+				public void run(){
+					if(System.currentTimeMillis() > deadline || prefetchedBytes.get() >= budgetBytes){
+						return;
+					}
+					try{
+						if(warm(path)){
+							prefetchedFiles.incrementAndGet();
+						}
+					}catch(IOException e){
+						//Gone since the manifest was written; the next one will not have it
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		try{
+			pool.awaitTermination(Math.max(1, budgetMs), TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e){
+			//Whatever was prefetched so far still counts
+		}
+		pool.shutdownNow();
+		prefetchMs = System.currentTimeMillis() - start;
+		System.out.println("Prefetched "+prefetchedFiles.get()+" hot files ("+prefetchedBytes.get()+" bytes) in "+prefetchMs+" ms");
+	}
+
+	/*
+	 * Takes bytes out of the budget if they fit in what is left of it. The prefetch threads take from it at the same time, so the check and the taking
+	 * are one step, and the budget is never overdrawn however many files are loaded at once.
+	 */
+	private boolean reserve(long bytes){
+		while(true){
+			long used = prefetchedBytes.get();
+			if(used + bytes > budgetBytes){
+				return false;
+			}
+			if(prefetchedBytes.compareAndSet(used, used + bytes)){
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Brings one path into memory the way a request for it would, with its size reserved from the budget first. Returns false, with nothing taken from
+	 * the budget, if it is not a file that would be served, is larger than staticfiles.bufferLimit or does not fit in what is left of the budget.
+	 */
+	private boolean warm(String path) throws IOException{
+		OutputStream discard = OutputStream.nullOutputStream();
+		DocrootPack pack = DocrootPack.instance;
+		int entry = pack != null ? pack.find(path) : -1;
+		if(entry >= 0){
+			long length = pack.bodyLength(entry, false) + (pack.hasGzip(entry) ? pack.bodyLength(entry, true) : 0);
+			if(!reserve(length)){
+				return false;
+			}
+			try{
+				pack.writeBody(entry, false, discard);
+				if(pack.hasGzip(entry)){
+					pack.writeBody(entry, true, discard);
+				}
+			}catch(IOException e){
+				prefetchedBytes.addAndGet(-length);
+				throw e;
+			}
+			return true;
+		}
+		Path p = Paths.get("."+path);
+		if(!Files.isRegularFile(p) || !Files.isReadable(p) || Files.isExecutable(p) && path.contains(".cgi")){
+			return false;
+		}
+		long size = Files.size(p);
+		if(size > StaticFiles.bufferLimit || !reserve(size)){
+			return false;
+		}
+		StaticFile file;
+		try{
+			file = StaticFiles.load(p);
+		}catch(IOException e){
+			prefetchedBytes.addAndGet(-size);
+			throw e;
+		}
+		if(file.contents == null){
+			//It grew past the limit since it was measured, so it was not read after all
+			prefetchedBytes.addAndGet(-size);
+			return false;
+		}
+		//The reservation becomes what was actually read, in case the file changed in between
+		prefetchedBytes.addAndGet(file.size - size);
+		return true;
+	}
+}
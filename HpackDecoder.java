@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/*
+ * Turns header blocks back into header fields. It keeps the dynamic table that the client's encoder fills, so one decoder belongs to one connection and
+ * has to see every header block of it in order.
+ */
+class HpackDecoder {
+
+	private LinkedList<String[]> dynamic = new LinkedList<String[]>();	//Newest entry first
+	private int size = 0;			//Size of the dynamic table as HPACK counts it (name + value + 32 per entry)
+	private int maxSize;			//Current limit, set by the client within settingsMaxSize
+	private int settingsMaxSize;	//The SETTINGS_HEADER_TABLE_SIZE this server announced
+	private int maxListSize;		//Largest decoded header list accepted
+
+	public HpackDecoder(int tableSize, int maxListSize){
+		this.maxSize = tableSize;
+		this.settingsMaxSize = tableSize;
+		this.maxListSize = maxListSize;
+	}
+
+	/*
+	 * Decodes one complete header block into name/value pairs, in the order they were sent.
+	 */
+	public ArrayList<String[]> decode(byte[] block) throws Http2Exception{
+		ArrayList<String[]> fields = new ArrayList<String[]>();
+		int[] pos = {0};
+		int listSize = 0;
+		boolean fieldSeen = false;
+		while(pos[0] < block.length){
+			int b = block[pos[0]] & 0xff;
+			String[] field;
+			if((b & 0x80) != 0){
+				//Indexed header field
+				field = entry(readInt(block, pos, 7));
+			}else if((b & 0xc0) == 0x40){
+				//Literal header field with incremental indexing
+				field = readLiteral(block, pos, 6);
+				add(field);
+			}else if((b & 0xe0) == 0x20){
+				//Dynamic table size update, only allowed before the first field of a block
+				if(fieldSeen){
+					throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Table size update after a header field");
+				}
+				int newSize = readInt(block, pos, 5);
+				if(newSize > settingsMaxSize){
+					throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Table size update above the announced limit");
+				}
+				maxSize = newSize;
+				evict(0);
+				continue;
+			}else{
+				//Literal header field without indexing (0000) or never indexed (0001)
+				field = readLiteral(block, pos, 4);
+			}
+			fieldSeen = true;
+			listSize += field[0].length() + field[1].length() + 32;
+			if(listSize > maxListSize){
+				throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Header list too large");
+			}
+			fields.add(field);
+		}
+		return fields;
+	}
+
+	private String[] readLiteral(byte[] block, int[] pos, int prefix) throws Http2Exception{
+		int index = readInt(block, pos, prefix);
+		String name = index == 0 ? readString(block, pos) : entry(index)[0];
+		String value = readString(block, pos);
+		return new String[]{name, value};
+	}
+
+	private String[] entry(int index) throws Http2Exception{
+		if(index >= 1 && index <= Hpack.STATIC_TABLE.length){
+			return Hpack.STATIC_TABLE[index - 1];
+		}
+		int d = index - Hpack.STATIC_TABLE.length - 1;
+		if(index < 1 || d >= dynamic.size()){
+			throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Header table index "+index+" out of range");
+		}
+		return dynamic.get(d);
+	}
+
+	private void add(String[] field){
+		int entrySize = field[0].length() + field[1].length() + 32;
+		evict(entrySize);
+		//An entry larger than the whole table empties it and is not added
+		if(entrySize <= maxSize){
+			dynamic.addFirst(field);
+			size += entrySize;
+		}
+	}
+
+	//Drops the oldest entries until there is room for an entry of this size
+	private void evict(int room){
+		while(!dynamic.isEmpty() && size + room > maxSize){
+			String[] old = dynamic.removeLast();
+			size -= old[0].length() + old[1].length() + 32;
+		}
+	}
+
+	//HPACK integer with an N bit prefix (RFC 7541 5.1)
+	static int readInt(byte[] block, int[] pos, int prefix) throws Http2Exception{
+		int max = (1 << prefix) - 1;
+		int value = block[pos[0]++] & max;
+		if(value < max){
+			return value;
+		}
+		int shift = 0;
+		while(true){
+			if(pos[0] >= block.length || shift > 28){
+				throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Bad integer in a header block");
+			}
+			int b = block[pos[0]++] & 0xff;
+			//At a shift of 28 only the low three bits still fit in an int; the rest would be shifted out unnoticed
+			if(shift == 28 && (b & 0x78) != 0){
+				throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Integer overflow in a header block");
+			}
+			value += (b & 0x7f) << shift;
+			if(value < 0){
+				throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Integer overflow in a header block");
+			}
+			if((b & 0x80) == 0){
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	//HPACK string, plain or Huffman coded (RFC 7541 5.2); plain strings are taken byte for byte, like HTTP/1 header text
+	private static String readString(byte[] block, int[] pos) throws Http2Exception{
+		if(pos[0] >= block.length){
+			throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Header block ends inside a field");
+		}
+		boolean huffman = (block[pos[0]] & 0x80) != 0;
+		int length = readInt(block, pos, 7);
+		if(length > block.length - pos[0]){
+			throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "String longer than the header block");
+		}
+		String s;
+		if(huffman){
+			s = Hpack.huffmanDecode(block, pos[0], length);
+		}else{
+			char[] chars = new char[length];
+			for(int i = 0; i < length; i++){
+				chars[i] = (char) (block[pos[0] + i] & 0xff);
+			}
+			s = new String(chars);
+		}
+		pos[0] += length;
+		return s;
+	}
+}
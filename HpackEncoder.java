@@ -0,0 +1,51 @@
+import java.io.ByteArrayOutputStream;
+
+/*
+ * Turns response header fields into a header block. It never adds to the client's dynamic table: a field is sent as an index when the static table has it
+ * whole, and otherwise as a literal that is not indexed (with the name as an index when the static table knows it). That keeps the encoder free of state,
+ * so the responses of any number of streams can be encoded at the same time, and costs little since response headers are mostly different every time.
+ */
+class HpackEncoder {
+
+	public static void encode(String name, String value, ByteArrayOutputStream out){
+		int nameIndex = 0;
+		for(int i = 0; i < Hpack.STATIC_TABLE.length; i++){
+			if(Hpack.STATIC_TABLE[i][0].equals(name)){
+				if(Hpack.STATIC_TABLE[i][1].equals(value)){
+					writeInt(out, 0x80, 7, i + 1);
+					return;
+				}
+				if(nameIndex == 0){
+					nameIndex = i + 1;
+				}
+			}
+		}
+		writeInt(out, 0x00, 4, nameIndex);
+		if(nameIndex == 0){
+			writeString(out, name);
+		}
+		writeString(out, value);
+	}
+
+	static void writeInt(ByteArrayOutputStream out, int firstBits, int prefix, int value){
+		int max = (1 << prefix) - 1;
+		if(value < max){
+			out.write(firstBits | value);
+			return;
+		}
+		out.write(firstBits | max);
+		value -= max;
+		while(value >= 0x80){
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s){
+		writeInt(out, 0x00, 7, s.length());
+		for(int i = 0; i < s.length(); i++){
+			out.write(s.charAt(i));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+
+/*
+ * The request body of a stream as it arrives in DATA frames. Reading it gives the window back to the client.
+ */
+class Http2Body extends InputStream {
+	private Http2Stream stream;
+	private LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+	private int pos = 0;			//Read position in the first chunk
+	private int buffered = 0;		//Bytes received and not read yet
+	private boolean finished = false;
+	private boolean failed = false;
+
+	public Http2Body(Http2Stream stream){
+		this.stream = stream;
+	}
+
+	synchronized void offer(byte[] data){
+		if(data.length > 0){
+			chunks.add(data);
+			buffered += data.length;
+			notifyAll();
+		}
+	}
+
+	synchronized void finish(){
+		finished = true;
+		notifyAll();
+	}
+
+	synchronized void fail(){
+		failed = true;
+		notifyAll();
+	}
+
+	//Drops whatever has not been read and returns how much that was
+	synchronized int discard(){
+		int n = buffered;
+		chunks.clear();
+		buffered = 0;
+		finished = true;
+		return n;
+	}
+
+	@Override
+	public int read() throws IOException{
+		byte[] one = new byte[1];
+		int n = read(one, 0, 1);
+		return n <= 0 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException{
+		if(len == 0){
+			return 0;
+		}
+		int n;
+		synchronized(this){
+			long deadline = System.currentTimeMillis() + Http2Connection.idleTimeout;
+			while(chunks.isEmpty() && !finished && !failed){
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0){
+					throw new SocketTimeoutException("Request body stopped arriving");
+				}
+				try{
+					wait(wait);
+				}catch(InterruptedException e){
+					throw new IOException("Interrupted reading the request body");
+				}
+			}
+			if(chunks.isEmpty()){
+				if(failed){
+					throw new IOException("Stream "+stream.id+" was reset");
+				}
+				return -1;
+			}
+			byte[] first = chunks.getFirst();
+			n = Math.min(len, first.length - pos);
+			System.arraycopy(first, pos, b, off, n);
+			pos += n;
+			if(pos == first.length){
+				chunks.removeFirst();
+				pos = 0;
+			}
+			buffered -= n;
+		}
+		stream.connection.acknowledge(stream, n);
+		return n;
+	}
+
+	@Override
+	public synchronized int available(){
+		return buffered;
+	}
+}
@@ -0,0 +1,798 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/*
+ * This class speaks HTTP/2 over a plain TCP connection (h2c, RFC 9113) once a CommunicationThread has found out that the client wants it, either because
+ * the connection starts with the HTTP/2 preface (prior knowledge) or because an HTTP/1.1 request asked for "Upgrade: h2c". From then on the
+ * CommunicationThread's thread only reads frames: every request (stream) is handed to a thread of the stream pool, which serves it through the
+ * Http2Origin exactly like an HTTP/1 request would be served, and writes its response as frames on the same connection. So one connection carries many
+ * requests at once, and a slow one does not hold up the others.
+ *
+ * Both directions are flow controlled. Response data is only sent while the client's windows allow it, and the client's request bodies are only
+ * acknowledged (WINDOW_UPDATE) as the streams read them, so a request that is slow to read its body slows down only its own client.
+ *
+ * http2.enabled             - accept h2c at all (default true)
+ * http2.maxConcurrentStreams - requests one connection may have open at once (default 100)
+ * http2.initialWindowSize   - how much request body a stream may send before it has to wait for the server to read it (default 65535)
+ * http2.maxFrameSize        - the largest frame the server accepts (default 16384)
+ * http2.streamThreads       - threads that serve streams, for all connections together (default 200)
+ * http2.idleTimeout         - how long a connection without open streams is kept, in ms (default 30000); checked on the TimerWheel
+ */
+class Http2Connection {
+
+	//Frame types
+	static final int DATA = 0x0;
+	static final int HEADERS = 0x1;
+	static final int PRIORITY = 0x2;
+	static final int RST_STREAM = 0x3;
+	static final int SETTINGS = 0x4;
+	static final int PUSH_PROMISE = 0x5;
+	static final int PING = 0x6;
+	static final int GOAWAY = 0x7;
+	static final int WINDOW_UPDATE = 0x8;
+	static final int CONTINUATION = 0x9;
+
+	//Frame flags
+	static final int FLAG_END_STREAM = 0x1;
+	static final int FLAG_ACK = 0x1;
+	static final int FLAG_END_HEADERS = 0x4;
+	static final int FLAG_PADDED = 0x8;
+	static final int FLAG_PRIORITY = 0x20;
+
+	//Error codes
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int INTERNAL_ERROR = 0x2;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int STREAM_CLOSED = 0x5;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+
+	//Settings
+	static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	static final int SETTINGS_ENABLE_PUSH = 0x2;
+	static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	//What follows "PRI * HTTP/2.0" in the preface, once the CommunicationThread has read that much as a request line
+	static final byte[] PREFACE_REST = {'\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'};
+	static final String PREFACE_LINE = "PRI * HTTP/2.0";
+
+	static boolean enabled = true;
+	static int maxConcurrentStreams = 100;
+	static int initialWindowSize = 65535;
+	static int maxFrameSize = 16384;
+	static long idleTimeout = 30000;
+	//How much request body the whole connection may have unread, across all its streams
+	static final int CONNECTION_WINDOW = 1024 * 1024;
+
+	private static ThreadPoolExecutor streamPool;
+
+	public static void configure(){
+		enabled = ServerConfig.getBoolean("http2.enabled", enabled);
+		maxConcurrentStreams = Math.max(1, ServerConfig.getInt("http2.maxConcurrentStreams", maxConcurrentStreams));
+		initialWindowSize = Math.min(Integer.MAX_VALUE, Math.max(1024, ServerConfig.getInt("http2.initialWindowSize", initialWindowSize)));
+		maxFrameSize = Math.min(16777215, Math.max(16384, ServerConfig.getInt("http2.maxFrameSize", maxFrameSize)));
+		idleTimeout = ServerConfig.getLong("http2.idleTimeout", idleTimeout);
+		streamPool = new ThreadPoolExecutor(0, Math.max(1, ServerConfig.getInt("http2.streamThreads", 200)), 10, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		ServerMetrics.gauge("h2_streams_active", new DoubleSupplier(){
+			public double getAsDouble(){
+				return streamPool.getActiveCount();
+			}
+		});
+	}
+
+	Socket socket;
+	RequestReader in;
+	OutputStream out;
+	String serverName;
+	String serverPort;
+
+	private HpackDecoder decoder;
+	private ConcurrentHashMap<Integer, Http2Stream> streams = new ConcurrentHashMap<Integer, Http2Stream>();
+	private int lastStreamId = 0;
+	private boolean goingAway = false;
+	volatile boolean closed = false;
+	private volatile long lastActivity = System.currentTimeMillis();
+
+	//The client's settings, as far as the server has to follow them
+	volatile int peerMaxFrameSize = 16384;
+	private int peerInitialWindow = 65535;		//Guarded by this
+
+	private long sendWindow = 65535;			//Connection window for response data, guarded by this
+	private int recvWindow = CONNECTION_WINDOW;	//Connection window for request data, guarded by this
+	private int recvUnacked = 0;				//Request data read by streams but not yet acknowledged to the client, guarded by this
+
+	private final Object writeLock = new Object();
+
+	public Http2Connection(Socket socket, RequestReader in, OutputStream out, String serverName, String serverPort){
+		this.socket = socket;
+		this.in = in;
+		this.out = out;
+		this.serverName = serverName;
+		this.serverPort = serverPort;
+		this.decoder = new HpackDecoder(4096, CommunicationThread.maxHeaderBytes);
+	}
+
+	/*
+	 * Runs the connection until it is closed. For prior knowledge the request line of the preface has been read already. For an upgrade the 101 has been
+	 * sent, upgradedRequest holds the header fields of the request that came with it (to be answered on stream 1) and settings is the client's HTTP2-Settings header.
+	 */
+	public void serve(ArrayList<String[]> upgradedRequest, String settings){
+		ServerMetrics.increment(upgradedRequest == null ? "h2_connections_prior_knowledge" : "h2_connections_upgraded");
+		try{
+			//Frames may be far apart on a healthy connection, so reads have no deadline; the idle check on the TimerWheel ends a connection that is quiet
+			in.readTimeout = 0;
+			scheduleIdleCheck(idleTimeout);
+			writeSettings();
+			//The connection window starts at 65535 like every other, and is raised right away
+			writeWindowUpdate(0, CONNECTION_WINDOW - 65535);
+			if(upgradedRequest != null){
+				if(settings != null){
+					applySettings(Base64.getUrlDecoder().decode(settings.trim()));
+				}
+				//The request that asked for the upgrade is stream 1, and its body (if any) was part of the HTTP/1.1 request
+				Http2Stream upgraded = new Http2Stream(this, 1, upgradedRequest);
+				upgraded.sendWindow = peerInitialWindow;
+				upgraded.remoteClosed = true;
+				upgraded.body.finish();
+				readPreface((PREFACE_LINE+"\r\n").getBytes("ISO-8859-1"));
+				readPreface(PREFACE_REST);
+				lastStreamId = 1;
+				streams.put(1, upgraded);
+				dispatch(upgraded);
+			}else{
+				readPreface(PREFACE_REST);
+			}
+			boolean first = true;
+			while(!closed){
+				Frame frame = readFrame();
+				lastActivity = System.currentTimeMillis();
+				if(first && frame.type != SETTINGS){
+					throw new Http2Exception(PROTOCOL_ERROR, "The client preface must end with SETTINGS");
+				}
+				first = false;
+				handleFrame(frame);
+			}
+		}catch(Http2Exception e){
+			ServerMetrics.increment("h2_protocol_errors");
+			goAway(e.code);
+		}catch(IllegalArgumentException e){
+			//HTTP2-Settings that are not base64url
+			goAway(PROTOCOL_ERROR);
+		}catch(IOException e){
+			//The client went away
+		}finally{
+			shutDown();
+		}
+	}
+
+	/*
+	 * Ends the connection once it has had no open streams and no frames for the idle timeout, or has no open streams left after the client said GOAWAY.
+	 * This runs on the TimerWheel; with no streams open nothing else is writing, so the GOAWAY is not held up behind a response. Closing the socket ends
+	 * the reading thread's blocked read.
+	 */
+	private void scheduleIdleCheck(long delay){
+		TimerWheel.shared.schedule(new Runnable(){
+			public void run(){
+				if(closed){
+					return;
+				}
+				long quiet = System.currentTimeMillis() - lastActivity;
+				if(streams.isEmpty() && (goingAway || quiet >= idleTimeout)){
+					goAway(NO_ERROR);
+					closeSocket();
+					return;
+				}
+				scheduleIdleCheck(streams.isEmpty() ? idleTimeout - quiet : idleTimeout);
+			}
+		}, delay);
+	}
+
+	private void readPreface(byte[] expected) throws IOException, Http2Exception{
+		byte[] got = new byte[expected.length];
+		readFully(got, 0, got.length);
+		for(int i = 0; i < expected.length; i++){
+			if(got[i] != expected[i]){
+				throw new Http2Exception(PROTOCOL_ERROR, "Bad connection preface");
+			}
+		}
+	}
+
+	static class Frame {
+		int type;
+		int flags;
+		int streamId;
+		byte[] payload;
+	}
+
+	/*
+	 * Reads the next frame, waiting for it as long as it takes.
+	 */
+	private Frame readFrame() throws IOException, Http2Exception{
+		int b0 = in.read();
+		if(b0 < 0){
+			throw new IOException("Connection closed");
+		}
+		byte[] head = new byte[9];
+		head[0] = (byte) b0;
+		readFully(head, 1, 8);
+		int length = ((head[0] & 0xff) << 16) | ((head[1] & 0xff) << 8) | (head[2] & 0xff);
+		Frame frame = new Frame();
+		frame.type = head[3] & 0xff;
+		frame.flags = head[4] & 0xff;
+		frame.streamId = readInt(head, 5) & 0x7fffffff;
+		if(length > maxFrameSize){
+			throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of "+length+" bytes");
+		}
+		frame.payload = new byte[length];
+		readFully(frame.payload, 0, length);
+		return frame;
+	}
+
+	//Reads exactly len bytes
+	private void readFully(byte[] b, int off, int len) throws IOException{
+		while(len > 0){
+			int n = in.read(b, off, len);
+			if(n < 0){
+				throw new IOException("Connection closed inside a frame");
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void handleFrame(Frame frame) throws IOException, Http2Exception{
+		switch(frame.type){
+		case DATA:
+			handleData(frame);
+			break;
+		case HEADERS:
+			handleHeaders(frame);
+			break;
+		case PRIORITY:
+			if(frame.streamId == 0){
+				throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0");
+			}
+			if(frame.payload.length != 5){
+				resetStream(frame.streamId, FRAME_SIZE_ERROR);
+			}
+			//Everything is served as it comes, so priorities are not used
+			break;
+		case RST_STREAM:
+			if(frame.streamId == 0 || frame.payload.length != 4){
+				throw new Http2Exception(frame.streamId == 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR, "Bad RST_STREAM");
+			}
+			if(frame.streamId > lastStreamId){
+				throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+			}
+			Http2Stream reset = streams.get(frame.streamId);
+			if(reset != null){
+				reset.abort();
+				wakeWriters();
+			}
+			break;
+		case SETTINGS:
+			if(frame.streamId != 0){
+				throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+			}
+			if((frame.flags & FLAG_ACK) != 0){
+				if(frame.payload.length != 0){
+					throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ack with a payload");
+				}
+				break;
+			}
+			applySettings(frame.payload);
+			writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+			break;
+		case PUSH_PROMISE:
+			throw new Http2Exception(PROTOCOL_ERROR, "Clients can not push");
+		case PING:
+			if(frame.streamId != 0 || frame.payload.length != 8){
+				throw new Http2Exception(frame.streamId != 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR, "Bad PING");
+			}
+			if((frame.flags & FLAG_ACK) == 0){
+				writeFrame(PING, FLAG_ACK, 0, frame.payload, 0, 8);
+			}
+			break;
+		case GOAWAY:
+			//The client starts nothing new; the streams it already started are still answered
+			goingAway = true;
+			break;
+		case WINDOW_UPDATE:
+			handleWindowUpdate(frame);
+			break;
+		case CONTINUATION:
+			throw new Http2Exception(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+		default:
+			//Unknown frame types are ignored
+			break;
+		}
+	}
+
+	private void handleData(Frame frame) throws IOException, Http2Exception{
+		if(frame.streamId == 0){
+			throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+		}
+		int length = frame.payload.length;
+		//Flow control counts the whole frame, padding included
+		synchronized(this){
+			recvWindow -= length;
+			if(recvWindow < 0){
+				throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window exceeded");
+			}
+		}
+		int[] bounds = unpad(frame);
+		Http2Stream stream = streams.get(frame.streamId);
+		if(stream == null || stream.remoteClosed){
+			if(frame.streamId > lastStreamId){
+				throw new Http2Exception(PROTOCOL_ERROR, "DATA on an idle stream");
+			}
+			//A stream that is finished or was reset; the data is dropped, but still given back to the connection window
+			acknowledge(null, length);
+			if(stream != null){
+				resetStream(frame.streamId, STREAM_CLOSED);
+			}
+			return;
+		}
+		if(!stream.receive(length)){
+			acknowledge(null, length);
+			resetStream(frame.streamId, FLOW_CONTROL_ERROR);
+			stream.abort();
+			return;
+		}
+		//Padding is given back right away; the data when the stream reads it
+		acknowledge(null, length - bounds[1]);
+		byte[] data = new byte[bounds[1]];
+		System.arraycopy(frame.payload, bounds[0], data, 0, bounds[1]);
+		stream.body.offer(data);
+		if((frame.flags & FLAG_END_STREAM) != 0){
+			stream.remoteClosed = true;
+			stream.body.finish();
+		}
+	}
+
+	//Returns the offset and length of the data in a frame that may be padded
+	private int[] unpad(Frame frame) throws Http2Exception{
+		int off = 0;
+		int len = frame.payload.length;
+		if((frame.flags & FLAG_PADDED) != 0){
+			if(len < 1){
+				throw new Http2Exception(PROTOCOL_ERROR, "Padded frame without a pad length");
+			}
+			int pad = frame.payload[0] & 0xff;
+			off = 1;
+			len -= 1 + pad;
+			if(len < 0){
+				throw new Http2Exception(PROTOCOL_ERROR, "Padding longer than the frame");
+			}
+		}
+		return new int[]{off, len};
+	}
+
+	private void handleHeaders(Frame frame) throws IOException, Http2Exception{
+		int id = frame.streamId;
+		if(id == 0){
+			throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+		}
+		int[] bounds = unpad(frame);
+		int off = bounds[0];
+		int len = bounds[1];
+		if((frame.flags & FLAG_PRIORITY) != 0){
+			if(len < 5){
+				throw new Http2Exception(PROTOCOL_ERROR, "HEADERS too short for its priority");
+			}
+			off += 5;
+			len -= 5;
+		}
+		ByteArrayOutputStream block = new ByteArrayOutputStream(len);
+		block.write(frame.payload, off, len);
+		int flags = frame.flags;
+		while((flags & FLAG_END_HEADERS) == 0){
+			Frame next = readFrame();
+			if(next.type != CONTINUATION || next.streamId != id){
+				throw new Http2Exception(PROTOCOL_ERROR, "Header block interrupted");
+			}
+			if(block.size() + next.payload.length > 2 * CommunicationThread.maxHeaderBytes){
+				throw new Http2Exception(PROTOCOL_ERROR, "Header block too large");
+			}
+			block.write(next.payload, 0, next.payload.length);
+			flags = (flags & ~FLAG_END_HEADERS) | (next.flags & FLAG_END_HEADERS);
+		}
+		//The block has to be decoded even if the stream is refused, or the client's and the server's tables would no longer agree
+		ArrayList<String[]> fields = decoder.decode(block.toByteArray());
+		boolean endStream = (frame.flags & FLAG_END_STREAM) != 0;
+
+		Http2Stream existing = streams.get(id);
+		if(existing != null){
+			//Trailers; they must end the stream, and nothing is done with them
+			if(existing.remoteClosed || !endStream){
+				resetStream(id, existing.remoteClosed ? STREAM_CLOSED : PROTOCOL_ERROR);
+				existing.abort();
+				return;
+			}
+			existing.remoteClosed = true;
+			existing.body.finish();
+			return;
+		}
+		if(id <= lastStreamId || (id & 1) == 0){
+			throw new Http2Exception(PROTOCOL_ERROR, "Stream id "+id+" is not new");
+		}
+		lastStreamId = id;
+		if(goingAway){
+			return;
+		}
+		ServerMetrics.increment("h2_streams");
+		if(streams.size() >= maxConcurrentStreams){
+			ServerMetrics.increment("h2_streams_refused");
+			resetStream(id, REFUSED_STREAM);
+			return;
+		}
+		Http2Stream stream = new Http2Stream(this, id, fields);
+		synchronized(this){
+			stream.sendWindow = peerInitialWindow;
+		}
+		if(!stream.validRequest()){
+			resetStream(id, PROTOCOL_ERROR);
+			return;
+		}
+		if(endStream){
+			stream.remoteClosed = true;
+			stream.body.finish();
+		}
+		streams.put(id, stream);
+		dispatch(stream);
+	}
+
+	private void dispatch(final Http2Stream stream) throws IOException{
+		try{
+			streamPool.execute(new Runnable(){
+				public void run(){
+					runStream(stream);
+				}
+			});
+		}catch(RejectedExecutionException e){
+			ServerMetrics.increment("h2_streams_refused");
+			streams.remove(stream.id);
+			resetStream(stream.id, REFUSED_STREAM);
+		}
+	}
+
+	/*
+	 * Serves one stream on a thread of the stream pool, then makes sure it is ended and forgotten.
+	 */
+	private void runStream(Http2Stream stream){
+		RequestSample sample = RequestAccounting.start(false);
+		Http2Exchange exchange = new Http2Exchange(stream);
+		if(sample != null){
+			sample.method = exchange.method;
+		}
+		try{
+			Http2Origin.serve(exchange);
+			exchange.finish();
+			RequestAccounting.finish(sample, exchange.code, exchange.headers.get("content-type"));
+		}catch(Exception e){
+			if(!stream.reset && !closed){
+				if(exchange.isCommitted()){
+					try{
+						resetStream(stream.id, INTERNAL_ERROR);
+					}catch(IOException e1){
+						//The connection is going away anyway
+					}
+				}else{
+					try{
+						exchange.sendStatus(500, "Internal Server Error");
+					}catch(IOException e1){
+						//The connection is going away anyway
+					}
+				}
+			}
+		}finally{
+			streams.remove(stream.id);
+			//A request body that was not read to the end is given back to the connection window, and the client is told to stop sending it
+			int unread = stream.body.discard();
+			try{
+				if(!stream.remoteClosed && !stream.reset && !closed){
+					resetStream(stream.id, NO_ERROR);
+				}
+				acknowledge(null, unread);
+			}catch(IOException e){
+				//The connection is going away anyway
+			}
+			if(goingAway && streams.isEmpty()){
+				closeSocket();
+			}
+		}
+	}
+
+	private void handleWindowUpdate(Frame frame) throws IOException, Http2Exception{
+		if(frame.payload.length != 4){
+			throw new Http2Exception(FRAME_SIZE_ERROR, "Bad WINDOW_UPDATE");
+		}
+		int increment = readInt(frame.payload, 0) & 0x7fffffff;
+		if(frame.streamId == 0){
+			if(increment == 0){
+				throw new Http2Exception(PROTOCOL_ERROR, "Zero WINDOW_UPDATE");
+			}
+			synchronized(this){
+				sendWindow += increment;
+				if(sendWindow > Integer.MAX_VALUE){
+					throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+				}
+				notifyAll();
+			}
+			return;
+		}
+		Http2Stream stream = streams.get(frame.streamId);
+		if(stream == null){
+			return;
+		}
+		if(increment == 0){
+			resetStream(frame.streamId, PROTOCOL_ERROR);
+			stream.abort();
+			wakeWriters();
+			return;
+		}
+		boolean overflow;
+		synchronized(this){
+			stream.sendWindow += increment;
+			overflow = stream.sendWindow > Integer.MAX_VALUE;
+			notifyAll();
+		}
+		if(overflow){
+			resetStream(frame.streamId, FLOW_CONTROL_ERROR);
+			stream.abort();
+			wakeWriters();
+		}
+	}
+
+	private void applySettings(byte[] payload) throws Http2Exception{
+		if(payload.length % 6 != 0){
+			throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS of "+payload.length+" bytes");
+		}
+		for(int i = 0; i < payload.length; i += 6){
+			int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+			long value = readInt(payload, i + 2) & 0xffffffffL;
+			switch(id){
+			case SETTINGS_ENABLE_PUSH:
+				if(value > 1){
+					throw new Http2Exception(PROTOCOL_ERROR, "Bad ENABLE_PUSH");
+				}
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if(value > Integer.MAX_VALUE){
+					throw new Http2Exception(FLOW_CONTROL_ERROR, "Bad INITIAL_WINDOW_SIZE");
+				}
+				synchronized(this){
+					//Every open stream's window moves by the difference, and may even go below zero
+					long delta = value - peerInitialWindow;
+					peerInitialWindow = (int) value;
+					for(Http2Stream s : streams.values()){
+						s.sendWindow += delta;
+					}
+					notifyAll();
+				}
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				if(value < 16384 || value > 16777215){
+					throw new Http2Exception(PROTOCOL_ERROR, "Bad MAX_FRAME_SIZE");
+				}
+				peerMaxFrameSize = (int) value;
+				break;
+			default:
+				//HEADER_TABLE_SIZE does not matter since the encoder never uses the dynamic table, and the other limits are the client's business
+				break;
+			}
+		}
+	}
+
+	private void writeSettings() throws IOException{
+		byte[] payload = new byte[24];
+		putSetting(payload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+		putSetting(payload, 6, SETTINGS_INITIAL_WINDOW_SIZE, initialWindowSize);
+		putSetting(payload, 12, SETTINGS_MAX_FRAME_SIZE, maxFrameSize);
+		putSetting(payload, 18, SETTINGS_MAX_HEADER_LIST_SIZE, CommunicationThread.maxHeaderBytes);
+		writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+	}
+
+	private static void putSetting(byte[] payload, int at, int id, int value){
+		payload[at] = (byte) (id >>> 8);
+		payload[at + 1] = (byte) id;
+		putInt(payload, at + 2, value);
+	}
+
+	/*
+	 * Called as a stream reads its request body (and for data that will never be read). The client gets its window back in batches of half a window, so
+	 * that not every read costs a frame.
+	 */
+	void acknowledge(Http2Stream stream, int n) throws IOException{
+		if(n <= 0){
+			return;
+		}
+		int connectionUpdate = 0;
+		synchronized(this){
+			recvUnacked += n;
+			if(recvUnacked >= CONNECTION_WINDOW / 2){
+				connectionUpdate = recvUnacked;
+				recvUnacked = 0;
+				recvWindow += connectionUpdate;
+			}
+		}
+		if(connectionUpdate > 0){
+			writeWindowUpdate(0, connectionUpdate);
+		}
+		if(stream != null && !stream.remoteClosed){
+			int streamUpdate = stream.consumed(n, initialWindowSize / 2);
+			if(streamUpdate > 0){
+				writeWindowUpdate(stream.id, streamUpdate);
+			}
+		}
+	}
+
+	private void writeWindowUpdate(int streamId, int increment) throws IOException{
+		byte[] payload = new byte[4];
+		putInt(payload, 0, increment);
+		writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+	}
+
+	void resetStream(int streamId, int code) throws IOException{
+		byte[] payload = new byte[4];
+		putInt(payload, 0, code);
+		writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+	}
+
+	/*
+	 * Sends a header block on a stream, split into HEADERS and CONTINUATION frames that nothing else may come between.
+	 */
+	void writeHeaders(Http2Stream stream, ArrayList<String[]> fields, boolean endStream) throws IOException{
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		for(String[] field : fields){
+			HpackEncoder.encode(field[0], field[1], block);
+		}
+		byte[] bytes = block.toByteArray();
+		int max = peerMaxFrameSize;
+		synchronized(writeLock){
+			checkOpen(stream);
+			int off = 0;
+			boolean firstFrame = true;
+			do{
+				int n = Math.min(max, bytes.length - off);
+				boolean last = off + n == bytes.length;
+				int flags = (last ? FLAG_END_HEADERS : 0) | (firstFrame && endStream ? FLAG_END_STREAM : 0);
+				writeFrame(firstFrame ? HEADERS : CONTINUATION, flags, stream.id, bytes, off, n);
+				off += n;
+				firstFrame = false;
+			}while(off < bytes.length);
+		}
+	}
+
+	/*
+	 * Sends response data on a stream, waiting for the client's windows as needed. With endStream the last frame ends the stream.
+	 */
+	void writeData(Http2Stream stream, byte[] b, int off, int len, boolean endStream) throws IOException{
+		if(len == 0){
+			if(endStream){
+				synchronized(writeLock){
+					checkOpen(stream);
+					writeFrame(DATA, FLAG_END_STREAM, stream.id, b, off, 0);
+				}
+			}
+			return;
+		}
+		while(len > 0){
+			int n = 0;
+			synchronized(this){
+				long waitUntil = System.currentTimeMillis() + idleTimeout;
+				while(!stream.reset && !closed && (sendWindow <= 0 || stream.sendWindow <= 0)){
+					long wait = waitUntil - System.currentTimeMillis();
+					if(wait <= 0){
+						break;
+					}
+					try{
+						wait(wait);
+					}catch(InterruptedException e){
+						throw new IOException("Interrupted waiting for the flow control window");
+					}
+				}
+				if(!stream.reset && !closed && sendWindow > 0 && stream.sendWindow > 0){
+					n = (int) Math.min(Math.min(len, peerMaxFrameSize), Math.min(sendWindow, stream.sendWindow));
+					sendWindow -= n;
+					stream.sendWindow -= n;
+				}
+			}
+			checkOpen(stream);
+			if(n == 0){
+				//The client has not opened its window for a long time
+				stream.abort();
+				resetStream(stream.id, CANCEL);
+				throw new IOException("Flow control window stayed closed");
+			}
+			boolean last = n == len;
+			synchronized(writeLock){
+				checkOpen(stream);
+				writeFrame(DATA, last && endStream ? FLAG_END_STREAM : 0, stream.id, b, off, n);
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void checkOpen(Http2Stream stream) throws IOException{
+		if(stream.reset || closed){
+			throw new IOException("Stream "+stream.id+" was reset");
+		}
+	}
+
+	private synchronized void wakeWriters(){
+		notifyAll();
+	}
+
+	void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len) throws IOException{
+		byte[] head = new byte[9];
+		head[0] = (byte) (len >>> 16);
+		head[1] = (byte) (len >>> 8);
+		head[2] = (byte) len;
+		head[3] = (byte) type;
+		head[4] = (byte) flags;
+		putInt(head, 5, streamId);
+		synchronized(writeLock){
+			out.write(head);
+			out.write(payload, off, len);
+			out.flush();
+		}
+	}
+
+	private void goAway(int code){
+		byte[] payload = new byte[8];
+		putInt(payload, 0, lastStreamId);
+		putInt(payload, 4, code);
+		try{
+			writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+		}catch(IOException e){
+			//Nothing more to say to this client anyway
+		}
+	}
+
+	private void shutDown(){
+		closed = true;
+		for(Http2Stream s : streams.values()){
+			s.abort();
+		}
+		wakeWriters();
+		closeSocket();
+	}
+
+	private void closeSocket(){
+		closed = true;
+		try{
+			socket.close();
+		}catch(IOException e){
+			System.err.println("IOException in closing an HTTP/2 connection");
+		}
+	}
+
+	static int readInt(byte[] b, int at){
+		return ((b[at] & 0xff) << 24) | ((b[at + 1] & 0xff) << 16) | ((b[at + 2] & 0xff) << 8) | (b[at + 3] & 0xff);
+	}
+
+	static void putInt(byte[] b, int at, int value){
+		b[at] = (byte) (value >>> 24);
+		b[at + 1] = (byte) (value >>> 16);
+		b[at + 2] = (byte) (value >>> 8);
+		b[at + 3] = (byte) value;
+	}
+}
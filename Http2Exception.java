@@ -0,0 +1,12 @@
+/*
+ * A protocol error, with the HTTP/2 error code that the connection is closed with.
+ */
+class Http2Exception extends Exception {
+	private static final long serialVersionUID = 1L;
+	int code;
+
+	public Http2Exception(int code, String message){
+		super(message);
+		this.code = code;
+	}
+}
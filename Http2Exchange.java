@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+/*
+ * One HTTP/2 stream seen as a request and its response. The response side is what in-process handlers get as their HandlerResponse, and what the
+ * Origin and the ReverseProxy write to as an OriginResponse; request() is the HandlerRequest (the two interfaces both have a body(), so one object
+ * cannot be both). Header names are lower case on the wire, so they are looked up without regard to case; the response is sent as a HEADERS frame
+ * when the body is first written (or when the exchange is finished) and the body as DATA frames of up to one frame each.
+ */
+class Http2Exchange implements OriginResponse {
+	Http2Stream stream;
+	String method;
+	String target;		//The :path as it was sent, query included
+
+	int code = 200;
+	LinkedHashMap<String, String> headers = new LinkedHashMap<String, String>();
+	ArrayList<String[]> repeated = new ArrayList<String[]>();	//Fields added next to one of the same name
+	long contentLength = -1;
+	boolean committed = false;
+	boolean ended = false;
+	private Http2BodyStream bodyStream;
+
+	public Http2Exchange(Http2Stream stream){
+		this.stream = stream;
+		this.method = stream.field(":method");
+		this.target = stream.field(":path");
+	}
+
+	public String method(){
+		return method;
+	}
+
+	public String path(){
+		int q = target.indexOf('?');
+		return q < 0 ? target : target.substring(0, q);
+	}
+
+	public String query(){
+		int q = target.indexOf('?');
+		return q < 0 ? null : target.substring(q + 1);
+	}
+
+	public String version(){
+		return "HTTP/2.0";
+	}
+
+	//Host is :authority in HTTP/2, and the two are treated as one
+	public String header(String name){
+		String lower = name.toLowerCase();
+		String value = stream.field(lower);
+		if(value == null && lower.equals("host")){
+			value = stream.field(":authority");
+		}
+		return value;
+	}
+
+	public List<String> headerLines(){
+		ArrayList<String> lines = new ArrayList<String>();
+		if(stream.field("host") == null && stream.field(":authority") != null){
+			lines.add("host: "+stream.field(":authority"));
+		}
+		for(String[] f : stream.fields){
+			if(!f[0].startsWith(":")){
+				lines.add(f[0]+": "+f[1]);
+			}
+		}
+		return lines;
+	}
+
+	public InputStream requestBody(){
+		return stream.body;
+	}
+
+	public String remoteAddress(){
+		return stream.connection.socket.getInetAddress() == null ? "unknown" : stream.connection.socket.getInetAddress().getHostAddress();
+	}
+
+	public void setStatus(int code, String reason){
+		checkNotCommitted();
+		this.code = code;
+	}
+
+	//Fields that only mean something on an HTTP/1 connection are not allowed in HTTP/2 and are dropped
+	public void setHeader(String name, String value){
+		checkNotCommitted();
+		String lower = name.toLowerCase();
+		if(lower.equals("content-length") || lower.equals("transfer-encoding") || lower.equals("connection") || lower.equals("keep-alive") || lower.equals("upgrade") || lower.equals("proxy-connection")){
+			return;
+		}
+		headers.put(lower, value);
+	}
+
+	public void addHeader(String name, String value){
+		String lower = name.toLowerCase();
+		if(!headers.containsKey(lower)){
+			setHeader(name, value);
+			return;
+		}
+		checkNotCommitted();
+		repeated.add(new String[]{lower, value});
+	}
+
+	public void setContentLength(long length){
+		checkNotCommitted();
+		this.contentLength = length;
+	}
+
+	public boolean isCommitted(){
+		return committed;
+	}
+
+	public OutputStream body() throws IOException{
+		if(bodyStream == null){
+			bodyStream = new Http2BodyStream(this);
+		}
+		return bodyStream;
+	}
+
+	public HandlerRequest request(){
+		final Http2Exchange ex = this;
+		return new HandlerRequest(){
+			public String method(){
+				return ex.method();
+			}
+			public String path(){
+				return ex.path();
+			}
+			public String query(){
+				return ex.query();
+			}
+			public String version(){
+				return ex.version();
+			}
+			public String header(String name){
+				return ex.header(name);
+			}
+			public List<String> headerLines(){
+				return ex.headerLines();
+			}
+			public InputStream body(){
+				return ex.requestBody();
+			}
+			public String remoteAddress(){
+				return ex.remoteAddress();
+			}
+		};
+	}
+
+	private void checkNotCommitted(){
+		if(committed){
+			throw new IllegalStateException("The response headers have already been sent");
+		}
+	}
+
+	//A HEAD response and the statuses that never have a body end with the headers
+	boolean bodyless(){
+		return method.equals("HEAD") || code == 204 || code == 304 || (code >= 100 && code < 200);
+	}
+
+	void commit(boolean endStream) throws IOException{
+		committed = true;
+		ArrayList<String[]> fields = new ArrayList<String[]>();
+		fields.add(new String[]{":status", String.valueOf(code)});
+		for(Map.Entry<String, String> h : headers.entrySet()){
+			fields.add(new String[]{h.getKey(), h.getValue()});
+		}
+		fields.addAll(repeated);
+		if(contentLength >= 0 && code != 204 && code != 304){
+			fields.add(new String[]{"content-length", String.valueOf(contentLength)});
+		}
+		stream.connection.writeHeaders(stream, fields, endStream);
+		if(endStream){
+			ended = true;
+		}
+	}
+
+	/*
+	 * Sends a response that has no body, like writeStatus does for HTTP/1.
+	 */
+	public void sendStatus(int code, String reason) throws IOException{
+		setStatus(code, reason);
+		setContentLength(0);
+		finish();
+	}
+
+	/*
+	 * Ends the response: whatever is still buffered is sent and the stream is ended, with the headers alone if nothing was written.
+	 */
+	void finish() throws IOException{
+		if(ended){
+			return;
+		}
+		if(!committed){
+			commit(true);
+			return;
+		}
+		if(bodyStream != null){
+			bodyStream.close();
+		}else{
+			stream.connection.writeData(stream, new byte[0], 0, 0, true);
+			ended = true;
+		}
+	}
+}
+
+/*
+ * The response body of an Http2Exchange. Writes are collected up to one frame and then sent as DATA, so that small writes do not each cost a frame.
+ */
+class Http2BodyStream extends OutputStream {
+	private Http2Exchange exchange;
+	private byte[] buffer = new byte[16384];
+	private int count = 0;
+
+	public Http2BodyStream(Http2Exchange exchange){
+		this.exchange = exchange;
+	}
+
+	@Override
+	public void write(int b) throws IOException{
+		write(new byte[]{(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException{
+		if(!exchange.committed){
+			exchange.commit(exchange.bodyless());
+		}
+		if(exchange.bodyless()){
+			return;
+		}
+		if(exchange.ended){
+			throw new IOException("The response has already ended");
+		}
+		if(count + len > buffer.length){
+			send(false);
+		}
+		if(len >= buffer.length){
+			exchange.stream.connection.writeData(exchange.stream, b, off, len, false);
+			return;
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	@Override
+	public void flush() throws IOException{
+		if(!exchange.committed){
+			exchange.commit(exchange.bodyless());
+		}
+		if(!exchange.ended){
+			send(false);
+		}
+	}
+
+	@Override
+	public void close() throws IOException{
+		if(exchange.ended){
+			return;
+		}
+		if(!exchange.committed){
+			exchange.commit(true);
+			return;
+		}
+		send(true);
+		exchange.ended = true;
+	}
+
+	private void send(boolean endStream) throws IOException{
+		if(count > 0 || endStream){
+			exchange.stream.connection.writeData(exchange.stream, buffer, 0, count, endStream);
+			count = 0;
+		}
+	}
+}
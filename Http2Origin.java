@@ -0,0 +1,58 @@
+import java.io.IOException;
+
+/*
+ * This class serves HTTP/2 requests the way the CommunicationThread serves HTTP/1 requests, in the same order: proxy routes, in-process handlers, then the
+ * method checks and the bulkhead, in front of the Origin, which serves the pack, the files and the scripts for both. The exchange is the response for
+ * all of them, so nothing here knows more about a response than its status; the bodies of proxied requests and responses are streamed through it like
+ * any other.
+ */
+class Http2Origin {
+
+	public static void serve(Http2Exchange ex) throws IOException{
+		ServerMetrics.increment("requests_total");
+		String method = ex.method();
+		try{
+			if(ReverseProxy.instance != null){
+				ProxyRoute route = ReverseProxy.instance.match(ex.target);
+				if(route != null){
+					ReverseProxy.instance.forward(route, ex.request(), ex);
+					return;
+				}
+			}
+			if(RouteTrie.routes != null){
+				HttpHandler handler = RouteTrie.routes.match(ex.path());
+				if(handler != null){
+					handler.handle(ex.request(), ex);
+					return;
+				}
+			}
+			if(!method.equals("GET") && !method.equals("HEAD") && !method.equals("POST")){
+				ex.sendStatus(501, "Not Implemented");
+				return;
+			}
+			if(method.equals("POST") && !ex.path().contains(".cgi")){
+				ex.sendStatus(405, "Method Not Allowed");
+				return;
+			}
+
+			Bulkhead bulkhead = Bulkhead.classify(method, ex.header("if-modified-since") != null);
+			long since = System.nanoTime();
+			if(!bulkhead.enter()){
+				ex.sendStatus(503, "Service Unavailable");
+				return;
+			}
+			try{
+				Origin.serve(ex.request(), ex, ex.stream.connection.serverName, ex.stream.connection.serverPort);
+			}finally{
+				bulkhead.leave();
+				AdaptivePool.record(System.nanoTime() - since);
+			}
+		}catch(BodyTooLargeException e){
+			ServerMetrics.increment(ServerMetrics.labelled("limit_rejections", "limit", "body"));
+			if(ex.isCommitted()){
+				throw e;
+			}
+			ex.sendStatus(413, "Payload Too Large");
+		}
+	}
+}
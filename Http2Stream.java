@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+
+/*
+ * One request/response exchange on an HTTP/2 connection. The windows are guarded by the connection.
+ */
+class Http2Stream {
+	Http2Connection connection;
+	int id;
+	ArrayList<String[]> fields;
+	Http2Body body;
+	long sendWindow;				//How much response data the client takes on this stream right now
+	private int recvWindow;			//How much request data the client may still send on this stream
+	private int recvUnacked = 0;	//Request data read but not yet acknowledged
+	volatile boolean remoteClosed = false;
+	volatile boolean reset = false;
+
+	public Http2Stream(Http2Connection connection, int id, ArrayList<String[]> fields){
+		this.connection = connection;
+		this.id = id;
+		this.fields = fields;
+		this.recvWindow = Http2Connection.initialWindowSize;
+		this.body = new Http2Body(this);
+	}
+
+	//The value of the first field with this name (names are lower case in HTTP/2)
+	String field(String name){
+		for(String[] f : fields){
+			if(f[0].equals(name)){
+				return f[1];
+			}
+		}
+		return null;
+	}
+
+	//A request needs :method, :scheme and :path, and nothing that only HTTP/1 connections have
+	boolean validRequest(){
+		String method = field(":method");
+		String path = field(":path");
+		if(method == null || field(":scheme") == null || path == null || !path.startsWith("/")){
+			return false;
+		}
+		for(String[] f : fields){
+			if(f[0].equals("connection") || f[0].equals("transfer-encoding") || f[0].equals("upgrade") || f[0].equals("keep-alive") || !f[0].equals(f[0].toLowerCase())){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//Called by the reading thread for every DATA frame; false if the client sent more than the window allowed
+	synchronized boolean receive(int n){
+		recvWindow -= n;
+		return recvWindow >= 0;
+	}
+
+	//Returns how much window to give back to the client, once enough has been read to be worth a frame
+	synchronized int consumed(int n, int threshold){
+		recvUnacked += n;
+		if(recvUnacked < threshold){
+			return 0;
+		}
+		int update = recvUnacked;
+		recvUnacked = 0;
+		recvWindow += update;
+		return update;
+	}
+
+	void abort(){
+		reset = true;
+		body.fail();
+	}
+}
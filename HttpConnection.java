@@ -0,0 +1,129 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/*
+ * The harness's client side of one persistent HTTP/1.1 connection. It understands just what this server sends: a status line, headers, and a body with
+ * a Content-Length, in chunks, or (for HTTP/1.0 answers) up to the end of the connection.
+ */
+class HttpConnection {
+	Socket socket;
+	InputStream in;
+	OutputStream out;
+	boolean open = true;
+	byte[] body;
+
+	public HttpConnection(int port) throws IOException{
+		socket = new Socket("127.0.0.1", port);
+		socket.setSoTimeout(30000);
+		socket.setTcpNoDelay(true);
+		in = new java.io.BufferedInputStream(socket.getInputStream(), 65536);
+		out = new BufferedOutputStream(socket.getOutputStream());
+	}
+
+	/*
+	 * Sends one request and reads its whole response. Returns the status code.
+	 */
+	public int exchange(byte[] request) throws IOException{
+		out.write(request);
+		out.flush();
+		boolean head = request[0] == 'H';
+		String status = line();
+		if(status == null){
+			throw new IOException("connection closed");
+		}
+		String[] parts = status.split(" ");
+		if(parts.length < 2){
+			throw new IOException("bad status line "+status);
+		}
+		int code = Integer.parseInt(parts[1]);
+		boolean http10 = parts[0].equals("HTTP/1.0");
+		long length = -1;
+		boolean chunked = false;
+		String headerLine;
+		//An HTTP/1.0 status without headers ends at the end of the connection
+		while((headerLine = line()) != null && !headerLine.isEmpty()){
+			String lower = headerLine.toLowerCase();
+			if(lower.startsWith("content-length:")){
+				length = Long.parseLong(headerLine.substring(15).trim());
+			}else if(lower.startsWith("transfer-encoding:") && lower.contains("chunked")){
+				chunked = true;
+			}else if(lower.startsWith("connection:") && lower.contains("close")){
+				open = false;
+			}
+		}
+		if(http10){
+			open = false;
+		}
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		if(head || code == 204 || code == 304){
+			//No body
+		}else if(chunked){
+			while(true){
+				String size = line();
+				if(size == null){
+					throw new IOException("chunked body ended early");
+				}
+				int n = Integer.parseInt(size.split(";")[0].trim(), 16);
+				if(n == 0){
+					while((size = line()) != null && !size.isEmpty()){
+						//Trailers
+					}
+					break;
+				}
+				copy(data, n);
+				line();
+			}
+		}else if(length >= 0){
+			copy(data, length);
+		}else if(!open){
+			byte[] buffer = new byte[65536];
+			int n;
+			while((n = in.read(buffer)) != -1){
+				data.write(buffer, 0, n);
+			}
+		}
+		body = data.toByteArray();
+		return code;
+	}
+
+	private void copy(ByteArrayOutputStream data, long n) throws IOException{
+		byte[] buffer = new byte[65536];
+		while(n > 0){
+			int r = in.read(buffer, 0, (int) Math.min(buffer.length, n));
+			if(r < 0){
+				throw new IOException("body ended early");
+			}
+			data.write(buffer, 0, r);
+			n -= r;
+		}
+	}
+
+	private String line() throws IOException{
+		StringBuilder line = new StringBuilder();
+		int b;
+		while((b = in.read()) != -1){
+			if(b == '\n'){
+				int len = line.length();
+				if(len > 0 && line.charAt(len - 1) == '\r'){
+					line.setLength(len - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) b);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+
+	public void close(){
+		open = false;
+		try{
+			socket.close();
+		}catch(IOException e){
+			//Nothing to do about it
+		}
+	}
+}
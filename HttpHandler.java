@@ -0,0 +1,23 @@
+import java.io.IOException;
+
+/**
+ * An in-process handler for dynamic content, run inside the CommunicationThread instead of as a separate CGI process.
+ *
+ * Handlers are found at startup through ServiceLoader (list the implementing classes in META-INF/services/HttpHandler on the classpath) and are matched
+ * against the request path before the server looks for a file. Each handler is shared by every connection, so it must be safe to call from many threads at once.
+ *
+ */
+public interface HttpHandler {
+
+	/**
+	 * The path patterns this handler serves. A pattern ending in "/*" serves that path and everything below it ("/api/*" serves "/api" and "/api/users/1"),
+	 * any other pattern serves exactly that path. When several patterns match, an exact pattern wins over a prefix, and a longer prefix wins over a shorter one.
+	 */
+	String[] paths();
+
+	/**
+	 * Handles one request. The response is sent as soon as the body is first written to; if nothing is written, an empty response with the chosen status is sent
+	 * once this method returns. Throwing before anything has been written results in a 500 response.
+	 */
+	void handle(HandlerRequest request, HandlerResponse response) throws IOException;
+}
@@ -0,0 +1,12 @@
+import java.io.IOException;
+
+/*
+ * Thrown by RequestReader.readLine when a line is longer than the reader allows, so that the request can be refused with 414 or 431.
+ */
+class LineTooLongException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public LineTooLongException(){
+		super("Line too long");
+	}
+}
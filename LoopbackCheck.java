@@ -0,0 +1,543 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * These are the loopback checks: behaviour that only shows end to end, checked against a real HTTP1Server. Every check starts its own server in a
+ * separate JVM on a free loopback port, the way the PerfHarness does, with a document root and a server.properties made for that check, sends it
+ * requests over a plain socket and compares the answers (and where it matters the server's own metrics) with what they should be, for example:
+ *
+ *     java LoopbackCheck                      run every check
+ *     java LoopbackCheck failover             run only the named checks
+ *     java LoopbackCheck -cp <classpath> ...  where HTTP1Server is (default: this JVM's classpath)
+ *
+ * Each check prints one line, ok or FAILED with what was wrong, and the exit status is 1 if any check failed. The checks are:
+ *
+ *     failover    a proxy route with a dead backend next to a live one serves every request, and a route with no backend up answers 502
+ *     h2c         an HTTP/1.1 request upgraded to h2c is answered on stream 1, and the connection then serves a second request as HTTP/2
+ *     length      negative, unparseable and oversized request body lengths are refused with a 4xx on the CGI and the proxy path alike
+ *     cgitimeout  a cached script killed at its deadline answers 504 every time, none of its output is sent or cached, and it is run again once fast;
+ *                 a streamed one is cut off instead of ended as if complete
+ *     peerdown    in cluster mode, files owned by a peer that is down or never answers are read from the disk, and every request gets the right bytes
+ *     pipeline    a pipelined request for a file above pipeline.maxBytes is served in turn, also when its path has a query
+ */
+class LoopbackCheck {
+
+	static final String[] CHECKS = {"failover", "h2c", "length", "cgitimeout", "peerdown", "pipeline"};
+
+	static String classpath = System.getProperty("java.class.path");
+
+	public static void main(String[] args){
+		ArrayList<String> names = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-cp") && i + 1 < args.length){
+				classpath = args[++i];
+			}else if(Arrays.asList(CHECKS).contains(args[i])){
+				names.add(args[i]);
+			}else{
+				System.err.println("Usage: java LoopbackCheck [-cp <classpath>] [check ...], checks: "+String.join(" ", CHECKS));
+				System.exit(2);
+			}
+		}
+		if(names.isEmpty()){
+			names.addAll(Arrays.asList(CHECKS));
+		}
+		int failed = 0;
+		for(String name : names){
+			try{
+				run(name);
+				System.out.println(name+": ok");
+			}catch(Exception e){
+				System.out.println(name+": FAILED "+e.getMessage());
+				failed++;
+			}
+		}
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	static void run(String name) throws Exception{
+		if(name.equals("failover")){
+			failover();
+		}else if(name.equals("h2c")){
+			h2c();
+		}else if(name.equals("length")){
+			length();
+		}else if(name.equals("cgitimeout")){
+			cgiTimeout();
+		}else if(name.equals("peerdown")){
+			peerDown();
+		}else if(name.equals("pipeline")){
+			pipeline();
+		}
+	}
+
+	/*
+	 * A check that did not get the answer it should have.
+	 */
+	static class Failure extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		Failure(String message){
+			super(message);
+		}
+	}
+
+	static void expect(boolean ok, String what) throws Failure{
+		if(!ok){
+			throw new Failure(what);
+		}
+	}
+
+	/*
+	 * One server started for a check, with the document root it serves.
+	 */
+	static class Server {
+		Path docroot;
+		int port;
+		Process process;
+
+		void stop(){
+			if(process != null){
+				process.destroyForcibly();
+			}
+			PerfHarness.deleteTree(docroot.toFile());
+		}
+	}
+
+	//A document root with one small text file in it, for the check to add its own files to before it starts the server
+	static Path docroot() throws IOException{
+		Path root = Files.createTempDirectory("loopback-docroot");
+		Files.write(root.resolve("a.txt"), "hello\n".getBytes(StandardCharsets.ISO_8859_1));
+		return root;
+	}
+
+	//Starts a server on the document root with the given server.properties lines and the metrics page
+	static Server start(Path docroot, String config) throws IOException, InterruptedException{
+		Files.write(docroot.resolve("server.properties"), (config+"metrics.path=/server-metrics\n").getBytes(StandardCharsets.ISO_8859_1));
+		Server server = new Server();
+		server.docroot = docroot;
+		server.port = PerfHarness.freePort();
+		try{
+			server.process = PerfHarness.startServer(classpath, docroot, server.port);
+		}catch(IOException e){
+			server.stop();
+			throw e;
+		}
+		return server;
+	}
+
+	/*
+	 * Sends one raw request on a new connection and returns everything that comes back until the server closes it, as ISO-8859-1 text. The request
+	 * should ask for the connection to be closed, or be one the server closes the connection after.
+	 */
+	static String exchange(int port, String request) throws IOException{
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try{
+			socket.setSoTimeout(10000);
+			OutputStream out = socket.getOutputStream();
+			out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while((n = in.read(buffer)) != -1){
+				response.write(buffer, 0, n);
+			}
+			return new String(response.toByteArray(), StandardCharsets.ISO_8859_1);
+		}finally{
+			socket.close();
+		}
+	}
+
+	//The status line of a response returned by exchange
+	static String status(String response){
+		int end = response.indexOf("\r\n");
+		return end < 0 ? response : response.substring(0, end);
+	}
+
+	//The body of a response returned by exchange, whatever its framing
+	static String body(String response){
+		int start = response.indexOf("\r\n\r\n");
+		return start < 0 ? "" : response.substring(start + 4);
+	}
+
+	static double metric(Server server, String name){
+		Map<String, Double> metrics = PerfHarness.serverMetrics(server.port);
+		Double value = metrics.get(name);
+		return value == null ? 0 : value;
+	}
+
+	/*
+	 * A backend for the proxy checks that answers every request on its connection with 200 and a short body naming itself, then closes the connection.
+	 */
+	static ServerSocket backend(final String name) throws IOException{
+		final ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(new Runnable(){
+			public void run(){
+				while(!listener.isClosed()){
+					try{
+						Socket socket = listener.accept();
+						try{
+							socket.setSoTimeout(10000);
+							InputStream in = socket.getInputStream();
+							//Reads up to the blank line that ends the request's headers
+							int last = 0;
+							int b;
+							while(last != 0x0d0a0d0a && (b = in.read()) != -1){
+								last = (last << 8) | b;
+							}
+							String body = "backend "+name+"\n";
+							String response = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: "+body.length()+"\r\nConnection: close\r\n\r\n"+body;
+							socket.getOutputStream().write(response.getBytes(StandardCharsets.ISO_8859_1));
+						}finally{
+							socket.close();
+						}
+					}catch(IOException e){
+						//Closed by the check, or a connection the proxy gave up on
+					}
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return listener;
+	}
+
+	/*
+	 * The /api route lists a port nothing listens on next to a live backend, so every request that is sent to the dead one first has to fail over to
+	 * the live one; the /down route lists only dead ports, so the client gets a complete 502 and not a dropped connection. Between backends with the same
+	 * load the proxy picks one at random, so the requests are enough for one of them to try the dead backend first all but certainly.
+	 */
+	static void failover() throws Exception{
+		ServerSocket live = backend("live");
+		int dead = PerfHarness.freePort();
+		int dead2 = PerfHarness.freePort();
+		String config = "proxy.route./api=127.0.0.1:"+dead+",127.0.0.1:"+live.getLocalPort()+"\nproxy.route./down=127.0.0.1:"+dead2+"\n"
+			+"proxy.connectTimeout=500\n";
+		Server server = start(docroot(), config);
+		try{
+			for(int i = 0; i < 20; i++){
+				String response = exchange(server.port, "GET /api/item"+i+" HTTP/1.1\r\nHost: loopback\r\nConnection: close\r\n\r\n");
+				expect(status(response).equals("HTTP/1.1 200 OK"), "request "+i+" to /api answered "+status(response));
+				expect(body(response).equals("backend live\n"), "request "+i+" to /api got the body "+body(response));
+			}
+			expect(metric(server, "proxy_failovers") >= 1, "proxy_failovers did not count the failover");
+			String down = exchange(server.port, "GET /down/item HTTP/1.1\r\nHost: loopback\r\nConnection: close\r\n\r\n");
+			expect(status(down).equals("HTTP/1.1 502 Bad Gateway"), "/down with no backend up answered "+status(down));
+			expect(down.contains("\r\nContent-Length: "), "the 502 has no Content-Length");
+		}finally{
+			server.stop();
+			live.close();
+		}
+	}
+
+	/*
+	 * Asks for /a.txt over HTTP/1.1 with an upgrade to h2c. After the 101 the client sends its preface, and the response to the upgraded request has to
+	 * come on stream 1; then a second GET goes out as HEADERS on stream 3 on the same connection. The frames are read and written here by hand, only as
+	 * far as this exchange needs, and the header blocks are decoded with the server's own HpackDecoder.
+	 */
+	static void h2c() throws Exception{
+		Server server = start(docroot(), "");
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port);
+		try{
+			socket.setSoTimeout(10000);
+			OutputStream out = socket.getOutputStream();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			String upgrade = "GET /a.txt HTTP/1.1\r\nHost: loopback\r\nConnection: Upgrade, HTTP2-Settings\r\nUpgrade: h2c\r\nHTTP2-Settings: AAMAAABkAAQAAP__\r\n\r\n";
+			out.write(upgrade.getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			ByteArrayOutputStream head = new ByteArrayOutputStream();
+			int last = 0;
+			while(last != 0x0d0a0d0a){
+				int b = in.read();
+				expect(b != -1, "the connection closed before the 101 was complete");
+				head.write(b);
+				last = (last << 8) | b;
+			}
+			String status = status(new String(head.toByteArray(), StandardCharsets.ISO_8859_1));
+			expect(status.equals("HTTP/1.1 101 Switching Protocols"), "the upgrade answered "+status);
+
+			out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			writeFrame(out, 4, 0, 0, new byte[0]);
+			out.flush();
+			HpackDecoder decoder = new HpackDecoder(4096, 65536);
+			String[] first = readResponse(in, out, decoder, 1);
+			expect(first[0].equals("200"), "stream 1 answered "+first[0]);
+			expect(first[1].equals("hello\n"), "stream 1 got the body "+first[1]);
+
+			//:method GET, :scheme http, then :path and :authority as literals with indexed names
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			block.write(0x82);
+			block.write(0x86);
+			literal(block, 4, "/a.txt");
+			literal(block, 1, "loopback");
+			writeFrame(out, 1, 0x5, 3, block.toByteArray());
+			out.flush();
+			String[] second = readResponse(in, out, decoder, 3);
+			expect(second[0].equals("200"), "stream 3 answered "+second[0]);
+			expect(second[1].equals("hello\n"), "stream 3 got the body "+second[1]);
+		}finally{
+			socket.close();
+			server.stop();
+		}
+	}
+
+	static void writeFrame(OutputStream out, int type, int flags, int stream, byte[] payload) throws IOException{
+		byte[] header = {(byte) (payload.length >> 16), (byte) (payload.length >> 8), (byte) payload.length, (byte) type, (byte) flags,
+			(byte) (stream >> 24), (byte) (stream >> 16), (byte) (stream >> 8), (byte) stream};
+		out.write(header);
+		out.write(payload);
+	}
+
+	//A header field without indexing whose name is the given static table entry; the value is short and not Huffman coded
+	private static void literal(ByteArrayOutputStream block, int nameIndex, String value){
+		block.write(nameIndex);
+		block.write(value.length());
+		byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+		block.write(bytes, 0, bytes.length);
+	}
+
+	/*
+	 * Reads frames until the given stream has ended, and returns its :status and its body. The server's SETTINGS are acknowledged and WINDOW_UPDATE and
+	 * PING frames are passed over; frames of other streams, a reset or a GOAWAY fail the check.
+	 */
+	static String[] readResponse(DataInputStream in, OutputStream out, HpackDecoder decoder, int stream) throws Exception{
+		String status = null;
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		while(true){
+			byte[] header = new byte[9];
+			in.readFully(header);
+			int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+			int type = header[3] & 0xff;
+			int flags = header[4] & 0xff;
+			int id = ((header[5] & 0x7f) << 24) | ((header[6] & 0xff) << 16) | ((header[7] & 0xff) << 8) | (header[8] & 0xff);
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			if(type == 4){
+				if((flags & 0x1) == 0){
+					writeFrame(out, 4, 0x1, 0, new byte[0]);
+					out.flush();
+				}
+				continue;
+			}
+			if(type == 6 || type == 8){
+				continue;
+			}
+			expect(type != 7, "the server sent GOAWAY");
+			expect(type != 3, "the server reset stream "+id);
+			expect(id == stream, "a frame of type "+type+" came on stream "+id+" while stream "+stream+" was expected");
+			int start = 0;
+			int end = length;
+			if((flags & 0x8) != 0){
+				start = 1;
+				end -= payload[0] & 0xff;
+			}
+			if(type == 1){
+				if((flags & 0x20) != 0){
+					start += 5;
+				}
+				expect((flags & 0x4) != 0, "the response headers continue in a CONTINUATION frame, which this check does not read");
+				HashMap<String, String> fields = new HashMap<String, String>();
+				for(String[] field : decoder.decode(Arrays.copyOfRange(payload, start, end))){
+					fields.put(field[0], field[1]);
+				}
+				status = fields.get(":status");
+			}else if(type == 0){
+				body.write(payload, start, end - start);
+			}else{
+				throw new Failure("unexpected frame of type "+type);
+			}
+			if((flags & 0x1) != 0){
+				expect(status != null, "stream "+stream+" ended without headers");
+				return new String[]{status, new String(body.toByteArray(), StandardCharsets.ISO_8859_1)};
+			}
+		}
+	}
+
+	/*
+	 * With limits.body at 1000 bytes, every bad length is sent to a CGI script and to a proxy route. None of them may get as far as the script or the
+	 * backend: a negative length is a 400, a length that is not a number at all a 400 or 411, and lengths over the limit, up to ones that would not fit
+	 * in memory, or in an int, are a 413, as is a chunked body that grows past the limit. A negative chunk size is a 400. Afterwards the server still has
+	 * to serve a plain GET.
+	 */
+	static void length() throws Exception{
+		ServerSocket backend = backend("live");
+		Path root = docroot();
+		Files.write(root.resolve("echo.cgi"), "#!/bin/sh\ncat\n".getBytes(StandardCharsets.ISO_8859_1));
+		root.resolve("echo.cgi").toFile().setExecutable(true);
+		Server server = start(root, "limits.body=1000\nproxy.route./api=127.0.0.1:"+backend.getLocalPort()+"\n");
+		try{
+			String[][] cases = {
+				{"-5", "400"},
+				{"-9223372036854775808", "400"},
+				{"99999999999999999999", "400 411"},
+				{"12abc", "400 411"},
+				{"1001", "413"},
+				{"3000000000", "413"},
+				{"9223372036854775807", "413"},
+			};
+			for(String path : new String[]{"/echo.cgi", "/api/echo"}){
+				for(String[] c : cases){
+					String response = exchange(server.port, "POST "+path+" HTTP/1.1\r\nHost: loopback\r\nContent-Type: application/x-www-form-urlencoded\r\n"
+						+"Content-Length: "+c[0]+"\r\nConnection: close\r\n\r\na=b");
+					String[] parts = status(response).split(" ");
+					expect(parts.length > 1 && Arrays.asList(c[1].split(" ")).contains(parts[1]),
+						"Content-Length "+c[0]+" on "+path+" answered "+status(response)+" instead of "+c[1]);
+				}
+				StringBuilder chunked = new StringBuilder("POST "+path+" HTTP/1.1\r\nHost: loopback\r\nContent-Type: application/x-www-form-urlencoded\r\n"
+					+"Transfer-Encoding: chunked\r\nConnection: close\r\n\r\n");
+				for(int i = 0; i < 5; i++){
+					chunked.append("12c\r\n");
+					for(int j = 0; j < 300; j++){
+						chunked.append('x');
+					}
+					chunked.append("\r\n");
+				}
+				chunked.append("0\r\n\r\n");
+				String response = exchange(server.port, chunked.toString());
+				expect(status(response).startsWith("HTTP/1.1 413"), "a 1500 byte chunked body on "+path+" answered "+status(response));
+				response = exchange(server.port, "POST "+path+" HTTP/1.1\r\nHost: loopback\r\nContent-Type: application/x-www-form-urlencoded\r\n"
+					+"Transfer-Encoding: chunked\r\nConnection: close\r\n\r\n-1\r\na=b\r\n0\r\n\r\n");
+				expect(status(response).startsWith("HTTP/1.1 400"), "a chunk size of -1 on "+path+" answered "+status(response));
+			}
+			String response = exchange(server.port, "GET /a.txt HTTP/1.1\r\nHost: loopback\r\nConnection: close\r\n\r\n");
+			expect(status(response).equals("HTTP/1.1 200 OK") && body(response).equals("hello\n"), "a GET after the refusals answered "+status(response));
+		}finally{
+			server.stop();
+			backend.close();
+		}
+	}
+
+	/*
+	 * slow.cgi has a cache TTL and is slow while the file "slow" exists in the document root: it prints a line, then sleeps far past cgi.timeout. Both
+	 * posts of the same input have to get a 504 without that line, and neither may be served from the cache. Once the file is gone the same input runs
+	 * the script again and gets its real output.
+	 *
+	 * part.cgi has no TTL, so its output is streamed in chunks as it comes. It is killed after its first line, and that line has already gone out, but
+	 * the response must not be ended with the last chunk as if it were complete: the connection is closed in the middle of it instead.
+	 */
+	static void cgiTimeout() throws Exception{
+		Path root = docroot();
+		Files.write(root.resolve("slow.cgi"), "#!/bin/sh\nif [ -f slow ]; then echo partial; sleep 5; fi\necho done\n".getBytes(StandardCharsets.ISO_8859_1));
+		root.resolve("slow.cgi").toFile().setExecutable(true);
+		Files.write(root.resolve("slow"), new byte[0]);
+		Files.write(root.resolve("part.cgi"), "#!/bin/sh\necho partial\nsleep 5\necho done\n".getBytes(StandardCharsets.ISO_8859_1));
+		root.resolve("part.cgi").toFile().setExecutable(true);
+		Server server = start(root, "cgi.timeout=500\ncgi.cache.ttl./slow.cgi=60000\n");
+		try{
+			String post = "POST /slow.cgi HTTP/1.1\r\nHost: loopback\r\nContent-Type: application/x-www-form-urlencoded\r\nContent-Length: 3\r\n"
+				+"Connection: close\r\n\r\na=b";
+			for(int i = 0; i < 2; i++){
+				String response = exchange(server.port, post);
+				expect(status(response).equals("HTTP/1.1 504 Gateway Timeout"), "post "+i+" to the slow script answered "+status(response));
+				expect(!response.contains("partial"), "post "+i+" sent the killed script's output");
+			}
+			expect(metric(server, "cgi_timeouts") == 2, "cgi_timeouts is "+metric(server, "cgi_timeouts")+" after two timeouts");
+			expect(metric(server, "cgi_cache_hits{script=\"/slow.cgi\"}") == 0, "a timed out run was served from the cache");
+			Files.delete(root.resolve("slow"));
+			String response = exchange(server.port, post);
+			expect(status(response).equals("HTTP/1.1 200 OK") && body(response).equals("done\n"),
+				"the script answered "+status(response)+" once it was fast again");
+			String streamed = exchange(server.port, "POST /part.cgi HTTP/1.1\r\nHost: loopback\r\nContent-Type: application/x-www-form-urlencoded\r\n"
+				+"Content-Length: 3\r\n\r\na=b");
+			expect(streamed.contains("\r\nTransfer-Encoding: chunked\r\n") && streamed.contains("partial"), "the streamed script answered "+status(streamed));
+			expect(!streamed.endsWith("\r\n0\r\n\r\n") && !streamed.contains("done"), "the killed script's streamed response was ended as if complete");
+		}finally{
+			server.stop();
+		}
+	}
+
+	/*
+	 * The cluster lists this node, a port nothing listens on and a peer that takes connections but never answers. Forty files spread over the ring, so
+	 * the two other peers own some of them; each of those has to come from the disk after a refused connection or after cluster.timeout, with the right
+	 * contents, and both peers have to end up marked down. A second round of the same files (with the peers down by then) has to be as correct.
+	 */
+	static void peerDown() throws Exception{
+		final ServerSocket silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		final ArrayList<Socket> held = new ArrayList<Socket>();
+		Thread thread = new Thread(new Runnable(){
+			public void run(){
+				while(!silent.isClosed()){
+					try{
+						Socket socket = silent.accept();
+						synchronized(held){
+							held.add(socket);
+						}
+					}catch(IOException e){
+						//Closed by the check
+					}
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		Path root = docroot();
+		int files = 40;
+		for(int i = 0; i < files; i++){
+			Files.write(root.resolve("f"+i+".txt"), ("file "+i+"\n").getBytes(StandardCharsets.ISO_8859_1));
+		}
+		String self = "127.0.0.1:"+PerfHarness.freePort();
+		String config = "cluster.peers="+self+",127.0.0.1:"+PerfHarness.freePort()+",127.0.0.1:"+silent.getLocalPort()+"\ncluster.self="+self+"\n"
+			+"cluster.timeout=200\ncluster.failures=2\ncluster.cooldown=60000\n"
+			//Every request is on a connection of its own, which would otherwise stay open for half a second after its response
+			+"timeouts.closeDelay=20\n";
+		Server server = start(root, config);
+		try{
+			for(int round = 0; round < 2; round++){
+				for(int i = 0; i < files; i++){
+					String response = exchange(server.port, "GET /f"+i+".txt HTTP/1.1\r\nHost: loopback\r\nConnection: close\r\n\r\n");
+					expect(status(response).equals("HTTP/1.1 200 OK"), "f"+i+".txt answered "+status(response)+" in round "+round);
+					expect(body(response).equals("file "+i+"\n"), "f"+i+".txt got the body "+body(response)+" in round "+round);
+				}
+			}
+			expect(metric(server, "peer_disk_reads") >= 1, "no file was read from the disk in place of a peer");
+			expect(metric(server, "peer_down") == 2, "peer_down is "+metric(server, "peer_down")+" with two peers out");
+		}finally{
+			server.stop();
+			silent.close();
+			synchronized(held){
+				for(Socket socket : held){
+					socket.close();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Three requests are sent in one go: a small file, the same file with a query, and a file larger than pipeline.maxBytes with a query. The first is
+	 * served by the connection, and the second behind it out of turn. The large file must end the run like it does without a query, so only one request
+	 * may have been pipelined, and all three have to come back whole and in order.
+	 */
+	static void pipeline() throws Exception{
+		Path root = docroot();
+		StringBuilder large = new StringBuilder();
+		for(int i = 0; i < 10000; i++){
+			large.append(i % 10);
+		}
+		Files.write(root.resolve("large.txt"), large.toString().getBytes(StandardCharsets.ISO_8859_1));
+		Server server = start(root, "pipeline.maxBytes=1000\n");
+		try{
+			String response = exchange(server.port, "GET /a.txt HTTP/1.1\r\nHost: loopback\r\n\r\nGET /a.txt?v=1 HTTP/1.1\r\nHost: loopback\r\n\r\n"
+				+"GET /large.txt?v=1 HTTP/1.1\r\nHost: loopback\r\nConnection: close\r\n\r\n");
+			expect(response.split("HTTP/1.1 200 OK\r\n", -1).length == 4, "the three pipelined requests did not all get a 200");
+			expect(response.indexOf("hello\n") < response.lastIndexOf("hello\n") && response.endsWith(large.toString()),
+				"the pipelined responses came back incomplete or out of order");
+			expect(metric(server, "pipelined_requests") == 1, "pipelined_requests is "+metric(server, "pipelined_requests")+" instead of 1");
+		}finally{
+			server.stop();
+		}
+	}
+}
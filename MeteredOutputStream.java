@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Output stream that counts what is written to the socket and records when a write is blocked, so that the guard can tell a client that stopped reading.
+ */
+class MeteredOutputStream extends OutputStream {
+	OutputStream out;
+	volatile long bytesWritten = 0;
+	volatile long pendingSince = 0;	//Start of the write that is blocked right now, 0 if none
+	volatile long pendingBytes = 0;
+	ResponseSniffer sniffer;		//Set while the current request is measured by the RequestAccounting
+
+	public MeteredOutputStream(OutputStream out){
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException{
+		pendingBytes = 1;
+		pendingSince = System.currentTimeMillis();
+		try{
+			out.write(b);
+		}finally{
+			pendingSince = 0;
+		}
+		bytesWritten++;
+		if(sniffer != null){
+			sniffer.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException{
+		pendingBytes = len;
+		pendingSince = System.currentTimeMillis();
+		try{
+			out.write(b, off, len);
+		}finally{
+			pendingSince = 0;
+		}
+		bytesWritten += len;
+		if(sniffer != null){
+			sniffer.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException{
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException{
+		out.close();
+	}
+}
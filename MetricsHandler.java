@@ -0,0 +1,23 @@
+import java.io.IOException;
+
+/*
+ * Built-in handler that serves the rendered metrics as plain text at the configured metrics path.
+ */
+class MetricsHandler implements HttpHandler {
+
+	public String[] paths(){
+		return new String[]{ServerMetrics.path};
+	}
+
+	public void handle(HandlerRequest request, HandlerResponse response) throws IOException{
+		if(!request.method().equals("GET") && !request.method().equals("HEAD")){
+			response.setStatus(405, "Method Not Allowed");
+			response.setHeader("Allow", "GET, HEAD");
+			return;
+		}
+		byte[] metrics = ServerMetrics.render().getBytes("ISO-8859-1");
+		response.setHeader("Content-Type", "text/plain");
+		response.setContentLength(metrics.length);
+		response.body().write(metrics);
+	}
+}
@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * One open file in the FileChannelCache. refs and retired are guarded by the FileChannelCache class lock.
+ */
+class OpenFile {
+	String key;
+	FileChannel channel;
+	long lastModified;
+	long size;
+	Object fileKey;		//Identity of the file on disk (device and inode on Unix), null where the platform has none
+	int refs = 0;
+	boolean retired = false;
+
+	public OpenFile(String key, FileChannel channel, long lastModified, long size, Object fileKey){
+		this.key = key;
+		this.channel = channel;
+		this.lastModified = lastModified;
+		this.size = size;
+		this.fileKey = fileKey;
+	}
+
+	//True if this channel is open on the version of the file that was just looked at on disk
+	boolean matches(StaticFile file){
+		if(file.lastModified != lastModified || file.size != size){
+			return false;
+		}
+		return fileKey == null || file.fileKey == null || fileKey.equals(file.fileKey);
+	}
+
+	/*
+	 * Reads up to dst.remaining() bytes starting at position. Any number of requests may do this at the same time.
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException{
+		return channel.read(dst, position);
+	}
+
+	public void release(){
+		FileChannelCache.release(this);
+	}
+}
@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Reads one OpenFile from the start, through positional reads so that it has a position of its own. Closing it lets go of the file; the channel itself is
+ * left to the cache.
+ */
+class OpenFileInputStream extends InputStream {
+	private OpenFile file;
+	private long position = 0;
+	private boolean closed = false;
+
+	public OpenFileInputStream(OpenFile file){
+		this.file = file;
+	}
+
+	@Override
+	public int read() throws IOException{
+		byte[] one = new byte[1];
+		int n = read(one, 0, 1);
+		return n <= 0 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException{
+		if(len == 0){
+			return 0;
+		}
+		int n = file.read(ByteBuffer.wrap(b, off, len), position);
+		if(n > 0){
+			position += n;
+		}
+		return n;
+	}
+
+	@Override
+	public void close(){
+		if(!closed){
+			closed = true;
+			file.release();
+		}
+	}
+}
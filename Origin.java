@@ -0,0 +1,416 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+
+/*
+ * This class serves a request from the server's own content: the pack, the files of the document root, and the scripts among them, which are run for
+ * POSTs. It is the same for every protocol. The CommunicationThread calls it once it has read an HTTP/1 request, and Http2Origin once an HTTP/2 stream
+ * has its headers; the request comes in as a HandlerRequest, and the response goes out through an OriginResponse as a status, header fields and a body
+ * stream, so only the response knows how its protocol frames them. Everything in front of this (the method checks, proxy routes, handlers and bulkheads)
+ * is done by the caller, which also finishes the response once this returns. An IOException thrown from here means the caller has to answer 500 if
+ * nothing was sent yet, and otherwise end the connection or stream.
+ *
+ * cgi.timeout  - longest a script may run before it is killed, in ms (default 30000; 0 lets scripts run for ever)
+ */
+class Origin {
+
+	static long cgiTimeout = 30000;
+
+	public static void serve(HandlerRequest request, OriginResponse response, String serverName, String serverPort) throws IOException{
+		String method = request.method();
+		String path = request.path();
+		long modSince = ifModifiedSince(request.header("If-Modified-Since"));
+
+		//An immutable release packed by the DocrootPacker answers GET and HEAD from memory, without looking at the filesystem
+		if(DocrootPack.instance != null && !method.equals("POST")){
+			int entry = DocrootPack.instance.find(path);
+			if(entry >= 0){
+				servePacked(request, response, DocrootPack.instance, entry, modSince);
+				return;
+			}
+		}
+
+		Path p1;
+		try{
+			p1 = Paths.get("."+path);
+		}catch(InvalidPathException e){
+			response.sendStatus(400, "Bad Request");
+			return;
+		}
+		//Neither existing nor not existing means the file can not be looked at, which is our problem and not the client's
+		if(Files.exists(p1) == false && Files.notExists(p1) == false){
+			response.sendStatus(500, "Internal Error");
+			return;
+		}
+		if(Files.notExists(p1)){
+			//A file that was deleted must not keep its descriptor open in the cache
+			FileChannelCache.invalidate(p1.toString());
+			response.sendStatus(404, "Not Found");
+			return;
+		}
+		File fileread = new File(p1.toString());
+		if(method.equals("POST") && fileread.isFile()){
+			if(fileread.canExecute() == false){
+				response.sendStatus(403, "Forbidden");
+				return;
+			}
+			serveScript(request, response, fileread, p1, serverName, serverPort);
+			return;
+		}
+		if(!fileread.isFile() || !fileread.canRead()){
+			response.sendStatus(403, "Forbidden");
+			return;
+		}
+
+		//The attributes, content type and (small) contents are loaded once for all the requests that want this file at the same moment (in cluster mode
+		//they come from the node that owns the path)
+		StaticFile file;
+		try{
+			file = PeerCache.load(p1);
+		}catch(IOException e){
+			System.err.println("IOException: Error in reading filecontents as bytes");
+			response.sendStatus(500, "Internal Error");
+			return;
+		}
+		SimpleDateFormat form = dateFormat();
+		long expires = System.currentTimeMillis() + 604800000;
+		if(modSince >= 0 && !method.equals("HEAD") && file.lastModified <= modSince){
+			response.setStatus(304, "Not Modified");
+			response.setHeader("Expires", form.format(expires));
+			return;
+		}
+		response.setHeader("Content-Type", file.contentType);
+		response.setContentLength(file.size);
+		response.setHeader("Last-Modified", form.format(file.lastModified));
+		response.setHeader("Content-Encoding", "identity");
+		response.setHeader("Allow", "GET, POST, HEAD");
+		response.setHeader("Expires", form.format(expires));
+		if(method.equals("HEAD")){
+			return;
+		}
+		StaticFiles.sendBody(file, p1, response.body());
+		HotSet.record(path, file.size);
+	}
+
+	/*
+	 * Answers a GET or HEAD from the pack. The packer built the header block as HTTP/1 text, which is taken apart into fields here. The conditions are
+	 * checked like for files on disk, If-None-Match first since an ETag is the stronger validator.
+	 */
+	private static void servePacked(HandlerRequest request, OriginResponse response, DocrootPack pack, int entry, long modSince) throws IOException{
+		ServerMetrics.increment("pack_hits");
+		boolean head = request.method().equals("HEAD");
+		SimpleDateFormat form = dateFormat();
+		long expires = System.currentTimeMillis() + 604800000;
+		String ifNoneMatch = request.header("If-None-Match");
+		boolean notModified;
+		if(ifNoneMatch != null){
+			notModified = ifNoneMatch.equals("*") || ifNoneMatch.contains("\""+pack.etag(entry)+"\"") || ifNoneMatch.contains("\""+pack.etag(entry)+"-gz\"");
+		}else{
+			notModified = !head && modSince >= 0 && pack.lastModified(entry) <= modSince;
+		}
+		if(notModified){
+			response.setStatus(304, "Not Modified");
+			response.setHeader("ETag", "\""+pack.etag(entry)+"\"");
+			response.setHeader("Expires", form.format(expires));
+			return;
+		}
+		boolean gzip = acceptsGzip(request.header("Accept-Encoding")) && pack.hasGzip(entry);
+		for(String line : pack.headers(entry, gzip).split("\r\n")){
+			int colon = line.indexOf(':');
+			if(colon <= 0){
+				continue;
+			}
+			String name = line.substring(0, colon);
+			String value = line.substring(colon + 1).trim();
+			if(name.equalsIgnoreCase("Content-Length")){
+				response.setContentLength(Long.parseLong(value));
+			}else{
+				response.setHeader(name, value);
+			}
+		}
+		response.setHeader("Expires", form.format(expires));
+		if(head){
+			return;
+		}
+		pack.writeBody(entry, gzip, response.body());
+		HotSet.record(pack.path(entry), pack.bodyLength(entry, gzip));
+	}
+
+	/*
+	 * Runs a script with the decoded request body as its input. Scripts with a cache TTL are answered from the CgiResponseCache (or go into it); the
+	 * output of every other script is sent as it is produced, except to an HTTP/1.0 client, which gets it whole with its length, so that a script that
+	 * runs out of time can still be answered with 504 there.
+	 */
+	private static void serveScript(HandlerRequest request, OriginResponse response, File fileread, Path p1, String serverName, String serverPort) throws IOException{
+		String contentType = request.header("Content-Type");
+		if(contentType == null || !contentType.trim().startsWith("application/x-www-form-urlencoded")){
+			response.sendStatus(500, "Internal Server Error");
+			return;
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		ReverseProxy.copyLimited(request.body(), body, CommunicationThread.maxBodyBytes);
+		String postString = new String(body.toByteArray(), "US-ASCII");
+		String pStringDecoded;
+		try{
+			pStringDecoded = URLDecoder.decode(postString, "UTF-8");
+		}catch(IllegalArgumentException e){
+			response.sendStatus(400, "Bad Request");
+			return;
+		}
+		final byte[] input = pStringDecoded.getBytes("UTF-8");
+
+		final String SCRIPT_NAME = request.query() == null ? request.path() : request.path()+"?"+request.query();
+		ArrayList<String> envip = new ArrayList<String>();
+		envip.add("CONTENT_LENGTH="+input.length);
+		envip.add("SCRIPT_NAME="+SCRIPT_NAME);
+		if(serverName != null){
+			envip.add("SERVER_NAME="+serverName);
+		}
+		if(serverPort != null){
+			envip.add("SERVER_PORT="+serverPort);
+		}
+		if(request.header("From") != null){
+			envip.add("HTTP_FROM="+request.header("From"));
+		}
+		if(request.header("User-Agent") != null){
+			envip.add("HTTP_USER_AGENT="+request.header("User-Agent"));
+		}
+		final String[] envp = envip.toArray(new String[envip.size()]);
+		final String scriptPath = fileread.getAbsolutePath();
+
+		SimpleDateFormat form = dateFormat();
+		long lastModified = Files.getLastModifiedTime(p1).toMillis();
+		response.setHeader("Content-Type", "text/html");
+		response.setHeader("Last-Modified", form.format(lastModified));
+		response.setHeader("Content-Encoding", "identity");
+		response.setHeader("Allow", "GET, POST, HEAD");
+		response.setHeader("Expires", form.format(System.currentTimeMillis() + 604800000));
+
+		//Scripts with a configured TTL are answered from the cache when the same input was seen recently, without starting a process at all. On a miss,
+		//identical invocations that arrive while the script is running wait for its output instead of starting their own process. The TTL and the counters
+		//belong to the script's path; the query is part of the key through SCRIPT_NAME in the environment.
+		CgiResponseCache cgiCache = CgiResponseCache.instance;
+		long cacheTtl = cgiCache == null ? 0 : cgiCache.ttlFor(request.path());
+		if(cacheTtl > 0){
+			String cacheKey = cgiCache.keyFor(scriptPath, lastModified, envp, input);
+			byte[] output = cgiCache.get(cacheKey, request.path());
+			if(output == null){
+				try{
+					output = cgiCache.runOnce(cacheKey, request.path(), cacheTtl, new Callable<byte[]>(){
+						public byte[] call() throws IOException{
+							return runScript(scriptPath, envp, input);
+						}
+					});
+				}catch(ScriptTimeoutException e){
+					response.sendStatus(504, "Gateway Timeout");
+					return;
+				}catch(ScriptFailedException e){
+					//Sent like the output of a script without a TTL would be, only not cached
+					output = e.output;
+				}catch(IOException e){
+					System.err.println("IOException in running "+SCRIPT_NAME+": "+e.getMessage());
+					response.sendStatus(500, "Internal Server Error");
+					return;
+				}
+			}
+			sendOutput(response, output);
+			return;
+		}
+
+		Process process = Runtime.getRuntime().exec(scriptPath, envp);
+		TimerWheel.Timeout deadline = deadlineFor(process);
+		InputStream stdout = process.getInputStream();
+		try{
+			writeInput(process, input);
+			if(request.version().equals("HTTP/1.0")){
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				ReverseProxy.copyToEnd(stdout, output);
+				//A script that was killed at its deadline stopped in the middle of its output, which must not go out as if it were complete
+				try{
+					finishScript(process, deadline, SCRIPT_NAME);
+				}catch(ScriptTimeoutException e){
+					response.sendStatus(504, "Gateway Timeout");
+					return;
+				}
+				sendOutput(response, output.toByteArray());
+				return;
+			}
+			byte[] buffer = new byte[16384];
+			int n = stdout.read(buffer);
+			if(n == -1){
+				try{
+					finishScript(process, deadline, SCRIPT_NAME);
+				}catch(ScriptTimeoutException e){
+					response.sendStatus(504, "Gateway Timeout");
+					return;
+				}
+				response.sendStatus(204, "No Content");
+				return;
+			}
+			OutputStream out = response.body();
+			while(n != -1){
+				out.write(buffer, 0, n);
+				out.flush();
+				n = stdout.read(buffer);
+			}
+			//The output already sent can not be taken back, but a killed script's response must not be ended as if it were complete; the exception makes the caller drop it
+			finishScript(process, deadline, SCRIPT_NAME);
+		}finally{
+			cancel(deadline);
+			stdout.close();
+		}
+	}
+
+	//Output that is complete in memory goes out as a 200 with its length, or as a 204 when it is empty
+	private static void sendOutput(OriginResponse response, byte[] output) throws IOException{
+		if(output.length == 0){
+			response.sendStatus(204, "No Content");
+			return;
+		}
+		response.setContentLength(output.length);
+		response.body().write(output);
+	}
+
+	/*
+	 * Runs a CGI script to completion and returns everything it wrote, for output that is cached and so has to be complete before it is sent. Output that
+	 * is not complete is never returned: a script that was killed at its deadline throws ScriptTimeoutException. One that failed (exited with a status
+	 * other than 0) throws ScriptFailedException, which carries the output so that it can be sent without being cached.
+	 */
+	static byte[] runScript(String script, String[] envp, byte[] input) throws IOException{
+		Process process = Runtime.getRuntime().exec(script, envp);
+		TimerWheel.Timeout deadline = deadlineFor(process);
+		try{
+			writeInput(process, input);
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			ReverseProxy.copyToEnd(process.getInputStream(), output);
+			int status = finishScript(process, deadline, script);
+			if(status != 0){
+				throw new ScriptFailedException(script, status, output.toByteArray());
+			}
+			return output.toByteArray();
+		}finally{
+			cancel(deadline);
+		}
+	}
+
+	/*
+	 * Hands the request body to the script. A script that does not read all of it may already have exited and closed its end, which is not an error: its
+	 * output and exit status still decide the response, whether it is cached or not.
+	 */
+	static void writeInput(Process process, byte[] input){
+		OutputStream stdin = process.getOutputStream();
+		try{
+			stdin.write(input);
+		}catch(IOException e){
+			//Broken pipe; the rest of the input is not wanted
+		}
+		try{
+			stdin.close();
+		}catch(IOException e){
+			//Same as above
+		}
+	}
+
+	/*
+	 * Puts an execution deadline on a script. When it runs out the script is killed, which ends its output; the caller cancels the timeout once the output
+	 * has ended by itself. Returns null if scripts have no deadline.
+	 */
+	static TimerWheel.Timeout deadlineFor(final Process process){
+		if(cgiTimeout <= 0){
+			return null;
+		}
+		return TimerWheel.shared.schedule(new Runnable(){
+			public void run(){
+				if(process.isAlive()){
+					ServerMetrics.increment("cgi_timeouts");
+					/*
+					 * The script's own children (a shell script's commands) hold its output open too, so they are killed as well. They are listed first, while
+					 * they are still the script's, but the script itself goes before them: a shell whose command dies first carries on with its next one and
+					 * may still exit with status 0, as if it had finished.
+					 */
+					ArrayList<ProcessHandle> children = new ArrayList<ProcessHandle>();
+					Iterator<ProcessHandle> descendants = process.descendants().iterator();
+					while(descendants.hasNext()){
+						children.add(descendants.next());
+					}
+					process.destroyForcibly();
+					for(ProcessHandle child : children){
+						child.destroyForcibly();
+					}
+				}
+			}
+		}, cgiTimeout);
+	}
+
+	/*
+	 * Waits for a script whose output has ended to exit (the deadline still holds while it does) and cancels the deadline. Returns the exit status, or
+	 * throws ScriptTimeoutException if the deadline fired first and the script was killed.
+	 */
+	static int finishScript(Process process, TimerWheel.Timeout deadline, String script) throws IOException{
+		int status;
+		try{
+			status = process.waitFor();
+		}catch(InterruptedException e){
+			process.destroyForcibly();
+			throw new IOException("Interrupted waiting for "+script);
+		}
+		//A deadline that can no longer be cancelled has fired; if the script had ended by itself just before, its status says so
+		if(deadline != null && !deadline.cancel() && status != 0){
+			throw new ScriptTimeoutException(script);
+		}
+		return status;
+	}
+
+	//Cancels a deadline from deadlineFor, which may be null
+	static void cancel(TimerWheel.Timeout deadline){
+		if(deadline != null){
+			deadline.cancel();
+		}
+	}
+
+	//gzip is taken unless the client gave it a quality of 0
+	static boolean acceptsGzip(String accept){
+		if(accept == null){
+			return false;
+		}
+		for(String coding : accept.toLowerCase().split(",")){
+			coding = coding.replace(" ", "");
+			if(coding.startsWith("gzip") && !coding.matches("gzip;q=0(\\.0*)?")){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static SimpleDateFormat dateFormat(){
+		SimpleDateFormat form = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+		form.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return form;
+	}
+
+	//The If-Modified-Since date in milliseconds, or -1 if there is none or it can not be read
+	static long ifModifiedSince(String value){
+		if(value == null){
+			return -1;
+		}
+		try{
+			Date date = dateFormat().parse(value.trim());
+			return date.getTime();
+		}catch(Exception e){
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+import java.io.IOException;
+
+/*
+ * The response side of a request served by the Origin or forwarded by the ReverseProxy: a HandlerResponse that can also send a response without a body
+ * the way its protocol does that, and repeat a header. StreamingResponse is the one for HTTP/1 and Http2Exchange the one for HTTP/2.
+ */
+interface OriginResponse extends HandlerResponse {
+
+	//Sends a complete response that has no body; finishing it afterwards does nothing more
+	void sendStatus(int code, String reason) throws IOException;
+
+	//Adds a header next to any earlier one of the same name, for headers such as Set-Cookie that may come more than once
+	void addHeader(String name, String value);
+}
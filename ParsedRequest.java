@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * The request side of a handler call. The request line has already been parsed by the CommunicationThread; readHeaders takes the header lines off the
+ * connection, and the body is then read from the same buffer on demand.
+ */
+class ParsedRequest implements HandlerRequest {
+	String method;
+	String target;
+	String version;
+	Socket socket;
+	RequestReader in;
+	ArrayList<String> headers = new ArrayList<String>();
+	InputStream body;
+	boolean badFraming = false;
+	boolean tooLarge = false;	//The header lines together were longer than allowed
+
+	public ParsedRequest(String method, String target, String version, Socket socket, RequestReader in){
+		this.method = method;
+		this.target = target;
+		this.version = version;
+		this.socket = socket;
+		this.in = in;
+	}
+
+	/*
+	 * Reads header lines up to the blank line and sets up the body stream from Content-Length or Transfer-Encoding. Returns false if the connection ended
+	 * first; badFraming is set if the Content-Length can not be understood, and tooLarge if the headers add up to more than maxBytes.
+	 */
+	public boolean readHeaders(int maxBytes) throws IOException{
+		String line;
+		int total = 0;
+		while((line = in.readLine()) != null){
+			total += line.length() + 2;
+			if(total > maxBytes){
+				tooLarge = true;
+				return true;
+			}
+			if(line.equals("")){
+				String te = header("Transfer-Encoding");
+				String cl = header("Content-Length");
+				if(te != null && te.toLowerCase().contains("chunked")){
+					body = new ChunkedInputStream(in);
+				}else if(cl != null){
+					try{
+						long length = Long.parseLong(cl.trim());
+						if(length < 0){
+							badFraming = true;
+						}else{
+							body = new FixedLengthInputStream(in, length);
+						}
+					}catch(NumberFormatException e){
+						badFraming = true;
+					}
+				}else{
+					body = new FixedLengthInputStream(in, 0);
+				}
+				return true;
+			}
+			headers.add(line);
+		}
+		return false;
+	}
+
+	public String method(){
+		return method;
+	}
+
+	public String path(){
+		int q = target.indexOf('?');
+		return q < 0 ? target : target.substring(0, q);
+	}
+
+	public String query(){
+		int q = target.indexOf('?');
+		return q < 0 ? null : target.substring(q + 1);
+	}
+
+	public String version(){
+		return version;
+	}
+
+	public String header(String name){
+		int n = name.length();
+		for(String line : headers){
+			if(line.length() > n && line.charAt(n) == ':' && line.regionMatches(true, 0, name, 0, n)){
+				return line.substring(n + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	public List<String> headerLines(){
+		return Collections.unmodifiableList(headers);
+	}
+
+	public InputStream body(){
+		return body;
+	}
+
+	public String remoteAddress(){
+		return socket.getInetAddress() == null ? "" : socket.getInetAddress().getHostAddress();
+	}
+
+	/*
+	 * Reads and throws away whatever the handler left of the body, so that the next request on a persistent connection starts in the right place.
+	 * Gives up (returns false) after maxBytes, in which case the connection has to be closed instead.
+	 */
+	public boolean drainBody(long maxBytes) throws IOException{
+		if(body == null){
+			return true;
+		}
+		byte[] skip = new byte[4096];
+		long total = 0;
+		int n;
+		while((n = body.read(skip)) != -1){
+			total += n;
+			if(total > maxBytes){
+				return false;
+			}
+		}
+		return true;
+	}
+}
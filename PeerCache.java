@@ -0,0 +1,513 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+
+/*
+ * This class implements the cluster mode of the server, for several instances that serve the same document root from shared storage. Instead of every
+ * node reading and caching the same hot files, the path space is split between the nodes on a consistent-hash ring: every node is placed on the ring
+ * at a number of points (virtual nodes), and a path belongs to the node at the first point after the hash of the path. Only the owner of a path keeps
+ * it in memory. Any other node that is asked for it fetches the loaded file (content type, modification time and contents) from the owner over a
+ * small internal protocol, and reads it from the disk itself only when the owner cannot be reached or does not keep the file. So the cluster as a whole
+ * holds every hot file once, and the memory of all nodes adds up to one large cache. Adding or removing a node moves only the paths of its own points.
+ *
+ * Membership is static: every node lists the same peers, and names itself among them.
+ *
+ *     cluster.peers=10.0.0.1:9100,10.0.0.2:9100,10.0.0.3:9100
+ *     cluster.self=10.0.0.1:9100
+ *
+ * cluster.peers          - the internal address of every node, this one included; nothing changes without it
+ * cluster.self           - which of them is this node; it listens on that host and port (only) for the other nodes
+ * cluster.vnodes         - points on the ring per node (default 128)
+ * cluster.maxBytes       - memory for the files this node owns (default 256 MB)
+ * cluster.maxEntryBytes  - larger files are never shared and always read from the disk (default staticfiles.bufferLimit)
+ * cluster.timeout        - how long a node waits for a peer to connect or answer before reading the disk itself, in ms (default 200)
+ * cluster.failures       - consecutive failures after which a peer is left alone for a while (default 3)
+ * cluster.cooldown       - how long that is, in ms (default 5000)
+ * cluster.threads        - most peer connections served at once (default 64)
+ *
+ * The internal protocol runs over persistent connections. A request is the byte 'G' followed by the path relative to the document root (as a
+ * DataOutput UTF string). The answer is the byte 0 if the owner does not serve the file to peers (the asking node then reads the disk), or the byte
+ * 1 followed by the modification time (long), the content type (UTF), the length (int) and the contents. Only connections from the addresses of the
+ * configured peers are accepted, since the protocol hands out any file of the document root.
+ */
+class PeerCache {
+
+	//Created at startup; stays null without cluster.peers, so that the static path pays nothing for it
+	static PeerCache instance;
+
+	static final int FOUND = 1;
+	static final int NOT_SERVED = 0;
+
+	ClusterPeer self;
+	ArrayList<ClusterPeer> peers = new ArrayList<ClusterPeer>();
+	private TreeMap<Long, ClusterPeer> ring = new TreeMap<Long, ClusterPeer>();
+	private HashSet<InetAddress> peerAddresses = new HashSet<InetAddress>();
+	long maxBytes;
+	long maxEntryBytes;
+	int timeout;
+	int threads;
+
+	//Path -> file, for the paths this node owns, in access order so that the eldest entry is the least recently used one
+	private LinkedHashMap<String, StaticFile> owned = new LinkedHashMap<String, StaticFile>(256, 0.75f, true);
+	private long ownedBytes = 0;
+
+	//Fetches from peers in progress right now, so that concurrent requests for one path on this node ask the owner once
+	private SingleFlight<String, StaticFile> fetches = new SingleFlight<String, StaticFile>("peer");
+
+	/*
+	 * Builds the ring from the configuration and starts listening for the other nodes. Returns null when no cluster is configured, or when the
+	 * configuration does not say which of the peers this node is.
+	 */
+	public static PeerCache fromConfig(){
+		String list = ServerConfig.getString("cluster.peers", "").trim();
+		if(list.isEmpty()){
+			return null;
+		}
+		PeerCache cache = new PeerCache();
+		cache.maxBytes = ServerConfig.getLong("cluster.maxBytes", 256L * 1024 * 1024);
+		cache.maxEntryBytes = ServerConfig.getLong("cluster.maxEntryBytes", StaticFiles.bufferLimit);
+		cache.timeout = Math.max(1, ServerConfig.getInt("cluster.timeout", 200));
+		cache.threads = Math.max(1, ServerConfig.getInt("cluster.threads", 64));
+		int vnodes = Math.max(1, ServerConfig.getInt("cluster.vnodes", 128));
+		int maxFailures = Math.max(1, ServerConfig.getInt("cluster.failures", 3));
+		long cooldown = ServerConfig.getLong("cluster.cooldown", 5000);
+		String selfName = ServerConfig.getString("cluster.self", "").trim();
+
+		for(String target : list.split(",")){
+			target = target.trim();
+			int colon = target.lastIndexOf(':');
+			if(colon <= 0){
+				System.err.println("Cluster peer "+target+" must be host:port, ignoring it.");
+				continue;
+			}
+			ClusterPeer peer;
+			try{
+				peer = new ClusterPeer(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)), maxFailures, cooldown);
+			}catch(NumberFormatException e){
+				System.err.println("Cluster peer "+target+" must be host:port, ignoring it.");
+				continue;
+			}
+			try{
+				for(InetAddress a : InetAddress.getAllByName(peer.host)){
+					cache.peerAddresses.add(a);
+				}
+			}catch(UnknownHostException e){
+				System.err.println("Cannot resolve cluster peer "+target+"; connections from it will be refused.");
+			}
+			if(target.equals(selfName)){
+				cache.self = peer;
+			}
+			cache.peers.add(peer);
+			for(int i = 0; i < vnodes; i++){
+				cache.ring.put(hash(target+"#"+i), peer);
+			}
+		}
+		if(cache.self == null){
+			System.err.println("cluster.self must name one of cluster.peers; running without the cluster.");
+			return null;
+		}
+		try{
+			cache.listen();
+		}catch(IOException e){
+			System.err.println("Cannot listen for cluster peers on "+cache.self+": "+e.getMessage()+"; running without the cluster.");
+			return null;
+		}
+
+		final PeerCache metered = cache;
+		ServerMetrics.gauge("peer_cache_bytes", new DoubleSupplier(){
+			public double getAsDouble(){
+				synchronized(metered){
+					return metered.ownedBytes;
+				}
+			}
+		});
+		ServerMetrics.gauge("peer_cache_entries", new DoubleSupplier(){
+			public double getAsDouble(){
+				synchronized(metered){
+					return metered.owned.size();
+				}
+			}
+		});
+		ServerMetrics.gauge("peer_down", new DoubleSupplier(){
+			public double getAsDouble(){
+				long now = System.currentTimeMillis();
+				int down = 0;
+				for(ClusterPeer peer : metered.peers){
+					if(!peer.isAvailable(now)){
+						down++;
+					}
+				}
+				return down;
+			}
+		});
+		System.out.println("Cluster node "+cache.self+" of "+cache.peers.size()+", "+vnodes+" points each on the ring");
+		return cache;
+	}
+
+	//The first 8 bytes of the MD5 of the string; MD5 spreads the points evenly and is all a ring needs
+	static long hash(String s){
+		try{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for(int i = 0; i < 8; i++){
+				h = (h << 8) | (digest[i] & 0xff);
+			}
+			return h;
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public ClusterPeer owner(String key){
+		Map.Entry<Long, ClusterPeer> e = ring.ceilingEntry(hash(key));
+		return e != null ? e.getValue() : ring.firstEntry().getValue();
+	}
+
+	/*
+	 * Loads a file the way StaticFiles.load does, but through the cluster when there is one: from this node's memory if it owns the path, otherwise from
+	 * the owner. Whatever goes wrong on the way ends in a read from the disk.
+	 */
+	public static StaticFile load(Path p) throws IOException{
+		PeerCache cache = instance;
+		if(cache == null){
+			return StaticFiles.load(p);
+		}
+		final String key = p.normalize().toString();
+		final ClusterPeer owner = cache.owner(key);
+		if(owner == cache.self){
+			StaticFile file = cache.loadOwned(p);
+			return file != null ? file : StaticFiles.load(p);
+		}
+		if(Files.size(p) > cache.maxEntryBytes || !owner.isAvailable(System.currentTimeMillis())){
+			ServerMetrics.increment("peer_disk_reads");
+			return StaticFiles.load(p);
+		}
+		StaticFile file = null;
+		try{
+			final PeerCache c = cache;
+			file = cache.fetches.execute(key, new Callable<StaticFile>(){
+				public StaticFile call() throws IOException{
+					return c.fetch(owner, key);
+				}
+			}, cache.timeout);
+		}catch(TimeoutException e){
+			//The fetch in progress is slower than this request would wait for the owner itself
+		}catch(IOException e){
+			//Already counted against the owner
+		}catch(Exception e){
+			System.err.println("Exception in fetching "+key+" from "+owner+": "+e);
+		}
+		if(file == null){
+			ServerMetrics.increment("peer_disk_reads");
+			return StaticFiles.load(p);
+		}
+		return file;
+	}
+
+	/*
+	 * A file this node owns: the copy in memory if the file on disk is still the same (a stat is all the disk sees of a hit), or a fresh load that is
+	 * then kept. Returns null for files that are not to be shared at all.
+	 */
+	StaticFile loadOwned(Path p) throws IOException{
+		String key = p.normalize().toString();
+		StaticFile cached;
+		synchronized(this){
+			cached = owned.get(key);
+		}
+		BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+		if(cached != null && cached.lastModified == attrs.lastModifiedTime().toMillis() && cached.size == attrs.size() && (cached.fileKey == null || cached.fileKey.equals(attrs.fileKey()))){
+			ServerMetrics.increment("peer_cache_hits");
+			return cached;
+		}
+		if(attrs.size() > maxEntryBytes){
+			return null;
+		}
+		ServerMetrics.increment("peer_cache_misses");
+		StaticFile file = StaticFiles.load(p);
+		if(file.contents != null){
+			store(key, file);
+		}
+		return file;
+	}
+
+	private synchronized void store(String key, StaticFile file){
+		StaticFile old = owned.put(key, file);
+		if(old != null){
+			ownedBytes -= old.contents.length;
+		}
+		ownedBytes += file.contents.length;
+		Iterator<StaticFile> eldest = owned.values().iterator();
+		while(ownedBytes > maxBytes && eldest.hasNext()){
+			StaticFile victim = eldest.next();
+			ownedBytes -= victim.contents.length;
+			eldest.remove();
+			ServerMetrics.increment("peer_cache_evictions");
+		}
+	}
+
+	/*
+	 * Asks the owner for a file. Returns null if the owner does not serve it; an IOException means the owner did not answer in time, which counts
+	 * towards marking it down.
+	 */
+	StaticFile fetch(ClusterPeer owner, String key) throws IOException{
+		PeerConnection conn;
+		try{
+			conn = owner.acquire(timeout);
+		}catch(IOException e){
+			owner.markFailure();
+			throw e;
+		}
+		boolean reusable = false;
+		try{
+			conn.out.writeByte('G');
+			conn.out.writeUTF(key);
+			conn.out.flush();
+			int status = conn.in.readUnsignedByte();
+			StaticFile file = null;
+			if(status == FOUND){
+				file = new StaticFile();
+				file.key = Paths.get(key).toString();
+				file.lastModified = conn.in.readLong();
+				file.contentType = conn.in.readUTF();
+				int length = conn.in.readInt();
+				if(length < 0 || length > maxEntryBytes){
+					throw new IOException("peer "+owner+" sent "+length+" bytes for "+key);
+				}
+				file.contents = new byte[length];
+				conn.in.readFully(file.contents);
+				file.size = length;
+				ServerMetrics.increment("peer_fetch_hits");
+			}else if(status == NOT_SERVED){
+				ServerMetrics.increment("peer_fetch_not_served");
+			}else{
+				throw new IOException("peer "+owner+" answered with status "+status);
+			}
+			reusable = true;
+			owner.markSuccess();
+			return file;
+		}catch(IOException e){
+			ServerMetrics.increment("peer_fetch_failures");
+			owner.markFailure();
+			throw e;
+		}finally{
+			owner.release(conn, reusable);
+		}
+	}
+
+	/*
+	 * Accepts connections from the other nodes on this node's own address in the configuration. Every connection gets a thread of a bounded pool for as
+	 * long as it stays open; one that finds the pool full is closed, and its node reads the disk instead.
+	 */
+	private void listen() throws IOException{
+		final ServerSocket server = new ServerSocket();
+		server.setReuseAddress(true);
+		//Only the internal address, not every interface of the machine
+		server.bind(new InetSocketAddress(self.host, self.port));
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(1, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		Thread acceptor = new Thread(new Runnable(){
+			public void run(){
+				while(true){
+					final Socket socket;
+					try{
+						socket = server.accept();
+					}catch(IOException e){
+						System.err.println("IOException in accepting a cluster peer: "+e.getMessage());
+						continue;
+					}
+					if(!peerAddresses.contains(socket.getInetAddress())){
+						ServerMetrics.increment("peer_refused");
+						closeQuietly(socket);
+						continue;
+					}
+					try{
+						pool.execute(new Runnable(){
+							public void run(){
+								servePeer(socket);
+							}
+						});
+					}catch(RejectedExecutionException e){
+						ServerMetrics.increment("peer_refused");
+						closeQuietly(socket);
+					}
+				}
+			}
+		}, "cluster-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/*
+	 * Answers the requests of one peer connection until the peer closes it. A path that is not a plain readable file inside the document root, a CGI
+	 * script, or a file too large to share is answered with NOT_SERVED.
+	 */
+	void servePeer(Socket socket){
+		try{
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+			while(true){
+				int op = in.read();
+				if(op == -1){
+					return;
+				}
+				if(op != 'G'){
+					System.err.println("Cluster peer "+socket.getInetAddress()+" sent unknown request "+op);
+					return;
+				}
+				String key = in.readUTF();
+				StaticFile file = null;
+				Path p = Paths.get(key).normalize();
+				if(!p.isAbsolute() && !p.startsWith("..") && Files.isRegularFile(p) && Files.isReadable(p) && !(Files.isExecutable(p) && key.contains(".cgi"))){
+					try{
+						file = loadOwned(p);
+					}catch(IOException e){
+						//Gone or unreadable since; the peer finds out from the disk
+					}
+				}
+				if(file == null || file.contents == null){
+					out.writeByte(NOT_SERVED);
+				}else{
+					out.writeByte(FOUND);
+					out.writeLong(file.lastModified);
+					out.writeUTF(file.contentType);
+					out.writeInt(file.contents.length);
+					out.write(file.contents);
+					ServerMetrics.increment("peer_served");
+				}
+				out.flush();
+			}
+		}catch(IOException e){
+			//The peer went away
+		}finally{
+			closeQuietly(socket);
+		}
+	}
+
+	static void closeQuietly(Socket socket){
+		try{
+			socket.close();
+		}catch(IOException e){
+			//Nothing to do about it
+		}
+	}
+}
+
+/*
+ * One node of the cluster as the others see it: its address, a pool of idle connections to it and its health, which is tracked like that of a proxy
+ * backend. After a number of consecutive failures it is left alone for a cooldown period, and requests for its paths go to the disk.
+ */
+class ClusterPeer {
+	String host;
+	int port;
+	int maxFailures;
+	long cooldown;
+
+	ConcurrentLinkedDeque<PeerConnection> idle = new ConcurrentLinkedDeque<PeerConnection>();
+	AtomicInteger failures = new AtomicInteger();
+	volatile long downUntil = 0;
+
+	public ClusterPeer(String host, int port, int maxFailures, long cooldown){
+		this.host = host;
+		this.port = port;
+		this.maxFailures = maxFailures;
+		this.cooldown = cooldown;
+	}
+
+	public boolean isAvailable(long now){
+		return downUntil <= now;
+	}
+
+	public PeerConnection acquire(int timeout) throws IOException{
+		PeerConnection conn;
+		while((conn = idle.pollFirst()) != null){
+			if(!conn.socket.isClosed()){
+				return conn;
+			}
+		}
+		Socket socket = new Socket();
+		try{
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			socket.setSoTimeout(timeout);
+			return new PeerConnection(socket);
+		}catch(IOException e){
+			socket.close();
+			throw e;
+		}
+	}
+
+	//Every connection that finished its exchange cleanly goes back; there are never more than the requests that ran at the same time
+	public void release(PeerConnection conn, boolean reusable){
+		if(reusable){
+			idle.offerFirst(conn);
+		}else{
+			PeerCache.closeQuietly(conn.socket);
+		}
+	}
+
+	public void markSuccess(){
+		failures.set(0);
+		downUntil = 0;
+	}
+
+	public void markFailure(){
+		if(failures.incrementAndGet() >= maxFailures){
+			downUntil = System.currentTimeMillis() + cooldown;
+			failures.set(0);
+			System.err.println("Cluster peer "+this+" marked down for "+cooldown+" ms");
+			PeerConnection conn;
+			while((conn = idle.pollFirst()) != null){
+				PeerCache.closeQuietly(conn.socket);
+			}
+		}
+	}
+
+	@Override
+	public String toString(){
+		return host+":"+port;
+	}
+}
+
+/*
+ * A socket to a peer with its buffered data streams.
+ */
+class PeerConnection {
+	Socket socket;
+	DataInputStream in;
+	DataOutputStream out;
+
+	public PeerConnection(Socket socket) throws IOException{
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+	}
+}
@@ -0,0 +1,508 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * This is the end-to-end performance check: it starts a real HTTP1Server in a separate JVM on a free loopback port, serving a document root it generates
+ * (files of mixed sizes and a few CGI scripts), drives a fixed set of workloads against it and compares what it measured with a baseline, for example:
+ *
+ *     java PerfHarness perf-baseline.json             compare with the baseline, exit status 1 on a regression
+ *     java PerfHarness perf-baseline.json -record     measure and write the baseline
+ *
+ * Options (after the baseline file):
+ *
+ *     -record                 write the baseline instead of comparing (also done when the file does not exist yet)
+ *     -cp <classpath>         where HTTP1Server is (default: this JVM's classpath)
+ *     -duration <ms>          how long each workload runs (default 5000)
+ *     -clients <n>            connections driving each workload (default 8; overload uses eight times as many)
+ *     -threshold <fraction>   how much worse any metric may get before it counts as a regression (default 0.10)
+ *     -threshold:<metric> <fraction>   the same for one metric, e.g. -threshold:p99_ms 0.5
+ *
+ * The workloads are static GETs across the generated files, HEADs, GETs with If-Modified-Since (which end in 304), CGI POSTs, and an overload of slow
+ * CGI POSTs against a small bulkhead. For each one the harness records throughput, latency percentiles, the share of 503 and of other failed
+ * responses, and from the server's own metrics its resident set size and the garbage collection time the workload cost.
+ *
+ * Latency and rates near zero jitter by more than any fraction of themselves, so a regression also has to be larger than a small absolute amount for
+ * its metric (SLACK) before it counts.
+ */
+class PerfHarness {
+
+	static long duration = 5000;
+	static int clients = 8;
+	static double threshold = 0.10;
+	static LinkedHashMap<String, Double> thresholds = new LinkedHashMap<String, Double>();
+
+	//Metrics where a larger value is better; for every other one smaller is better
+	static final String[] HIGHER_IS_BETTER = {"throughput"};
+	//Changes smaller than these never count as regressions
+	static final String[][] SLACK = {{"p50_ms", "1"}, {"p90_ms", "2"}, {"p99_ms", "5"}, {"max_ms", "1000000"}, {"rate_503", "0.02"}, {"error_rate", "0.01"}, {"rss_mb", "32"}, {"gc_ms", "50"}};
+
+	//The generated files, by size
+	static final int[] SIZES = {512, 4 * 1024, 32 * 1024, 256 * 1024, 2 * 1024 * 1024};
+
+	public static void main(String[] args){
+		if(args.length < 1){
+			System.err.println("Usage: java PerfHarness <baseline.json> [-record] [-cp <classpath>] [-duration <ms>] [-clients <n>] [-threshold <fraction>] [-threshold:<metric> <fraction>]");
+			System.exit(2);
+		}
+		Path baseline = Paths.get(args[0]);
+		boolean record = false;
+		String classpath = System.getProperty("java.class.path");
+		try{
+			for(int i = 1; i < args.length; i++){
+				if(args[i].equals("-record")){
+					record = true;
+				}else if(args[i].equals("-cp")){
+					classpath = args[++i];
+				}else if(args[i].equals("-duration")){
+					duration = Long.parseLong(args[++i]);
+				}else if(args[i].equals("-clients")){
+					clients = Integer.parseInt(args[++i]);
+				}else if(args[i].equals("-threshold")){
+					threshold = Double.parseDouble(args[++i]);
+				}else if(args[i].startsWith("-threshold:")){
+					thresholds.put(args[i].substring(11), Double.parseDouble(args[++i]));
+				}else{
+					System.err.println("Unknown option "+args[i]);
+					System.exit(2);
+				}
+			}
+		}catch(RuntimeException e){
+			System.err.println("Bad options: "+e);
+			System.exit(2);
+		}
+
+		Process server = null;
+		Path docroot = null;
+		try{
+			docroot = Files.createTempDirectory("perf-docroot");
+			generateDocroot(docroot);
+			int port = freePort();
+			server = startServer(classpath, docroot, port);
+			LinkedHashMap<String, LinkedHashMap<String, Double>> results = runAll(port);
+			print(results);
+			if(record || !Files.exists(baseline)){
+				Files.write(baseline, toJson(results).getBytes(StandardCharsets.UTF_8));
+				System.out.println("Baseline written to "+baseline);
+				return;
+			}
+			ArrayList<String> regressions = compare(parseJson(new String(Files.readAllBytes(baseline), StandardCharsets.UTF_8)), results);
+			if(!regressions.isEmpty()){
+				System.out.println("REGRESSIONS:");
+				for(String r : regressions){
+					System.out.println("  "+r);
+				}
+				System.exit(1);
+			}
+			System.out.println("No regressions against "+baseline);
+		}catch(IOException e){
+			System.err.println("IOException in the performance harness: "+e.getMessage());
+			System.exit(2);
+		}catch(InterruptedException e){
+			System.exit(2);
+		}finally{
+			if(server != null){
+				server.destroyForcibly();
+			}
+			if(docroot != null){
+				deleteTree(docroot.toFile());
+			}
+		}
+	}
+
+	/*
+	 * The document root: text, HTML and binary files of every size in SIZES, an echo script, a slow script and the server's configuration. The contents
+	 * come from a fixed seed so that every run serves the same bytes.
+	 */
+	static void generateDocroot(Path root) throws IOException{
+		Random random = new Random(42);
+		for(int size : SIZES){
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			Files.write(root.resolve("file"+size+".bin"), data);
+			byte[] text = new byte[size];
+			for(int i = 0; i < size; i++){
+				text[i] = (byte) ('a' + random.nextInt(26));
+			}
+			Files.write(root.resolve("file"+size+".txt"), text);
+			Files.write(root.resolve("page"+size+".html"), text);
+		}
+		script(root.resolve("echo.cgi"), "#!/bin/sh\ncat\n");
+		script(root.resolve("slow.cgi"), "#!/bin/sh\nsleep 0.2\ncat\n");
+		//A small CGI bulkhead, so that the overload workload finds out how the server refuses work
+		String config = "bulkhead.cgi.limit=4\nbulkhead.cgi.queue=4\nbulkhead.cgi.queueTimeout=500\nmetrics.path=/server-metrics\n";
+		Files.write(root.resolve("server.properties"), config.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static void script(Path p, String text) throws IOException{
+		Files.write(p, text.getBytes(StandardCharsets.ISO_8859_1));
+		p.toFile().setExecutable(true);
+	}
+
+	static int freePort() throws IOException{
+		ServerSocket probe = new ServerSocket(0, 1, java.net.InetAddress.getLoopbackAddress());
+		try{
+			return probe.getLocalPort();
+		}finally{
+			probe.close();
+		}
+	}
+
+	/*
+	 * The classpath with every entry made absolute, since the server runs in the document root and not where the harness was started. A classpath
+	 * may list several entries, so each one is resolved on its own.
+	 */
+	static String absoluteClasspath(String classpath){
+		StringBuilder absolute = new StringBuilder();
+		for(String entry : classpath.split(File.pathSeparator)){
+			if(entry.isEmpty()){
+				//An empty entry means the current directory
+				entry = ".";
+			}
+			if(absolute.length() > 0){
+				absolute.append(File.pathSeparator);
+			}
+			absolute.append(new File(entry).getAbsolutePath());
+		}
+		return absolute.toString();
+	}
+
+	/*
+	 * Starts the server in its own JVM with the document root as its working directory, and waits until it accepts connections.
+	 */
+	static Process startServer(String classpath, Path docroot, int port) throws IOException, InterruptedException{
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		ProcessBuilder pb = new ProcessBuilder(java, "-cp", absoluteClasspath(classpath), "HTTP1Server", String.valueOf(port));
+		pb.directory(docroot.toFile());
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(docroot.resolve("server.log").toFile());
+		Process process = pb.start();
+		long deadline = System.currentTimeMillis() + 15000;
+		while(System.currentTimeMillis() < deadline){
+			if(!process.isAlive()){
+				throw new IOException("the server exited with status "+process.exitValue());
+			}
+			try{
+				Socket probe = new Socket();
+				probe.connect(new InetSocketAddress("127.0.0.1", port), 200);
+				probe.close();
+				return process;
+			}catch(IOException e){
+				Thread.sleep(100);
+			}
+		}
+		process.destroyForcibly();
+		throw new IOException("the server did not start accepting within 15 s");
+	}
+
+	/*
+	 * One kind of request the clients send over and over. next(i) is the i-th request of a client.
+	 */
+	static abstract class Workload {
+		String name;
+		int clients;
+
+		Workload(String name, int clients){
+			this.name = name;
+			this.clients = clients;
+		}
+
+		abstract byte[] next(int i);
+	}
+
+	static LinkedHashMap<String, LinkedHashMap<String, Double>> runAll(int port) throws IOException, InterruptedException{
+		final String[] files = new String[SIZES.length * 3];
+		for(int i = 0; i < SIZES.length; i++){
+			files[3 * i] = "/file"+SIZES[i]+".bin";
+			files[3 * i + 1] = "/file"+SIZES[i]+".txt";
+			files[3 * i + 2] = "/page"+SIZES[i]+".html";
+		}
+		final String future = "Fri, 01 Jan 2100 00:00:00 GMT";
+		Workload[] workloads = {
+			new Workload("static_get", clients){
+				byte[] next(int i){
+					return request("GET "+files[i % files.length]+" HTTP/1.1\r\nHost: perf\r\n\r\n");
+				}
+			},
+			new Workload("head", clients){
+				byte[] next(int i){
+					return request("HEAD "+files[i % files.length]+" HTTP/1.1\r\nHost: perf\r\n\r\n");
+				}
+			},
+			new Workload("conditional_get", clients){
+				byte[] next(int i){
+					return request("GET "+files[i % files.length]+" HTTP/1.1\r\nHost: perf\r\nIf-Modified-Since: "+future+"\r\n\r\n");
+				}
+			},
+			new Workload("cgi_post", clients){
+				byte[] next(int i){
+					return post("/echo.cgi", "n="+i);
+				}
+			},
+			new Workload("overload", clients * 8){
+				byte[] next(int i){
+					return post("/slow.cgi", "n="+i);
+				}
+			},
+		};
+		LinkedHashMap<String, LinkedHashMap<String, Double>> results = new LinkedHashMap<String, LinkedHashMap<String, Double>>();
+		//A short warm-up so that the first workload does not pay for class loading and JIT alone
+		run(port, workloads[0], Math.min(2000, duration));
+		for(Workload w : workloads){
+			Map<String, Double> before = serverMetrics(port);
+			LinkedHashMap<String, Double> r = run(port, w, duration);
+			Map<String, Double> after = serverMetrics(port);
+			r.put("rss_mb", value(after, "process_rss_bytes") / (1024.0 * 1024.0));
+			r.put("gc_ms", value(after, "jvm_gc_ms") - value(before, "jvm_gc_ms"));
+			results.put(w.name, r);
+		}
+		return results;
+	}
+
+	static byte[] request(String text){
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	static byte[] post(String path, String body){
+		return request("POST "+path+" HTTP/1.1\r\nHost: perf\r\nContent-Type: application/x-www-form-urlencoded\r\nContent-Length: "+body.length()+"\r\n\r\n"+body);
+	}
+
+	private static double value(Map<String, Double> metrics, String name){
+		Double v = metrics.get(name);
+		return v == null ? 0 : v;
+	}
+
+	/*
+	 * Drives one workload with its clients for the given time and works out its numbers. Each client keeps one persistent connection and opens a new one
+	 * whenever the server closes it.
+	 */
+	static LinkedHashMap<String, Double> run(final int port, final Workload w, final long millis) throws InterruptedException{
+		final long end = System.nanoTime() + millis * 1000000L;
+		final long[][] latencies = new long[w.clients][];
+		final AtomicLong refused = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		Thread[] threads = new Thread[w.clients];
+		for(int c = 0; c < w.clients; c++){
+			final int client = c;
+			threads[c] = new Thread(new Runnable(){
+				public void run(){
+					LongList mine = new LongList();
+					HttpConnection conn = null;
+					int i = client;
+					while(System.nanoTime() < end){
+						long start = System.nanoTime();
+						int status;
+						try{
+							if(conn == null){
+								conn = new HttpConnection(port);
+							}
+							status = conn.exchange(w.next(i++));
+						}catch(IOException e){
+							status = -1;
+						}
+						mine.add(System.nanoTime() - start);
+						if(status == 503){
+							refused.incrementAndGet();
+						}else if(status < 200 || status >= 400){
+							failed.incrementAndGet();
+						}
+						if(conn != null && (status < 0 || !conn.open)){
+							conn.close();
+							conn = null;
+						}
+					}
+					if(conn != null){
+						conn.close();
+					}
+					latencies[client] = mine.toArray();
+				}
+			}, "perf-client-"+c);
+			threads[c].start();
+		}
+		for(Thread t : threads){
+			t.join();
+		}
+		int total = 0;
+		for(long[] l : latencies){
+			total += l.length;
+		}
+		long[] all = new long[total];
+		int at = 0;
+		for(long[] l : latencies){
+			System.arraycopy(l, 0, all, at, l.length);
+			at += l.length;
+		}
+		Arrays.sort(all);
+		LinkedHashMap<String, Double> r = new LinkedHashMap<String, Double>();
+		r.put("requests", (double) total);
+		r.put("throughput", total * 1000.0 / millis);
+		r.put("p50_ms", percentile(all, 0.50));
+		r.put("p90_ms", percentile(all, 0.90));
+		r.put("p99_ms", percentile(all, 0.99));
+		r.put("max_ms", total == 0 ? 0 : all[total - 1] / 1000000.0);
+		r.put("rate_503", total == 0 ? 0 : refused.get() / (double) total);
+		r.put("error_rate", total == 0 ? 0 : failed.get() / (double) total);
+		return r;
+	}
+
+	static double percentile(long[] sorted, double p){
+		if(sorted.length == 0){
+			return 0;
+		}
+		int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+		return sorted[Math.max(0, i)] / 1000000.0;
+	}
+
+	/*
+	 * Reads the server's metrics page into name/value pairs; anything that does not parse as a number is left out.
+	 */
+	static Map<String, Double> serverMetrics(int port){
+		LinkedHashMap<String, Double> metrics = new LinkedHashMap<String, Double>();
+		try{
+			HttpConnection conn = new HttpConnection(port);
+			try{
+				conn.exchange(request("GET /server-metrics HTTP/1.1\r\nHost: perf\r\nConnection: close\r\n\r\n"));
+				for(String line : new String(conn.body, StandardCharsets.ISO_8859_1).split("\n")){
+					int space = line.lastIndexOf(' ');
+					if(space > 0){
+						try{
+							metrics.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+						}catch(NumberFormatException e){
+							//Not a number
+						}
+					}
+				}
+			}finally{
+				conn.close();
+			}
+		}catch(IOException e){
+			System.err.println("Cannot read the server metrics: "+e.getMessage());
+		}
+		return metrics;
+	}
+
+	/*
+	 * Every metric of every workload that is worse than in the baseline by more than its threshold (and its slack).
+	 */
+	static ArrayList<String> compare(Map<String, Map<String, Double>> baseline, Map<String, LinkedHashMap<String, Double>> results){
+		ArrayList<String> regressions = new ArrayList<String>();
+		for(Map.Entry<String, LinkedHashMap<String, Double>> w : results.entrySet()){
+			Map<String, Double> base = baseline.get(w.getKey());
+			if(base == null){
+				continue;
+			}
+			for(Map.Entry<String, Double> m : w.getValue().entrySet()){
+				String metric = m.getKey();
+				Double was = base.get(metric);
+				if(was == null || metric.equals("requests")){
+					continue;
+				}
+				double now = m.getValue();
+				double allowed = thresholds.containsKey(metric) ? thresholds.get(metric) : threshold;
+				boolean higherBetter = Arrays.asList(HIGHER_IS_BETTER).contains(metric);
+				double worse = higherBetter ? was - now : now - was;
+				if(worse > slack(metric) && worse > Math.abs(was) * allowed){
+					regressions.add(String.format("%s %s: %.3f -> %.3f (%s%.1f%%, allowed %.1f%%)", w.getKey(), metric, was, now, higherBetter ? "-" : "+", was == 0 ? 100.0 : 100.0 * worse / Math.abs(was), 100.0 * allowed));
+				}
+			}
+		}
+		return regressions;
+	}
+
+	private static double slack(String metric){
+		for(String[] s : SLACK){
+			if(s[0].equals(metric)){
+				return Double.parseDouble(s[1]);
+			}
+		}
+		return 0;
+	}
+
+	static void print(Map<String, LinkedHashMap<String, Double>> results){
+		for(Map.Entry<String, LinkedHashMap<String, Double>> w : results.entrySet()){
+			StringBuilder line = new StringBuilder(String.format("%-16s", w.getKey()));
+			for(Map.Entry<String, Double> m : w.getValue().entrySet()){
+				line.append(String.format(" %s=%.2f", m.getKey(), m.getValue()));
+			}
+			System.out.println(line);
+		}
+	}
+
+	/*
+	 * The baseline is a JSON object of workloads, each an object of metric names and numbers. Nothing else is ever written, so this is all that has to be
+	 * read back.
+	 */
+	static String toJson(Map<String, LinkedHashMap<String, Double>> results){
+		StringBuilder json = new StringBuilder("{\n");
+		int w = 0;
+		for(Map.Entry<String, LinkedHashMap<String, Double>> e : results.entrySet()){
+			json.append("  \"").append(e.getKey()).append("\": {");
+			int m = 0;
+			for(Map.Entry<String, Double> metric : e.getValue().entrySet()){
+				json.append(m++ == 0 ? "" : ", ").append('"').append(metric.getKey()).append("\": ").append(String.format(java.util.Locale.ROOT, "%.4f", metric.getValue()));
+			}
+			json.append(w++ < results.size() - 1 ? "},\n" : "}\n");
+		}
+		return json.append("}\n").toString();
+	}
+
+	static Map<String, Map<String, Double>> parseJson(String json) throws IOException{
+		LinkedHashMap<String, Map<String, Double>> baseline = new LinkedHashMap<String, Map<String, Double>>();
+		Matcher workload = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\\{([^}]*)\\}").matcher(json);
+		while(workload.find()){
+			LinkedHashMap<String, Double> metrics = new LinkedHashMap<String, Double>();
+			Matcher metric = Pattern.compile("\"([^\"]+)\"\\s*:\\s*(-?[0-9.eE+-]+)").matcher(workload.group(2));
+			while(metric.find()){
+				metrics.put(metric.group(1), Double.parseDouble(metric.group(2)));
+			}
+			baseline.put(workload.group(1), metrics);
+		}
+		if(baseline.isEmpty()){
+			throw new IOException("the baseline has no workloads");
+		}
+		return baseline;
+	}
+
+	static void deleteTree(File f){
+		File[] children = f.listFiles();
+		if(children != null){
+			for(File c : children){
+				deleteTree(c);
+			}
+		}
+		f.delete();
+	}
+}
+
+/*
+ * A growable array of longs, so that a client can record a latency per request without boxing it.
+ */
+class LongList {
+	private long[] values = new long[1024];
+	private int size = 0;
+
+	void add(long v){
+		if(size == values.length){
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = v;
+	}
+
+	long[] toArray(){
+		return Arrays.copyOf(values, size);
+	}
+}
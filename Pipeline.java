@@ -0,0 +1,206 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * This class serves the requests an HTTP/1.1 client has pipelined, that is sent behind the one being served without waiting for its response. Once a
+ * response has been sent, the CommunicationThread hands its connection over to here if more bytes are already waiting. Every whole request head in the
+ * buffer that is an independent static request is then taken off the connection and served on a thread of its own, up to a window of requests per
+ * connection, while the responses are written back strictly in the order of the requests: a response that is ready early waits in the reorder buffer
+ * (the queue of requests in flight) until every response before it has been written.
+ *
+ * Each of these requests is served by a detached CommunicationThread, which runs the very same handleRequest as the connection does, only reading the
+ * request from the bytes taken off the connection and writing the response to memory; so a pipelined response is exactly what the client would have got
+ * one request at a time. What may be served this way is what cannot depend on the requests around it and whose response is small enough to hold in
+ * memory: GET and HEAD over HTTP/1.1, without a body or Expect or Upgrade, for a path that is not a script, a proxy route or a handler, and not a file
+ * larger than pipeline.maxBytes. The first request that is anything else ends the run, and it is read and served the usual way, after every response
+ * in flight has been written.
+ *
+ * pipeline.window    - pipelined requests served at once per connection (default 8); 1 or less serves every request in turn
+ * pipeline.maxBytes  - larger files are streamed in turn rather than held in memory (default staticfiles.bufferLimit)
+ * pipeline.threads   - threads for pipelined requests, for all connections together (default 64); with all of them busy, the connection's own thread
+ *                      serves the request
+ */
+class Pipeline {
+
+	static int window = 8;
+	static long maxBytes = 1024 * 1024;
+	static ThreadPoolExecutor workers;		//null while pipelining is off
+
+	public static void configure(){
+		window = ServerConfig.getInt("pipeline.window", window);
+		maxBytes = ServerConfig.getLong("pipeline.maxBytes", StaticFiles.bufferLimit);
+		if(window > 1){
+			workers = new ThreadPoolExecutor(0, Math.max(1, ServerConfig.getInt("pipeline.threads", 64)), 10, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		}
+	}
+
+	/*
+	 * One pipelined request and, once it has been served, its response.
+	 */
+	static class PipelinedRequest implements Runnable {
+		CommunicationThread detached;
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		boolean persistent;
+		private CountDownLatch done = new CountDownLatch(1);
+
+		public PipelinedRequest(CommunicationThread connection, byte[] head){
+			RequestReader in = new RequestReader(new ByteArrayInputStream(head));
+			detached = new CommunicationThread(connection.connectionSocket, new DataOutputStream(response), in, new ConnectionWatch(connection.connectionSocket, in, new MeteredOutputStream(response)), connection.SERVER_NAME, connection.SERVER_PORT);
+			detached.detached = true;
+			detached.requestCount = connection.requestCount;
+		}
+
+		public void run(){
+			try{
+				persistent = detached.serveDetached();
+			}finally{
+				done.countDown();
+			}
+		}
+
+		public boolean isDone(){
+			return done.getCount() == 0;
+		}
+
+		public void await(){
+			try{
+				done.await();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*
+	 * Serves the pipelined requests waiting on a connection, as described above. Returns true if the connection stays open for the next request.
+	 */
+	public static boolean serve(CommunicationThread connection){
+		ArrayDeque<PipelinedRequest> inFlight = new ArrayDeque<PipelinedRequest>();
+		boolean taking = true;
+		while(true){
+			while(taking && inFlight.size() < window){
+				byte[] head;
+				try{
+					head = next(connection.clientMessage);
+				}catch(IOException e){
+					head = null;
+				}
+				if(head == null){
+					taking = false;
+					break;
+				}
+				PipelinedRequest request = new PipelinedRequest(connection, head);
+				connection.requestCount++;
+				ServerMetrics.increment("pipelined_requests");
+				try{
+					workers.execute(request);
+				}catch(RejectedExecutionException e){
+					ServerMetrics.increment("pipelined_inline");
+					request.run();
+				}
+				inFlight.add(request);
+			}
+			PipelinedRequest first = inFlight.poll();
+			if(first == null){
+				return true;
+			}
+			first.await();
+			try{
+				first.response.writeTo(connection.outToClient);
+				//Responses that are ready anyway go out in the same flush
+				if(inFlight.isEmpty() || !inFlight.peek().isDone() || !first.persistent){
+					connection.outToClient.flush();
+				}
+			}catch(IOException e){
+				connection.closeConnections();
+				return false;
+			}
+			if(!first.persistent){
+				//The client is told this was the last response; whatever it sent after the request is not answered
+				connection.closeLater();
+				return false;
+			}
+			//Once the window has room again, later requests may have arrived
+			taking = taking || inFlight.isEmpty();
+		}
+	}
+
+	/*
+	 * Takes the next request head off the connection if it is whole in the buffer and may be served out of turn. Returns null and leaves the buffer as
+	 * it was otherwise.
+	 */
+	static byte[] next(RequestReader in) throws IOException{
+		int length = in.bufferedHead();
+		if(length < 0 || !independent(in.peek(length))){
+			return null;
+		}
+		byte[] head = in.take(length);
+		in.endRequest();
+		return head;
+	}
+
+	static boolean independent(String head){
+		String[] lines = head.split("\r?\n");
+		int i = 0;
+		while(i < lines.length && lines[i].isEmpty()){
+			i++;
+		}
+		if(i == lines.length){
+			return false;
+		}
+		StringTokenizer tokens = new StringTokenizer(lines[i]);
+		if(tokens.countTokens() != 3){
+			return false;
+		}
+		String method = tokens.nextToken();
+		String path = tokens.nextToken();
+		if(!(method.equals("GET") || method.equals("HEAD")) || !path.startsWith("/") || !tokens.nextToken().equals("HTTP/1.1")){
+			return false;
+		}
+		for(i++; i < lines.length; i++){
+			String name = ReverseProxy.headerName(lines[i]).toLowerCase();
+			if(name.equals("content-length") || name.equals("transfer-encoding") || name.equals("expect") || name.equals("upgrade") || name.equals("http2-settings")){
+				return false;
+			}
+		}
+		if(path.contains(".cgi")){
+			return false;
+		}
+		if(ReverseProxy.instance != null && ReverseProxy.instance.match(path) != null){
+			return false;
+		}
+		//The handlers, the pack and the document root are looked up without the query, as the Origin does
+		int q = path.indexOf('?');
+		String file = q < 0 ? path : path.substring(0, q);
+		if(RouteTrie.routes != null && RouteTrie.routes.match(file) != null){
+			return false;
+		}
+		if(DocrootPack.instance != null){
+			int entry = DocrootPack.instance.find(file);
+			if(entry >= 0){
+				return DocrootPack.instance.bodyLength(entry, false) <= maxBytes;
+			}
+		}
+		try{
+			Path p = Paths.get("."+file);
+			return !Files.isRegularFile(p) || Files.size(p) <= maxBytes;
+		}catch(InvalidPathException e){
+			return false;
+		}catch(IOException e){
+			return false;
+		}
+	}
+}
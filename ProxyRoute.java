@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * A configured path prefix and the backends that serve it.
+ */
+class ProxyRoute {
+	String prefix;
+	UpstreamBackend[] backends;
+
+	public ProxyRoute(String prefix, UpstreamBackend[] backends){
+		this.prefix = prefix;
+		this.backends = backends;
+	}
+
+	//"/api" matches "/api", "/api/x" and "/api?x" but not "/apix"
+	public boolean matches(String path){
+		if(!path.startsWith(prefix)){
+			return false;
+		}
+		if(path.length() == prefix.length() || prefix.endsWith("/")){
+			return true;
+		}
+		char next = path.charAt(prefix.length());
+		return next == '/' || next == '?';
+	}
+
+	/*
+	 * Least outstanding requests among the backends that are up. Ties are broken at random so that an idle route does not send everything to the first
+	 * backend. If every backend is marked down, the one whose cooldown ends first is tried anyway rather than failing the request outright. The
+	 * backends this request has already tried are left out; null once that is all of them.
+	 */
+	public UpstreamBackend choose(ArrayList<UpstreamBackend> tried){
+		long now = System.currentTimeMillis();
+		UpstreamBackend best = null;
+		int bestLoad = Integer.MAX_VALUE;
+		int ties = 0;
+		for(UpstreamBackend b : backends){
+			if(!b.isAvailable(now) || tried.contains(b)){
+				continue;
+			}
+			int load = b.outstanding.get();
+			if(load < bestLoad){
+				best = b;
+				bestLoad = load;
+				ties = 1;
+			}else if(load == bestLoad){
+				ties++;
+				if(ThreadLocalRandom.current().nextInt(ties) == 0){
+					best = b;
+				}
+			}
+		}
+		if(best == null){
+			for(UpstreamBackend b : backends){
+				if(tried.contains(b)){
+					continue;
+				}
+				if(best == null || b.downUntil < best.downUntil){
+					best = b;
+				}
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,121 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * This class measures what single requests cost: the bytes the thread serving a request allocated on the heap and the CPU time it used, both read
+ * from the ThreadMXBean before and after the request. Reading them is not free, so only a sample of the requests is measured. The results go into
+ * histograms by method, status and content type, rendered with the other metrics:
+ *
+ *     request_alloc_bytes_bucket{method="GET",status="200",content_type="text/html",le="65536"} 1234
+ *     request_cpu_us_bucket{method="POST",status="200",content_type="text/html",le="1000"} 56
+ *
+ * which tells which kind of request causes the garbage collector's work, and whether a change made it allocate less. The method and the content type
+ * come from the client or from a proxied backend, so only the values in METHODS and CONTENT_TYPES become labels of their own and everything else is
+ * counted as "other"; otherwise every made-up method would add series to the metrics page for good.
+ *
+ * Only the thread that serves the request is measured. For HTTP/1 that includes reading and parsing the request; for HTTP/2 the frames and header
+ * blocks are decoded by the connection's own thread, so the numbers are what the stream thread did after that. A script run by a CGI request is a
+ * process of its own and not part of its CPU time.
+ *
+ * accounting.sampleRate  - the share of requests measured, from 0 (off) to 1 (every request; default 0.01)
+ */
+class RequestAccounting {
+
+	static double sampleRate = 0.01;
+	static ThreadMXBean threads;
+	static com.sun.management.ThreadMXBean allocations;	//null where the JVM cannot count allocated bytes per thread
+
+	static final long[] ALLOC_BOUNDS = {1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216, 67108864};
+	static final long[] CPU_BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 100000};
+	static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS"};
+	//The types the server sends itself (see StaticFiles.contentType)
+	static final String[] CONTENT_TYPES = {"text/html", "text/plain", "image/gif", "image/jpeg", "image/png", "application/pdf", "application/z-gzip",
+		"application/zip", "application/octet-stream"};
+
+	public static void configure(){
+		sampleRate = Math.max(0.0, Math.min(1.0, ServerConfig.getDouble("accounting.sampleRate", sampleRate)));
+		if(sampleRate == 0){
+			return;
+		}
+		threads = ManagementFactory.getThreadMXBean();
+		if(threads.isCurrentThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()){
+			threads.setThreadCpuTimeEnabled(true);
+		}
+		if(threads instanceof com.sun.management.ThreadMXBean){
+			com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+			if(sun.isThreadAllocatedMemorySupported()){
+				if(!sun.isThreadAllocatedMemoryEnabled()){
+					sun.setThreadAllocatedMemoryEnabled(true);
+				}
+				allocations = sun;
+			}
+		}
+		if(allocations == null && !threads.isCurrentThreadCpuTimeSupported()){
+			System.err.println("This JVM measures neither allocations nor CPU time per thread; request accounting is off.");
+			sampleRate = 0;
+		}
+	}
+
+	/*
+	 * Decides whether the request the current thread is about to serve is measured, and if so takes the first readings. Returns null for the requests
+	 * that are not, which is all the cost they have. With sniff the sample gets a ResponseSniffer for the HTTP/1 output to feed.
+	 */
+	public static RequestSample start(boolean sniff){
+		if(sampleRate == 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate){
+			return null;
+		}
+		RequestSample sample = new RequestSample();
+		//Made before the readings, so that its buffer is not counted against the request
+		sample.sniffer = sniff ? new ResponseSniffer() : null;
+		sample.thread = Thread.currentThread();
+		sample.cpu = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+		sample.allocated = allocations != null ? allocations.getThreadAllocatedBytes(sample.thread.getId()) : -1;
+		return sample;
+	}
+
+	/*
+	 * Takes the second readings on the same thread and adds the differences to the histograms. Status and content type come from the sniffer if the
+	 * sample has one. A sample without a method (the client went away before sending a request line) is dropped, and so is one whose response was a
+	 * 101, since the connection has become an HTTP/2 connection whose streams are sampled on their own.
+	 */
+	public static void finish(RequestSample sample, int status, String contentType){
+		if(sample == null || sample.method == null || sample.thread != Thread.currentThread()){
+			return;
+		}
+		//The readings come first, so that working out the labels is not counted against the request
+		long allocated = sample.allocated >= 0 ? allocations.getThreadAllocatedBytes(sample.thread.getId()) - sample.allocated : -1;
+		long cpu = sample.cpu >= 0 ? (threads.getCurrentThreadCpuTime() - sample.cpu) / 1000 : -1;
+		if(sample.sniffer != null){
+			status = sample.sniffer.status();
+			contentType = sample.sniffer.contentType();
+		}
+		if(status == 101){
+			return;
+		}
+		if(contentType == null){
+			contentType = "none";
+		}else{
+			//Parameters like charset would only split the same type over more series
+			int semicolon = contentType.indexOf(';');
+			contentType = known((semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(), CONTENT_TYPES);
+		}
+		String[] labels = {"method", known(sample.method, METHODS), "status", status > 0 ? String.valueOf(status) : "none", "content_type", contentType};
+		if(allocated >= 0){
+			ServerMetrics.observe("request_alloc_bytes", labels, allocated, ALLOC_BOUNDS);
+		}
+		if(cpu >= 0){
+			ServerMetrics.observe("request_cpu_us", labels, cpu, CPU_BOUNDS);
+		}
+	}
+
+	//The value itself if it is one of the known ones, otherwise "other"
+	static String known(String value, String[] values){
+		for(String v : values){
+			if(v.equals(value)){
+				return v;
+			}
+		}
+		return "other";
+	}
+}
@@ -0,0 +1,282 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/*
+ * This class is the buffered reader that sits on top of a socket's input stream. It replaces the BufferedReader/InputStreamReader pair that used to be
+ * handed to the CommunicationThread, because a character reader decodes the bytes that it buffers and so there is no way to get the raw bytes of a
+ * request body (or anything else that follows the header lines) back out of it. Header lines are still returned as Strings through readLine, and
+ * every other byte is available through the usual InputStream read methods, so the same buffer can be used for both.
+ *
+ * For a client connection it also keeps the read deadline, in place of a socket timeout: every read from the socket that has to wait puts a timeout on
+ * the TimerWheel, and if that fires first the input side of the socket is shut down, which ends the blocked read. The read (and every one after it)
+ * then throws SocketTimeoutException, just like a socket timeout would have.
+ */
+class RequestReader extends InputStream {
+
+	InputStream in;
+	byte[] buf;
+	int pos = 0;	//Next byte in the buffer to be handed out
+	int limit = 0;	//One past the last valid byte in the buffer
+	int maxLineLength = Integer.MAX_VALUE;	//Longest line readLine accepts before it throws LineTooLongException
+	volatile long bytesRead = 0;	//Everything read off the socket so far
+	volatile long pendingSince = 0;	//Start of the read from the socket that is blocked right now, 0 if none
+	Socket socket;					//The socket whose input this is, if read deadlines are kept for it
+	volatile long readTimeout = 0;	//Longest a read from the socket may wait, in ms; 0 waits for ever
+	volatile boolean timedOut = false;
+	ByteArrayOutputStream captured;	//What was handed out of the current request, while the TrafficCapture is on; null otherwise
+	private long capturedSince;		//When the first of those bytes was handed out (System.nanoTime)
+	private int connectionId = 0;	//The connection's number in the capture, 0 until it has one
+
+	public RequestReader(InputStream in){
+		this(in, 8192);
+	}
+
+	public RequestReader(InputStream in, int size){
+		this.in = in;
+		this.buf = new byte[size];
+	}
+
+	//A reader for a client socket, whose reads can be given a deadline
+	public RequestReader(Socket socket) throws IOException{
+		this(socket.getInputStream());
+		this.socket = socket;
+		if(TrafficCapture.instance != null){
+			captured = new ByteArrayOutputStream();
+		}
+	}
+
+	//Everything handed out of the buffer or read past it goes through here, for the capture
+	private void capture(byte[] b, int off, int len){
+		TrafficCapture capture = TrafficCapture.instance;
+		if(captured == null || capture == null || len <= 0){
+			return;
+		}
+		if(captured.size() == 0){
+			capturedSince = System.nanoTime();
+		}
+		//One byte past the limit is enough for the capture to know it is too long
+		if(captured.size() <= capture.maxRequestBytes){
+			captured.write(b, off, Math.min(len, capture.maxRequestBytes + 1 - captured.size()));
+		}
+	}
+
+	/*
+	 * Called once a whole request has been read: what was handed out since the last call is recorded as one request.
+	 */
+	public void endRequest(){
+		TrafficCapture capture = TrafficCapture.instance;
+		if(captured == null || captured.size() == 0){
+			return;
+		}
+		if(capture != null){
+			if(connectionId == 0){
+				connectionId = capture.connectionId();
+			}
+			capture.record(connectionId, capturedSince, captured.toByteArray());
+		}
+		captured.reset();
+	}
+
+	/*
+	 * Refills the buffer from the underlying stream once everything in it has been handed out. Returns false when the stream has ended.
+	 */
+	private boolean fill() throws IOException{
+		if(pos < limit){
+			return true;
+		}
+		int n = readSocket(buf, 0, buf.length);
+		if(n <= 0){
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+
+	//Every read from the underlying stream goes through here, so that the slow client guard can see blocked reads and the byte count
+	private int readSocket(byte[] b, int off, int len) throws IOException{
+		if(timedOut){
+			throw new SocketTimeoutException("Read timed out");
+		}
+		TimerWheel.Timeout deadline = null;
+		if(socket != null && readTimeout > 0 && in.available() == 0){
+			deadline = TimerWheel.shared.schedule(new Runnable(){
+				public void run(){
+					timedOut = true;
+					try{
+						socket.shutdownInput();
+					}catch(IOException e){
+						//Already closed, which ends the read just as well
+					}
+				}
+			}, readTimeout);
+		}
+		pendingSince = System.currentTimeMillis();
+		int n;
+		try{
+			n = in.read(b, off, len);
+		}finally{
+			pendingSince = 0;
+			if(deadline != null){
+				deadline.cancel();
+			}
+		}
+		if(timedOut){
+			throw new SocketTimeoutException("Read timed out");
+		}
+		if(n > 0){
+			bytesRead += n;
+		}
+		return n;
+	}
+
+	/*
+	 * Reads one line terminated by LF (an optional CR before it is dropped) and returns it as a String with every byte mapped to the char of the same value,
+	 * so the header text is never mangled by the platform charset. Returns null if the stream ends before any byte of the line is read, like BufferedReader does.
+	 * A line longer than maxLineLength is not collected any further; LineTooLongException is thrown instead.
+	 */
+	public String readLine() throws IOException{
+		StringBuilder line = null;
+		while(true){
+			if(!fill()){
+				return line == null ? null : line.toString();
+			}
+			if(line == null){
+				line = new StringBuilder();
+			}
+			int start = pos;
+			while(pos < limit){
+				byte b = buf[pos++];
+				if(b == '\n'){
+					capture(buf, start, pos - start);
+					int end = pos - 1;
+					if(end > start && buf[end - 1] == '\r'){
+						end--;
+					}else if(end == start && line.length() > 0 && line.charAt(line.length() - 1) == '\r'){
+						line.setLength(line.length() - 1);
+					}
+					appendLatin1(line, start, end);
+					if(line.length() > maxLineLength){
+						throw new LineTooLongException();
+					}
+					return line.toString();
+				}
+			}
+			capture(buf, start, limit - start);
+			appendLatin1(line, start, limit);
+			if(line.length() > maxLineLength){
+				throw new LineTooLongException();
+			}
+		}
+	}
+
+	private void appendLatin1(StringBuilder line, int start, int end){
+		for(int i = start; i < end; i++){
+			line.append((char) (buf[i] & 0xff));
+		}
+	}
+
+	//Number of bytes that have already been read off the socket and are waiting in the buffer
+	public int buffered(){
+		return limit - pos;
+	}
+
+	/*
+	 * Looks for a whole request head (request line and header lines up to the blank line) at the start of what is buffered, and returns its length in
+	 * bytes, or -1 if there is none. Bytes that have already arrived on the socket are taken into the buffer first, as far as it has room, but this never
+	 * waits for more. Used to find requests a client has pipelined behind the one being served.
+	 */
+	public int bufferedHead() throws IOException{
+		if(in.available() > 0 && !timedOut){
+			if(pos > 0){
+				System.arraycopy(buf, pos, buf, 0, limit - pos);
+				limit -= pos;
+				pos = 0;
+			}
+			if(limit < buf.length){
+				int n = readSocket(buf, limit, Math.min(buf.length - limit, in.available()));
+				if(n > 0){
+					limit += n;
+				}
+			}
+		}
+		for(int i = pos; i < limit; i++){
+			if(buf[i] == '\n'){
+				//Blank lines in front of the request line do not end anything
+				boolean blank = i == pos || i == pos + 1 && buf[pos] == '\r';
+				int next = i + 1;
+				if(!blank && next < limit && buf[next] == '\n'){
+					return next + 1 - pos;
+				}
+				if(!blank && next + 1 < limit && buf[next] == '\r' && buf[next + 1] == '\n'){
+					return next + 2 - pos;
+				}
+			}
+		}
+		return -1;
+	}
+
+	//The next n buffered bytes as text, without taking them
+	public String peek(int n){
+		return new String(buf, pos, n, java.nio.charset.StandardCharsets.ISO_8859_1);
+	}
+
+	//Takes the next n buffered bytes
+	public byte[] take(int n){
+		byte[] taken = new byte[n];
+		System.arraycopy(buf, pos, taken, 0, n);
+		capture(buf, pos, n);
+		pos += n;
+		return taken;
+	}
+
+	//Same meaning as BufferedReader.ready(): true if a read would not block
+	public boolean ready() throws IOException{
+		return pos < limit || in.available() > 0;
+	}
+
+	@Override
+	public int read() throws IOException{
+		if(!fill()){
+			return -1;
+		}
+		capture(buf, pos, 1);
+		return buf[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException{
+		if(len == 0){
+			return 0;
+		}
+		if(pos >= limit){
+			//Large reads skip the buffer entirely when it is empty
+			if(len >= buf.length){
+				int n = readSocket(b, off, len);
+				capture(b, off, n);
+				return n;
+			}
+			if(!fill()){
+				return -1;
+			}
+		}
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(buf, pos, b, off, n);
+		capture(buf, pos, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException{
+		return (limit - pos) + in.available();
+	}
+
+	@Override
+	public void close() throws IOException{
+		in.close();
+	}
+}
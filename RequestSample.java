@@ -0,0 +1,10 @@
+/*
+ * The first readings for one measured request, and its method once the request line has been read.
+ */
+class RequestSample {
+	Thread thread;
+	long cpu;			//ns, -1 if not measured
+	long allocated;		//bytes, -1 if not measured
+	String method;
+	ResponseSniffer sniffer;	//HTTP/1 only
+}
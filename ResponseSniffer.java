@@ -0,0 +1,60 @@
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Picks the status code and the content type out of the bytes of an HTTP/1 response as they are written, for a request that is being measured. It
+ * looks at the header block only (an interim 100 Continue block is skipped), and stops at the blank line after it, so the body is not looked at.
+ */
+class ResponseSniffer {
+	private byte[] head = new byte[1024];
+	private int length = 0;
+	private boolean done = false;
+
+	public void write(byte[] b, int off, int len){
+		for(int i = off; i < off + len && !done; i++){
+			write(b[i]);
+		}
+	}
+
+	public void write(int b){
+		if(done){
+			return;
+		}
+		if(length == head.length){
+			//A header block this long is not worth following to the content type
+			done = true;
+			return;
+		}
+		head[length++] = (byte) b;
+		if(length >= 4 && head[length - 4] == '\r' && head[length - 3] == '\n' && head[length - 2] == '\r' && head[length - 1] == '\n'){
+			if(status() == 100){
+				length = 0;
+			}else{
+				done = true;
+			}
+		}
+	}
+
+	//The status code of the response, or 0 if nothing that looks like a status line was written
+	public int status(){
+		String text = new String(head, 0, length, StandardCharsets.ISO_8859_1);
+		int space = text.indexOf(' ');
+		if(!text.startsWith("HTTP/") || space < 0 || text.length() < space + 4){
+			return 0;
+		}
+		try{
+			return Integer.parseInt(text.substring(space + 1, space + 4));
+		}catch(NumberFormatException e){
+			return 0;
+		}
+	}
+
+	public String contentType(){
+		String text = new String(head, 0, length, StandardCharsets.ISO_8859_1);
+		for(String line : text.split("\r\n")){
+			if(line.regionMatches(true, 0, "Content-Type:", 0, 13)){
+				return line.substring(13).trim();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,463 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/*
+ * This class implements the reverse-proxy mode of the server. Path prefixes listed in the configuration are forwarded to one of several upstream HTTP
+ * servers instead of being looked up in the local directory, for example:
+ *
+ *     proxy.route./api=127.0.0.1:8081,127.0.0.1:8082
+ *
+ * Upstream connections are kept alive and pooled per backend, request and response bodies are copied through a fixed size buffer as they arrive
+ * (nothing is ever held in memory as a whole, over HTTP/1 or HTTP/2), and every request goes to the healthy backend that currently has the fewest outstanding requests.
+ * Backends that fail to connect or answer are marked down for a cooldown period after a number of consecutive failures (passive health checking), and
+ * a request whose backend can not be connected to is sent to the next one instead.
+ */
+class ReverseProxy {
+
+	//The proxy is created once at startup; it stays null when no routes are configured so that the normal request path pays nothing for it
+	static ReverseProxy instance;
+
+	ArrayList<ProxyRoute> routes = new ArrayList<ProxyRoute>();
+	int connectTimeout;
+	int readTimeout;
+
+	/*
+	 * Builds the proxy from every proxy.route.<prefix> setting. Returns null when there are none.
+	 */
+	public static ReverseProxy fromConfig(){
+		ReverseProxy proxy = new ReverseProxy();
+		proxy.connectTimeout = ServerConfig.getInt("proxy.connectTimeout", 2000);
+		proxy.readTimeout = ServerConfig.getInt("proxy.readTimeout", 30000);
+		int maxIdle = ServerConfig.getInt("proxy.pool.maxIdle", 16);
+		long idleTimeout = ServerConfig.getLong("proxy.pool.idleTimeout", 30000);
+		int maxFailures = ServerConfig.getInt("proxy.health.failures", 3);
+		long cooldown = ServerConfig.getLong("proxy.health.cooldown", 10000);
+
+		for(String key : ServerConfig.keysWithPrefix("proxy.route.")){
+			String prefix = key.substring("proxy.route.".length());
+			if(!prefix.startsWith("/")){
+				System.err.println("Proxy route "+prefix+" must start with /, ignoring it.");
+				continue;
+			}
+			ArrayList<UpstreamBackend> backends = new ArrayList<UpstreamBackend>();
+			for(String target : ServerConfig.getString(key, "").split(",")){
+				target = target.trim();
+				int colon = target.lastIndexOf(':');
+				if(colon <= 0){
+					System.err.println("Proxy backend "+target+" must be host:port, ignoring it.");
+					continue;
+				}
+				try{
+					int port = Integer.parseInt(target.substring(colon + 1));
+					backends.add(new UpstreamBackend(target.substring(0, colon), port, maxIdle, idleTimeout, maxFailures, cooldown));
+				}catch(NumberFormatException e){
+					System.err.println("Proxy backend "+target+" must be host:port, ignoring it.");
+				}
+			}
+			if(!backends.isEmpty()){
+				proxy.routes.add(new ProxyRoute(prefix, backends.toArray(new UpstreamBackend[backends.size()])));
+			}
+		}
+		if(proxy.routes.isEmpty()){
+			return null;
+		}
+		//Longest prefix first, so that /api/v2 wins over /api
+		Collections.sort(proxy.routes, new Comparator<ProxyRoute>(){
+			public int compare(ProxyRoute a, ProxyRoute b){
+				return b.prefix.length() - a.prefix.length();
+			}
+		});
+		return proxy;
+	}
+
+	//Returns the route that should handle this path, or null if the path is served locally
+	public ProxyRoute match(String path){
+		for(ProxyRoute route : routes){
+			if(route.matches(path)){
+				return route;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Forwards one request to a backend of the route and streams the backend's response back, whatever protocol the request came in on: its header lines
+	 * and body are sent upstream as HTTP/1.1 on a pooled connection, and the response is handed to the OriginResponse as a status, header fields and a
+	 * body stream, which frames it for the client (a length or chunks for HTTP/1.1, the end of the connection for HTTP/1.0, DATA frames for HTTP/2).
+	 * A body without a declared length (a chunked HTTP/1.1 body, or HTTP/2 DATA) goes upstream chunked.
+	 *
+	 * If the backend fails before any part of the response has been sent, the client gets a 502 (or 504 for a timeout) and the backend's failure count
+	 * goes up. Once the response has started, an IOException is thrown instead, and the caller has to end the client's connection or stream, which is
+	 * the only way left to tell the client. Failures reading the request body are the client's and are thrown as they are, BodyTooLargeException once
+	 * the body is longer than limits.body.
+	 */
+	public void forward(ProxyRoute route, HandlerRequest request, OriginResponse response) throws IOException{
+		String method = request.method();
+		String target = request.query() == null ? request.path() : request.path()+"?"+request.query();
+		InputStream body = request.body();
+		String te = request.header("Transfer-Encoding");
+		String declared = te != null && te.toLowerCase().contains("chunked") ? null : request.header("Content-Length");
+		long contentLength = -1;
+		if(declared != null){
+			try{
+				contentLength = Long.parseLong(declared.trim());
+			}catch(NumberFormatException e){
+				contentLength = -1;
+			}
+			if(contentLength < 0){
+				response.sendStatus(400, "Bad Request");
+				return;
+			}
+			if(contentLength > CommunicationThread.maxBodyBytes){
+				throw new BodyTooLargeException();
+			}
+		}
+		//Without a declared length, whether there is a body at all is only known once its first bytes (or its end) have arrived
+		byte[] buffer = new byte[8192];
+		int first = 0;
+		if(contentLength < 0){
+			first = body.read(buffer);
+			if(first < 0){
+				contentLength = 0;
+				first = 0;
+			}
+		}
+		boolean chunked = contentLength < 0;
+		boolean sendLength = !chunked && (declared != null || method.equals("POST") || method.equals("PUT"));
+
+		//A backend that can not be connected to has not seen anything of the request, so the next one is tried (failover)
+		ArrayList<UpstreamBackend> tried = new ArrayList<UpstreamBackend>();
+		UpstreamBackend backend;
+		UpstreamConnection conn = null;
+		while(true){
+			backend = route.choose(tried);
+			if(backend == null){
+				if(tried.isEmpty()){
+					response.sendStatus(503, "Service Unavailable");
+				}else{
+					response.sendStatus(502, "Bad Gateway");
+				}
+				return;
+			}
+			backend.outstanding.incrementAndGet();
+			try{
+				conn = backend.acquire(connectTimeout, readTimeout);
+				break;
+			}catch(IOException e){
+				backend.markFailure();
+				backend.outstanding.decrementAndGet();
+				tried.add(backend);
+				ServerMetrics.increment("proxy_failovers");
+			}
+		}
+
+		boolean clientFault = false;	//True while the request body is read, since a failure there is the client's and not the backend's
+		try{
+			boolean reused = conn.reused;
+			try{
+				sendRequestHead(conn, backend, method, target, request, chunked, sendLength ? contentLength : -1);
+				conn.out.flush();
+			}catch(IOException e){
+				//A pooled connection may have been closed by the backend while it sat idle. Nothing has been read from the client body yet (beyond the first
+				//bytes, which are still in the buffer), so it is safe to try again once on a brand new connection.
+				if(!reused){
+					throw e;
+				}
+				conn.close();
+				conn = backend.connect(connectTimeout, readTimeout);
+				sendRequestHead(conn, backend, method, target, request, chunked, sendLength ? contentLength : -1);
+				conn.out.flush();
+			}
+			if(chunked || contentLength > 0){
+				long total = 0;
+				int n = first;
+				while(true){
+					if(n > 0){
+						total += n;
+						if(chunked && total > CommunicationThread.maxBodyBytes){
+							clientFault = true;
+							throw new BodyTooLargeException();
+						}
+						if(chunked){
+							conn.out.write((Integer.toHexString(n)+"\r\n").getBytes("ISO-8859-1"));
+						}
+						conn.out.write(buffer, 0, n);
+						if(chunked){
+							conn.out.write(CRLF);
+						}
+					}
+					if(!chunked && total >= contentLength){
+						break;
+					}
+					clientFault = true;
+					n = body.read(buffer, 0, chunked ? buffer.length : (int) Math.min(buffer.length, contentLength - total));
+					if(n < 0 && !chunked){
+						throw new IOException("Request body ended early");
+					}
+					clientFault = false;
+					if(n < 0){
+						conn.out.write(LAST_CHUNK);
+						break;
+					}
+				}
+			}
+			conn.out.flush();
+
+			//Status line and headers of the upstream response
+			String status = conn.in.readLine();
+			if(status == null && conn.reused && !chunked && contentLength == 0){
+				//The backend closed an idle connection just as the request went out. Without a body the request can simply be sent again.
+				conn.close();
+				conn = backend.connect(connectTimeout, readTimeout);
+				sendRequestHead(conn, backend, method, target, request, chunked, sendLength ? contentLength : -1);
+				conn.out.flush();
+				status = conn.in.readLine();
+			}
+			String line;
+			while(status != null && interim(status)){
+				//Interim responses (100 Continue was answered to the client already, if it asked for one) are dropped with their headers
+				while((line = conn.in.readLine()) != null && !line.equals("")){}
+				status = conn.in.readLine();
+			}
+			if(status == null || !status.startsWith("HTTP/")){
+				throw new IOException("Malformed status line from "+backend);
+			}
+			int space = status.indexOf(' ');
+			String statusRest = space < 0 ? "" : status.substring(space + 1);
+			int code = 0;
+			try{
+				code = Integer.parseInt(statusRest.length() >= 3 ? statusRest.substring(0, 3) : statusRest);
+			}catch(NumberFormatException e){
+				throw new IOException("Malformed status line from "+backend);
+			}
+
+			//The headers are collected first, so that a response that fails inside them is still answered with a 502 of our own
+			ArrayList<String> headers = new ArrayList<String>();
+			long respLength = -1;
+			boolean respChunked = false;
+			boolean upstreamKeepAlive = status.startsWith("HTTP/1.1");
+			while((line = conn.in.readLine()) != null && !line.equals("")){
+				String name = headerName(line);
+				if(name.equalsIgnoreCase("Content-Length")){
+					try{
+						respLength = Long.parseLong(headerValue(line));
+					}catch(NumberFormatException e){
+						throw new IOException("Malformed Content-Length from "+backend);
+					}
+					continue;
+				}else if(name.equalsIgnoreCase("Transfer-Encoding")){
+					respChunked = headerValue(line).toLowerCase().contains("chunked");
+					continue;
+				}else if(name.equalsIgnoreCase("Connection")){
+					String value = headerValue(line).toLowerCase();
+					if(value.contains("close")){
+						upstreamKeepAlive = false;
+					}else if(value.contains("keep-alive")){
+						upstreamKeepAlive = true;
+					}
+					continue;
+				}
+				if(isHopByHop(name)){
+					continue;
+				}
+				headers.add(line);
+			}
+			if(line == null){
+				throw new IOException("Connection closed by "+backend+" inside the response headers");
+			}
+			boolean noBody = method.equals("HEAD") || code == 204 || code == 304 || (code >= 100 && code < 200);
+
+			response.setStatus(code, statusRest.length() > 4 ? statusRest.substring(4) : "");
+			for(String h : headers){
+				response.addHeader(headerName(h), headerValue(h));
+			}
+			if(respLength >= 0 && !respChunked){
+				response.setContentLength(respLength);
+			}
+			//The status and headers go out now, so that whatever fails after this is known to have happened inside the response
+			OutputStream out = response.body();
+			out.flush();
+
+			if(noBody){
+				//Nothing follows the headers
+			}else if(respChunked){
+				copyChunked(conn.in, out, Long.MAX_VALUE);
+			}else if(respLength >= 0){
+				copyFixed(conn.in, out, respLength);
+			}else{
+				//The body runs until the backend closes the connection, so the connection can not be pooled afterwards
+				copyToEnd(conn.in, out);
+				upstreamKeepAlive = false;
+			}
+
+			backend.markSuccess();
+			backend.release(conn, upstreamKeepAlive);
+			conn = null;
+
+		}catch(IOException e){
+			if(clientFault){
+				throw e;
+			}
+			//A timeout is the backend's fault wherever it happens. Any other error after the response has started may just as well be the client's (a write
+			//to it failing), and there is no cheap way to tell the two apart, so the backend is only blamed for those that came before.
+			boolean timeout = e instanceof SocketTimeoutException;
+			if(timeout || !response.isCommitted()){
+				backend.markFailure();
+			}
+			if(response.isCommitted()){
+				throw e;
+			}
+			if(timeout){
+				response.sendStatus(504, "Gateway Timeout");
+			}else{
+				response.sendStatus(502, "Bad Gateway");
+			}
+		}finally{
+			if(conn != null){
+				conn.close();
+			}
+			backend.outstanding.decrementAndGet();
+		}
+	}
+
+	//A status line of an interim response, 100 to 199 except 101 Switching Protocols, which the final response follows on the same connection
+	static boolean interim(String status){
+		int space = status.indexOf(' ');
+		if(!status.startsWith("HTTP/") || space < 0 || status.length() < space + 4){
+			return false;
+		}
+		String code = status.substring(space + 1, space + 4);
+		return code.charAt(0) == '1' && !code.equals("101");
+	}
+
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+	/*
+	 * Writes the request line and headers to the backend. Hop-by-hop headers are dropped, and so are the client's own framing headers, since the body is
+	 * sent with the length given here (or chunked, or without one when length is negative), and Expect, which the client was answered already. A Host
+	 * header is added if the client did not send one, and X-Forwarded-For records the real client address.
+	 */
+	private void sendRequestHead(UpstreamConnection conn, UpstreamBackend backend, String method, String target, HandlerRequest request, boolean chunked, long length) throws IOException{
+		StringBuilder head = new StringBuilder();
+		head.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+		boolean host = false;
+		String forwardedFor = null;
+		for(String h : request.headerLines()){
+			String name = headerName(h);
+			if(name.equalsIgnoreCase("Host")){
+				host = true;
+			}else if(name.equalsIgnoreCase("X-Forwarded-For")){
+				forwardedFor = headerValue(h);
+				continue;
+			}else if(name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Expect") || isHopByHop(name)){
+				continue;
+			}
+			head.append(h).append("\r\n");
+		}
+		if(!host){
+			head.append("Host: ").append(backend.host).append(':').append(backend.port).append("\r\n");
+		}
+		if(chunked){
+			head.append("Transfer-Encoding: chunked\r\n");
+		}else if(length >= 0){
+			head.append("Content-Length: ").append(length).append("\r\n");
+		}
+		String clientAddr = request.remoteAddress();
+		head.append("X-Forwarded-For: ").append(forwardedFor == null ? clientAddr : forwardedFor+", "+clientAddr).append("\r\n");
+		head.append("Connection: keep-alive\r\n\r\n");
+		conn.out.write(head.toString().getBytes("ISO-8859-1"));
+	}
+
+	static boolean isHopByHop(String name){
+		return name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Keep-Alive") || name.equalsIgnoreCase("Proxy-Connection")
+				|| name.equalsIgnoreCase("TE") || name.equalsIgnoreCase("Trailer") || name.equalsIgnoreCase("Transfer-Encoding")
+				|| name.equalsIgnoreCase("Upgrade") || name.equalsIgnoreCase("Proxy-Authorization") || name.equalsIgnoreCase("Proxy-Authenticate");
+	}
+
+	static String headerName(String line){
+		int colon = line.indexOf(':');
+		return colon < 0 ? line.trim() : line.substring(0, colon).trim();
+	}
+
+	static String headerValue(String line){
+		int colon = line.indexOf(':');
+		return colon < 0 ? "" : line.substring(colon + 1).trim();
+	}
+
+	//Copies exactly length bytes, failing if the source ends early
+	static void copyFixed(InputStream in, OutputStream out, long length) throws IOException{
+		byte[] buffer = new byte[8192];
+		while(length > 0){
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+			if(n < 0){
+				throw new IOException("Body ended early");
+			}
+			out.write(buffer, 0, n);
+			length -= n;
+		}
+	}
+
+	static void copyToEnd(InputStream in, OutputStream out) throws IOException{
+		byte[] buffer = new byte[8192];
+		int n;
+		while((n = in.read(buffer)) != -1){
+			out.write(buffer, 0, n);
+		}
+	}
+
+	//Copies everything up to the end of in, throwing BodyTooLargeException once that is more than limit bytes
+	static void copyLimited(InputStream in, OutputStream out, long limit) throws IOException{
+		byte[] buffer = new byte[8192];
+		long total = 0;
+		int n;
+		while((n = in.read(buffer)) != -1){
+			total += n;
+			if(total > limit){
+				throw new BodyTooLargeException();
+			}
+			out.write(buffer, 0, n);
+		}
+	}
+
+	/*
+	 * Reads a chunked body from in and writes only the data of its chunks, which the writer frames again as it needs to. Trailers are read and dropped.
+	 * Once the data adds up to more than limit, BodyTooLargeException is thrown.
+	 */
+	static void copyChunked(RequestReader in, OutputStream out, long limit) throws IOException{
+		long total = 0;
+		while(true){
+			String sizeLine = in.readLine();
+			if(sizeLine == null){
+				throw new IOException("Chunked body ended early");
+			}
+			int semi = sizeLine.indexOf(';');
+			long size;
+			try{
+				size = Long.parseLong((semi < 0 ? sizeLine : sizeLine.substring(0, semi)).trim(), 16);
+			}catch(NumberFormatException e){
+				throw new BadChunkException(sizeLine);
+			}
+			if(size < 0){
+				throw new BadChunkException(sizeLine);
+			}
+			if(size > limit - total){
+				throw new BodyTooLargeException();
+			}
+			total += size;
+			if(size == 0){
+				//Trailers, up to the blank line
+				String trailer;
+				while((trailer = in.readLine()) != null && !trailer.equals("")){}
+				return;
+			}
+			copyFixed(in, out, size);
+			in.readLine();	//CRLF after the chunk data
+		}
+	}
+}
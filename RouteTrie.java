@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/*
+ * This class is the route table for the in-process handlers. It is a trie over the "/"-separated segments of the path patterns, built once at startup
+ * and never changed afterwards, so matching a request path is a single walk down the tree with no locking.
+ */
+class RouteTrie {
+
+	//The routes of the running server; stays null when there are no handlers at all, so that requests for files pay nothing for it
+	static RouteTrie routes;
+
+	private RouteNode root = new RouteNode();
+	private int size = 0;
+
+	/*
+	 * Builds the route table from the given built-in handlers plus every HttpHandler that ServiceLoader finds on the classpath. A handler that fails to load
+	 * is reported and skipped, the server still starts without it.
+	 */
+	public static RouteTrie build(ArrayList<HttpHandler> builtIn){
+		RouteTrie trie = new RouteTrie();
+		for(HttpHandler handler : builtIn){
+			trie.addAll(handler);
+		}
+		try{
+			for(HttpHandler handler : ServiceLoader.load(HttpHandler.class)){
+				trie.addAll(handler);
+			}
+		}catch(ServiceConfigurationError e){
+			System.err.println("Could not load a handler: "+e.getMessage());
+		}
+		return trie.size == 0 ? null : trie;
+	}
+
+	private void addAll(HttpHandler handler){
+		String[] patterns = handler.paths();
+		if(patterns == null){
+			return;
+		}
+		for(String pattern : patterns){
+			if(pattern == null || !pattern.startsWith("/")){
+				System.err.println("Handler path "+pattern+" must start with /, ignoring it.");
+				continue;
+			}
+			add(pattern, handler);
+		}
+	}
+
+	/*
+	 * Adds one pattern. "/a/b" is stored as an exact match on the node for a -> b, "/a/*" as a prefix match on the same node.
+	 */
+	public void add(String pattern, HttpHandler handler){
+		boolean prefix = pattern.endsWith("/*");
+		String p = prefix ? pattern.substring(0, pattern.length() - 2) : pattern;
+		RouteNode node = root;
+		int start = 1;
+		while(start <= p.length()){
+			int slash = p.indexOf('/', start);
+			int end = slash < 0 ? p.length() : slash;
+			if(end > start){
+				String segment = p.substring(start, end);
+				RouteNode child = node.children.get(segment);
+				if(child == null){
+					child = new RouteNode();
+					node.children.put(segment, child);
+				}
+				node = child;
+			}
+			start = end + 1;
+		}
+		if(prefix){
+			node.prefix = handler;
+		}else{
+			node.exact = handler;
+		}
+		size++;
+	}
+
+	/*
+	 * Returns the handler for a request path (without its query string), or null if no pattern matches and the path should be served from the file system.
+	 */
+	public HttpHandler match(String path){
+		RouteNode node = root;
+		HttpHandler best = root.prefix;
+		int start = 1;
+		int length = path.length();
+		while(start < length){
+			int slash = path.indexOf('/', start);
+			int end = slash < 0 ? length : slash;
+			if(end > start){
+				node = node.children.get(path.substring(start, end));
+				if(node == null){
+					return best;
+				}
+				if(node.prefix != null){
+					best = node.prefix;
+				}
+			}
+			start = end + 1;
+		}
+		return node.exact != null ? node.exact : best;
+	}
+}
+
+//One path segment of the route table
+class RouteNode {
+	HashMap<String, RouteNode> children = new HashMap<String, RouteNode>();
+	HttpHandler exact;	//Handler for the path that ends at this node
+	HttpHandler prefix;	//Handler for this path and everything below it
+}
@@ -0,0 +1,16 @@
+import java.io.IOException;
+
+/*
+ * Thrown by Origin.runScript when the script exited with a status other than 0. Its output is complete, but it is not cached, since the same input may
+ * well succeed the next time; it is sent as it is, the same as for a script that has no cache TTL.
+ */
+class ScriptFailedException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	byte[] output;
+
+	public ScriptFailedException(String script, int status, byte[] output){
+		super("Script "+script+" exited with status "+status);
+		this.output = output;
+	}
+}
@@ -0,0 +1,13 @@
+import java.io.IOException;
+
+/*
+ * Thrown by Origin.finishScript when the script was killed for running past cgi.timeout, so that its cut off output is answered with 504 instead of
+ * being sent, or cached, as if it were complete.
+ */
+class ScriptTimeoutException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public ScriptTimeoutException(String script){
+		super("Script "+script+" ran out of time");
+	}
+}
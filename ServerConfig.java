@@ -0,0 +1,112 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Properties;
+
+/*
+ * This class holds the optional settings of the server. They are read once at startup from a properties file (server.properties in the directory the
+ * server is started from, or the file named by the http1server.config system property), and any JVM system property with the same key overrides the
+ * value from the file. Every setting has a default, so the server still runs with only the port number when there is no file at all.
+ */
+class ServerConfig {
+
+	private static Properties props = new Properties();
+
+	/*
+	 * Loads the properties file if there is one. A missing file is not an error; an unreadable one is reported and the defaults are used instead.
+	 */
+	public static void load(){
+		String file = System.getProperty("http1server.config", "server.properties");
+		Properties loaded = new Properties();
+		InputStream in = null;
+		try{
+			in = new FileInputStream(file);
+			loaded.load(in);
+		}catch(java.io.FileNotFoundException e){
+			//No configuration file, everything stays at its default
+		}catch(IOException e){
+			System.err.println("IOException: Error reading configuration file "+file);
+		}finally{
+			if(in != null){
+				try{
+					in.close();
+				}catch(IOException e){
+					System.err.println("IOException in closing the configuration file");
+				}
+			}
+		}
+		props = loaded;
+	}
+
+	public static String getString(String key, String def){
+		String value = System.getProperty(key);
+		if(value == null){
+			value = props.getProperty(key);
+		}
+		return value == null ? def : value.trim();
+	}
+
+	public static int getInt(String key, int def){
+		String value = getString(key, null);
+		if(value == null){
+			return def;
+		}
+		try{
+			return Integer.parseInt(value);
+		}catch(NumberFormatException e){
+			System.err.println("The setting "+key+" must be an integer, using "+def);
+			return def;
+		}
+	}
+
+	public static long getLong(String key, long def){
+		String value = getString(key, null);
+		if(value == null){
+			return def;
+		}
+		try{
+			return Long.parseLong(value);
+		}catch(NumberFormatException e){
+			System.err.println("The setting "+key+" must be an integer, using "+def);
+			return def;
+		}
+	}
+
+	public static double getDouble(String key, double def){
+		String value = getString(key, null);
+		if(value == null){
+			return def;
+		}
+		try{
+			return Double.parseDouble(value);
+		}catch(NumberFormatException e){
+			System.err.println("The setting "+key+" must be a number, using "+def);
+			return def;
+		}
+	}
+
+	public static boolean getBoolean(String key, boolean def){
+		String value = getString(key, null);
+		if(value == null){
+			return def;
+		}
+		return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equals("1");
+	}
+
+	//Returns every key (from the file and from the system properties) that starts with the given prefix
+	public static ArrayList<String> keysWithPrefix(String prefix){
+		ArrayList<String> keys = new ArrayList<String>();
+		for(String key : props.stringPropertyNames()){
+			if(key.startsWith(prefix)){
+				keys.add(key);
+			}
+		}
+		for(String key : System.getProperties().stringPropertyNames()){
+			if(key.startsWith(prefix) && !keys.contains(key)){
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/*
+ * This class is the one place where the server keeps its counters and gauges. Counters only ever go up and are cheap to update from any number of
+ * CommunicationThreads at once; gauges are read from whatever part of the server owns the value at the moment the metrics are shown. Everything is
+ * rendered as plain text, one "name value" pair per line, at the path given by the metrics.path setting (/server-metrics unless configured otherwise,
+ * an empty value turns it off).
+ */
+class ServerMetrics {
+
+	//Path at which the metrics are served, or null/empty when they are not served at all
+	static String path;
+
+	private static ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private static ConcurrentHashMap<String, DoubleSupplier> gauges = new ConcurrentHashMap<String, DoubleSupplier>();
+
+	public static void increment(String name){
+		counter(name).increment();
+	}
+
+	public static void add(String name, long amount){
+		counter(name).add(amount);
+	}
+
+	public static long get(String name){
+		LongAdder c = counters.get(name);
+		return c == null ? 0 : c.sum();
+	}
+
+	private static LongAdder counter(String name){
+		LongAdder c = counters.get(name);
+		if(c == null){
+			LongAdder created = new LongAdder();
+			c = counters.putIfAbsent(name, created);
+			if(c == null){
+				c = created;
+			}
+		}
+		return c;
+	}
+
+	//Registers a value that is read each time the metrics are rendered. Registering the same name again replaces the old gauge.
+	public static void gauge(String name, DoubleSupplier value){
+		gauges.put(name, value);
+	}
+
+	/*
+	 * Gauges for the process itself: time spent in garbage collection, heap in use and the resident set size (read from /proc, so -1 where there is none).
+	 */
+	public static void registerRuntimeGauges(){
+		gauge("jvm_gc_ms", new DoubleSupplier(){
+			public double getAsDouble(){
+				long total = 0;
+				for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+					total += Math.max(0, gc.getCollectionTime());
+				}
+				return total;
+			}
+		});
+		gauge("jvm_heap_used_bytes", new DoubleSupplier(){
+			public double getAsDouble(){
+				return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			}
+		});
+		gauge("process_rss_bytes", new DoubleSupplier(){
+			public double getAsDouble(){
+				try{
+					for(String line : Files.readAllLines(Paths.get("/proc/self/status"))){
+						if(line.startsWith("VmRSS:")){
+							return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+						}
+					}
+				}catch(IOException e){
+					//Not Linux
+				}catch(NumberFormatException e){
+					//Not in the expected format
+				}
+				return -1;
+			}
+		});
+	}
+
+	//Builds a metric name with one label, e.g. cgi_cache_hits{script="/a.cgi"}
+	public static String labelled(String name, String label, String value){
+		return name+"{"+label+"=\""+escape(value)+"\"}";
+	}
+
+	//The same with any number of labels, given as {label, value, label, value, ...}
+	public static String labelled(String name, String[] labels){
+		StringBuilder s = new StringBuilder(name).append('{');
+		for(int i = 0; i + 1 < labels.length; i += 2){
+			s.append(i == 0 ? "" : ",").append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+		}
+		return s.append('}').toString();
+	}
+
+	private static String escape(String value){
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/*
+	 * Adds one value to a histogram kept as counters, the way Prometheus expects one: name_bucket{...,le="b"} counts the values up to each bound b
+	 * (so every bucket includes the ones below it), le="+Inf" counts all of them, and name_sum and name_count allow averages.
+	 */
+	public static void observe(String name, String[] labels, long value, long[] bounds){
+		String[] withBound = new String[labels.length + 2];
+		System.arraycopy(labels, 0, withBound, 0, labels.length);
+		withBound[labels.length] = "le";
+		for(long bound : bounds){
+			if(value <= bound){
+				withBound[labels.length + 1] = String.valueOf(bound);
+				increment(labelled(name+"_bucket", withBound));
+			}
+		}
+		withBound[labels.length + 1] = "+Inf";
+		increment(labelled(name+"_bucket", withBound));
+		add(labelled(name+"_sum", labels), value);
+		increment(labelled(name+"_count", labels));
+	}
+
+	/*
+	 * Renders every counter and gauge, sorted by name so that the output is stable between two reads.
+	 */
+	public static String render(){
+		ArrayList<String> lines = new ArrayList<String>();
+		for(Map.Entry<String, LongAdder> e : counters.entrySet()){
+			lines.add(e.getKey()+" "+e.getValue().sum());
+		}
+		for(Map.Entry<String, DoubleSupplier> e : gauges.entrySet()){
+			double v;
+			try{
+				v = e.getValue().getAsDouble();
+			}catch(RuntimeException ex){
+				continue;
+			}
+			if(v == Math.rint(v) && !Double.isInfinite(v)){
+				lines.add(e.getKey()+" "+(long) v);
+			}else{
+				lines.add(e.getKey()+" "+v);
+			}
+		}
+		Collections.sort(lines);
+		StringBuilder out = new StringBuilder();
+		for(String line : lines){
+			out.append(line).append('\n');
+		}
+		return out.toString();
+	}
+}
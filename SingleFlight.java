@@ -0,0 +1,60 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * This class coalesces concurrent work on the same key. The first caller for a key (the leader) does the work; everyone who asks for the same key while
+ * that work is still running waits for the leader's result instead of doing it again. Once the leader is done the key is forgotten, so nothing is cached
+ * here: a request that arrives after the work finished starts a new flight.
+ */
+class SingleFlight<K, V> {
+
+	private ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+	private String name;
+
+	//The name is used for the metrics of this flight group, e.g. singleflight_static_leaders
+	public SingleFlight(String name){
+		this.name = name;
+	}
+
+	/*
+	 * Runs the work for this key, or waits up to timeoutMillis for the run that is already in progress. A waiter that times out gets a TimeoutException and
+	 * is free to do the work itself; the leader is not affected. If the leader's work fails, every waiter gets the same exception.
+	 */
+	public V execute(K key, Callable<V> work, long timeoutMillis) throws Exception{
+		CompletableFuture<V> call = new CompletableFuture<V>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, call);
+		if(existing != null){
+			ServerMetrics.increment("singleflight_"+name+"_followers");
+			try{
+				return existing.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			}catch(TimeoutException e){
+				ServerMetrics.increment("singleflight_"+name+"_timeouts");
+				throw e;
+			}catch(ExecutionException e){
+				Throwable cause = e.getCause();
+				if(cause instanceof Exception){
+					throw (Exception) cause;
+				}
+				throw e;
+			}
+		}
+		ServerMetrics.increment("singleflight_"+name+"_leaders");
+		try{
+			V value = work.call();
+			call.complete(value);
+			return value;
+		}catch(Exception e){
+			call.completeExceptionally(e);
+			throw e;
+		}catch(Error e){
+			call.completeExceptionally(e);
+			throw e;
+		}finally{
+			inFlight.remove(key, call);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * This class protects the server from clients that send or receive very slowly on purpose. The read timeout only limits how long a single read may wait,
+ * so a client that trickles a byte every few seconds would otherwise hold a CommunicationThread forever. Instead of a thread per connection, the TimerWheel
+ * gives every connection a header deadline of its own and, a few times per second, runs a check of every open connection; together they close the socket
+ * of any connection that
+ *
+ *  - has not finished sending its request line and headers within slowclient.headerTimeout ms (default 10000),
+ *  - is sending a request body slower than slowclient.minInRate bytes per second (default 1024),
+ *  - is accepting a response slower than slowclient.minOutRate bytes per second (default 1024).
+ *
+ * The rate limits only start after slowclient.grace ms (default 5000), so short pauses are forgiven. Closing the socket makes the blocked read or write in the
+ * CommunicationThread fail, which then ends the connection the normal way. Every close is counted in the metrics by reason.
+ */
+class SlowClientGuard {
+
+	static long headerTimeout = 10000;
+	static long minInRate = 1024;
+	static long minOutRate = 1024;
+	static long grace = 5000;
+	static long interval = 250;
+
+	private static ConcurrentHashMap<ConnectionWatch, Boolean> watched = new ConcurrentHashMap<ConnectionWatch, Boolean>();
+
+	//Needs the TimerWheel to be configured first
+	public static void configure(){
+		headerTimeout = ServerConfig.getLong("slowclient.headerTimeout", headerTimeout);
+		minInRate = ServerConfig.getLong("slowclient.minInRate", minInRate);
+		minOutRate = ServerConfig.getLong("slowclient.minOutRate", minOutRate);
+		grace = ServerConfig.getLong("slowclient.grace", grace);
+		scheduleCheck();
+	}
+
+	//The rate check puts itself back on the wheel every time it has run
+	private static void scheduleCheck(){
+		TimerWheel.shared.schedule(new Runnable(){
+			public void run(){
+				checkAll(System.currentTimeMillis());
+				scheduleCheck();
+			}
+		}, interval);
+	}
+
+	public static void register(ConnectionWatch watch){
+		watched.put(watch, Boolean.TRUE);
+	}
+
+	public static void unregister(ConnectionWatch watch){
+		watched.remove(watch);
+		watch.endHeaders();
+	}
+
+	static void checkAll(long now){
+		for(ConnectionWatch watch : watched.keySet()){
+			String reason = check(watch, now);
+			if(reason != null){
+				close(watch, reason);
+			}
+		}
+	}
+
+	static void close(ConnectionWatch watch, String reason){
+		if(watched.remove(watch) != null){
+			ServerMetrics.increment(ServerMetrics.labelled("slowclient_closed", "reason", reason));
+			watch.kill();
+		}
+	}
+
+	/*
+	 * Returns why the connection should be closed, or null if it is behaving.
+	 */
+	static String check(ConnectionWatch watch, long now){
+		long bodyStart = watch.bodyStart;
+		if(bodyStart != 0 && watch.in.pendingSince != 0){
+			long elapsed = now - bodyStart;
+			if(elapsed > grace && (watch.in.bytesRead - watch.bodyStartBytes) * 1000 / elapsed < minInRate){
+				return "slow_upload";
+			}
+		}
+		long writeStart = watch.out.pendingSince;
+		if(writeStart != 0){
+			long allowed = grace + watch.out.pendingBytes * 1000 / Math.max(1, minOutRate);
+			if(now - writeStart > allowed){
+				return "slow_download";
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,11 @@
+/*
+ * What one load of a file produced. contents is null for files above the buffer limit, which are streamed instead.
+ */
+class StaticFile {
+	String key;
+	long lastModified;
+	long size;
+	Object fileKey;		//Identity of the file on disk, so a replacement with the same time and size is still noticed
+	String contentType;
+	byte[] contents;
+}
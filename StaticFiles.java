@@ -0,0 +1,397 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * This class loads the files that are served as they are (everything but CGI). Concurrent requests for the same file share one load: the first request reads
+ * the attributes, probes the content type and (for small files) reads the contents, and any request for the same path that arrives meanwhile waits for that
+ * result instead of going to the disk itself. Larger files are not held in memory as a whole; instead the requests sending one at the same time share a
+ * SharedFileStream, so they receive the same chunks as they come off the disk, and only a window of those chunks is held.
+ *
+ * staticfiles.bufferLimit  - files up to this size are read into memory in one go (default 1 MB)
+ * staticfiles.shareLimit   - files up to this size can be shared while streaming, larger ones are read by each request (default 64 MB)
+ * staticfiles.shareWindow  - most bytes of a shared stream held at once; a request further behind reads the file by itself (default 1 MB)
+ * staticfiles.waitTimeout  - how long a waiting request gives the leader before it reads the file itself (default 3000 ms)
+ */
+class StaticFiles {
+
+	static int bufferLimit = 1024 * 1024;
+	static long shareLimit = 64L * 1024 * 1024;
+	static long shareWindow = 1024 * 1024;
+	static long waitTimeout = 3000;
+
+	private static SingleFlight<String, StaticFile> loads = new SingleFlight<String, StaticFile>("static");
+	static ConcurrentHashMap<String, SharedFileStream> streaming = new ConcurrentHashMap<String, SharedFileStream>();
+
+	public static void configure(){
+		bufferLimit = ServerConfig.getInt("staticfiles.bufferLimit", bufferLimit);
+		shareLimit = ServerConfig.getLong("staticfiles.shareLimit", shareLimit);
+		shareWindow = ServerConfig.getLong("staticfiles.shareWindow", shareWindow);
+		waitTimeout = ServerConfig.getLong("staticfiles.waitTimeout", waitTimeout);
+	}
+
+	/*
+	 * Returns the attributes, content type and (for small files) contents of a file, sharing the work with any other request for the same path that is
+	 * already loading it.
+	 */
+	public static StaticFile load(final Path p) throws IOException{
+		try{
+			return loads.execute(p.toString(), new Callable<StaticFile>(){
+				public StaticFile call() throws IOException{
+					return read(p);
+				}
+			}, waitTimeout);
+		}catch(TimeoutException e){
+			//The leader is taking too long for this request's taste
+			return read(p);
+		}catch(IOException e){
+			throw e;
+		}catch(Exception e){
+			throw new IOException(e);
+		}
+	}
+
+	private static StaticFile read(Path p) throws IOException{
+		BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+		StaticFile file = new StaticFile();
+		file.key = p.toString();
+		file.lastModified = attrs.lastModifiedTime().toMillis();
+		file.size = attrs.size();
+		file.fileKey = attrs.fileKey();
+		file.contentType = contentType(p);
+		if(file.size <= bufferLimit){
+			file.contents = readContents(p, file);
+			file.size = file.contents.length;
+		}
+		return file;
+	}
+
+	/*
+	 * Opens the file for reading from the start: a large one through AsyncFiles, so that the disk threads read it ahead, anything else through the
+	 * FileChannelCache when it has room for it.
+	 */
+	static InputStream open(Path p, StaticFile file) throws IOException{
+		if(AsyncFiles.applies(file)){
+			return AsyncFiles.open(p, file);
+		}
+		OpenFile cached = FileChannelCache.acquire(p, file);
+		if(cached == null){
+			return Files.newInputStream(p);
+		}
+		return new OpenFileInputStream(cached);
+	}
+
+	private static byte[] readContents(Path p, StaticFile file) throws IOException{
+		InputStream in = open(p, file);
+		try{
+			ByteArrayOutputStream contents = new ByteArrayOutputStream((int) file.size);
+			byte[] buffer = new byte[(int) Math.max(1, Math.min(64 * 1024, file.size))];
+			int n;
+			while((n = in.read(buffer)) != -1){
+				contents.write(buffer, 0, n);
+			}
+			return contents.toByteArray();
+		}finally{
+			in.close();
+		}
+	}
+
+	/*
+	 * The content types this server announces; anything else is sent as application/octet-stream.
+	 */
+	static String contentType(Path p){
+		String contenttype = "";
+		try {
+			contenttype = Files.probeContentType(p);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		if(!"text/html".equals(contenttype) && !"text/plain".equals(contenttype) && !"image/gif".equals(contenttype) && !"image/jpeg".equals(contenttype) && !"image/png".equals(contenttype) && !"application/pdf".equals(contenttype) && !"application/z-gzip".equals(contenttype) && !"application/zip".equals(contenttype)){
+			contenttype = "application/octet-stream";
+		}
+		return contenttype;
+	}
+
+	/*
+	 * Writes the body of a loaded file. Small files come from memory. A larger file is read through the SharedFileStream of its current version, which
+	 * every request sending that version at the same time attaches to, so that each chunk comes off the disk once however many clients take it.
+	 */
+	public static void sendBody(StaticFile file, Path p, OutputStream out) throws IOException{
+		if(file.contents != null){
+			out.write(file.contents);
+			return;
+		}
+		if(file.size > shareLimit){
+			copyFile(p, file, out);
+			return;
+		}
+		while(true){
+			SharedFileStream stream = streaming.get(file.key);
+			boolean leader = false;
+			if(stream == null){
+				SharedFileStream mine = new SharedFileStream(p, file);
+				stream = streaming.putIfAbsent(file.key, mine);
+				if(stream == null){
+					stream = mine;
+					leader = true;
+				}
+			}
+			if(!stream.matches(file)){
+				//Someone is streaming another version of the file, which this request must not get
+				copyFile(p, file, out);
+				return;
+			}
+			if(stream.attach()){
+				ServerMetrics.increment(leader ? "singleflight_stream_leaders" : "singleflight_stream_followers");
+				stream.copyTo(out);
+				return;
+			}
+			//The last request on that stream finished just now, and it is leaving the map; a new one is started
+			streaming.remove(file.key, stream);
+		}
+	}
+
+	private static void copyFile(Path p, StaticFile file, OutputStream out) throws IOException{
+		InputStream in = open(p, file);
+		try{
+			byte[] buffer = new byte[64 * 1024];
+			long remaining = file.size;
+			int n;
+			while(remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1){
+				out.write(buffer, 0, n);
+				remaining -= n;
+			}
+		}finally{
+			in.close();
+		}
+	}
+}
+
+/*
+ * A file that requests are sending right now, read from the disk once for all of them. The disk read is kept apart from the writes to the clients: the
+ * request that needs a chunk nobody has read yet reads it, outside the lock, and every request writes the chunks to its own client at its own pace.
+ * Only a sliding window of chunks is held, from the oldest one an attached request still has to send up to the newest one read; a chunk is released as
+ * soon as every request has sent it, and the window never grows beyond staticfiles.shareWindow bytes.
+ *
+ * So nobody waits for a slow client. A request that falls so far behind the fastest one that its next chunk has already been released, or that has
+ * waited staticfiles.waitTimeout for another request's disk read, goes on reading the file by itself from where it is, and a request that attaches
+ * once the first chunks are gone starts out that way; either one joins the window again if it catches up with it.
+ */
+class SharedFileStream {
+
+	static final int CHUNK = 64 * 1024;
+
+	private Path p;
+	private StaticFile file;
+	private long chunkCount;
+	private byte[][] window;			//The chunks held, chunk i at window[i % window.length]
+	private long base = 0;				//Oldest chunk held
+	private long end = 0;				//One past the newest chunk held, i.e. the next one to be read from the disk
+	private InputStream in;				//The shared read of the file, positioned at chunk end
+	private boolean reading = false;	//A request is reading chunk end from the disk right now
+	private boolean failed = false;		//The shared read has failed, everyone left reads by themselves
+	private int attached = 0;
+	private boolean closed = false;
+	private ArrayList<long[]> cursors = new ArrayList<long[]>();	//The next chunk of every request that takes its chunks from the window
+
+	public SharedFileStream(Path p, StaticFile file){
+		this.p = p;
+		this.file = file;
+		this.chunkCount = (file.size + CHUNK - 1) / CHUNK;
+		this.window = new byte[(int) Math.max(1, Math.min(chunkCount, StaticFiles.shareWindow / CHUNK))][];
+	}
+
+	//True if this stream sends the same version of the file as the one loaded
+	public boolean matches(StaticFile other){
+		return file.lastModified == other.lastModified && file.size == other.size && Objects.equals(file.fileKey, other.fileKey);
+	}
+
+	/*
+	 * Adds a request to the stream. False once the last request has left it, since the stream is then closed and cannot be used again.
+	 */
+	public synchronized boolean attach(){
+		if(closed){
+			return false;
+		}
+		attached++;
+		return true;
+	}
+
+	private synchronized void detach(long[] cursor){
+		cursors.remove(cursor);
+		release();
+		attached--;
+		if(attached == 0){
+			closed = true;
+			StaticFiles.streaming.remove(file.key, this);
+			if(in != null){
+				try{
+					in.close();
+				}catch(IOException e){
+					System.err.println("IOException in closing "+p+": "+e.getMessage());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Sends the whole file to one client: from the window while this request keeps up with it, by itself while it does not. Must follow a successful
+	 * attach, and leaves the stream again when done.
+	 */
+	public void copyTo(OutputStream out) throws IOException{
+		long[] cursor = {0};
+		InputStream own = null;		//This request's own read of the file, while it is not in the window
+		try{
+			synchronized(this){
+				if(base == 0){
+					cursors.add(cursor);
+				}
+			}
+			while(cursor[0] < chunkCount){
+				byte[] chunk = null;
+				if(own != null && rejoin(cursor)){
+					own.close();
+					own = null;
+				}
+				if(own == null){
+					chunk = take(cursor);
+					if(chunk == null){
+						ServerMetrics.increment("singleflight_stream_own_reads");
+						own = openAt(cursor[0]);
+					}
+				}
+				if(own != null){
+					chunk = readChunk(own, cursor[0]);
+				}
+				synchronized(this){
+					cursor[0]++;
+					release();
+				}
+				out.write(chunk);
+			}
+		}finally{
+			if(own != null){
+				own.close();
+			}
+			detach(cursor);
+		}
+	}
+
+	/*
+	 * Takes the request's next chunk from the window, reading it from the disk first if nobody has yet. Returns null if the request has to read by
+	 * itself, and takes it out of the window then.
+	 */
+	private byte[] take(long[] cursor) throws IOException{
+		long chunk = cursor[0];
+		synchronized(this){
+			long deadline = System.currentTimeMillis() + StaticFiles.waitTimeout;
+			while(true){
+				if(failed || chunk < base || !cursors.contains(cursor)){
+					cursors.remove(cursor);
+					return null;
+				}
+				if(chunk < end){
+					return window[(int) (chunk % window.length)];
+				}
+				if(!reading){
+					reading = true;
+					break;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0){
+					//Whoever is reading is stuck on the disk; this request tries its own luck rather than wait any longer
+					cursors.remove(cursor);
+					return null;
+				}
+				try{
+					wait(wait);
+				}catch(InterruptedException e){
+					throw new IOException("Interrupted waiting for the file to be read");
+				}
+			}
+		}
+		byte[] read = null;
+		try{
+			if(in == null){
+				in = StaticFiles.open(p, file);
+			}
+			read = readChunk(in, chunk);
+		}finally{
+			synchronized(this){
+				reading = false;
+				if(read == null){
+					failed = true;
+				}else{
+					if(end - base == window.length){
+						//The window is full; the slowest request goes on by itself
+						window[(int) (base % window.length)] = null;
+						base++;
+					}
+					window[(int) (end % window.length)] = read;
+					end++;
+				}
+				notifyAll();
+			}
+		}
+		return read;
+	}
+
+	//Drops the chunks at the start of the window that every request in it has sent
+	private void release(){
+		while(base < end){
+			for(long[] cursor : cursors){
+				if(cursor[0] <= base){
+					return;
+				}
+			}
+			window[(int) (base % window.length)] = null;
+			base++;
+		}
+	}
+
+	//Puts a request that has been reading by itself back into the window, if its next chunk is there or is the next to be read
+	private synchronized boolean rejoin(long[] cursor){
+		if(failed || cursor[0] < base || cursor[0] > end){
+			return false;
+		}
+		cursors.add(cursor);
+		return true;
+	}
+
+	private InputStream openAt(long chunk) throws IOException{
+		FileChannel channel = FileChannel.open(p, StandardOpenOption.READ);
+		try{
+			channel.position(chunk * CHUNK);
+		}catch(IOException e){
+			channel.close();
+			throw e;
+		}
+		return Channels.newInputStream(channel);
+	}
+
+	//Reads one whole chunk; only the bytes up to the size the file had when it was loaded are read
+	private byte[] readChunk(InputStream from, long chunk) throws IOException{
+		byte[] bytes = new byte[(int) Math.min(CHUNK, file.size - chunk * CHUNK)];
+		int read = 0;
+		while(read < bytes.length){
+			int n = from.read(bytes, read, bytes.length - read);
+			if(n == -1){
+				throw new IOException("File became shorter while it was being read");
+			}
+			read += n;
+		}
+		return bytes;
+	}
+}
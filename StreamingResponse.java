@@ -0,0 +1,190 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * The response side of a handler call, and of every other HTTP/1 response that goes through the Origin or the ReverseProxy. Nothing is buffered: the
+ * status line and headers are written when the body is first written to (or when the handler returns without writing), and body bytes go straight to
+ * the connection.
+ */
+class StreamingResponse implements OriginResponse {
+	DataOutputStream out;
+	String version;
+	boolean persistent;
+	boolean head;
+
+	int code = 200;
+	String reason = "OK";
+	LinkedHashMap<String, String> headers = new LinkedHashMap<String, String>();
+	ArrayList<String[]> repeated = new ArrayList<String[]>();	//Headers added next to one of the same name, written after the others
+	long contentLength = -1;
+	boolean committed = false;
+	boolean chunked = false;
+	long written = 0;
+	OutputStream bodyStream;
+
+	public StreamingResponse(DataOutputStream out, String version, boolean persistent, boolean head){
+		this.out = out;
+		this.version = version;
+		this.persistent = persistent;
+		this.head = head;
+	}
+
+	public void setStatus(int code, String reason){
+		checkNotCommitted();
+		this.code = code;
+		this.reason = reason;
+	}
+
+	public void setHeader(String name, String value){
+		checkNotCommitted();
+		if(name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Connection")){
+			return;
+		}
+		headers.put(name, value);
+	}
+
+	public void addHeader(String name, String value){
+		if(!headers.containsKey(name)){
+			setHeader(name, value);
+			return;
+		}
+		checkNotCommitted();
+		repeated.add(new String[]{name, value});
+	}
+
+	public void setContentLength(long length){
+		checkNotCommitted();
+		this.contentLength = length;
+	}
+
+	public boolean isCommitted(){
+		return committed;
+	}
+
+	public OutputStream body() throws IOException{
+		if(bodyStream == null){
+			bodyStream = new OutputStream(){
+				public void write(int b) throws IOException{
+					write(new byte[]{(byte) b}, 0, 1);
+				}
+				public void write(byte[] b, int off, int len) throws IOException{
+					if(!committed){
+						commit();
+					}
+					if(head || len == 0 || code == 204 || code == 304){
+						return;
+					}
+					if(chunked){
+						out.writeBytes(Integer.toHexString(len)+"\r\n");
+						out.write(b, off, len);
+						out.writeBytes("\r\n");
+					}else{
+						out.write(b, off, len);
+					}
+					written += len;
+				}
+				public void flush() throws IOException{
+					if(!committed){
+						commit();
+					}
+					out.flush();
+				}
+			};
+		}
+		return bodyStream;
+	}
+
+	private void checkNotCommitted(){
+		if(committed){
+			throw new IllegalStateException("The response headers have already been sent");
+		}
+	}
+
+	/*
+	 * Writes the status line and headers, choosing how the body is framed: the declared length if there is one, chunks for an HTTP/1.1 client, and
+	 * otherwise the end of the connection.
+	 */
+	private void commit() throws IOException{
+		committed = true;
+		boolean http11 = version.equals("HTTP/1.1");
+		StringBuilder lines = new StringBuilder();
+		lines.append(version).append(' ').append(code).append(' ').append(reason).append("\r\n");
+		//Content-Length goes right after Content-Type, where the CommunicationThread has always put it
+		String length = null;
+		if(code != 204 && code != 304 && contentLength >= 0){
+			length = "Content-Length: "+contentLength+"\r\n";
+		}
+		for(Map.Entry<String, String> h : headers.entrySet()){
+			lines.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+			if(length != null && h.getKey().equalsIgnoreCase("Content-Type")){
+				lines.append(length);
+				length = null;
+			}
+		}
+		for(String[] h : repeated){
+			lines.append(h[0]).append(": ").append(h[1]).append("\r\n");
+		}
+		if(code == 204 || code == 304){
+			//No body and no length
+		}else if(contentLength >= 0){
+			if(length != null){
+				lines.append(length);
+			}
+		}else if(http11){
+			chunked = !head;
+			if(chunked){
+				lines.append("Transfer-Encoding: chunked").append("\r\n");
+			}
+		}else{
+			persistent = false;
+		}
+		if(http11 && !persistent){
+			lines.append("Connection: close").append("\r\n");
+		}
+		lines.append("\r\n");
+		out.writeBytes(lines.toString());
+	}
+
+	/*
+	 * Sends a response that has no body. HTTP/1.0 clients get the bare status line the CommunicationThread has always sent them, and their connection
+	 * ends with it; HTTP/1.1 clients get a complete header block with a zero Content-Length.
+	 */
+	public void sendStatus(int code, String reason) throws IOException{
+		setStatus(code, reason);
+		if(version.equals("HTTP/1.1")){
+			setContentLength(0);
+			finish();
+			return;
+		}
+		committed = true;
+		persistent = false;
+		out.writeBytes(version+" "+code+" "+reason);
+		out.flush();
+	}
+
+	/*
+	 * Completes the response once the handler has returned: sends the headers if that has not happened yet and ends a chunked body.
+	 * Returns whether the connection can carry another request.
+	 */
+	public boolean finish() throws IOException{
+		if(!committed){
+			if(contentLength < 0 && (bodyStream == null || written == 0)){
+				contentLength = 0;
+			}
+			commit();
+		}
+		if(chunked){
+			out.writeBytes("0\r\n\r\n");
+		}
+		out.flush();
+		//A body shorter than its declared length leaves the client waiting for bytes that will never come
+		if(!head && contentLength >= 0 && written != contentLength && code != 204 && code != 304){
+			persistent = false;
+		}
+		return persistent;
+	}
+}
@@ -0,0 +1,169 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+/*
+ * This class is the one timer of the server: a hashed wheel (Varghese and Lauck) with a single thread that ticks it. The wheel is a ring of buckets, each
+ * holding a doubly linked list of timeouts. A timeout due in d ticks goes into bucket (now + d) mod size, with the number of whole turns of the wheel it
+ * has to wait; every tick the thread walks one bucket, fires what is due and counts down the turns of the rest. So scheduling and cancelling are O(1)
+ * however many connections have a timer running, and no connection needs a thread of its own (or a blocked read with a socket timeout) to be timed.
+ *
+ * It runs the read deadlines and keep-alive idle timeouts of connections, the header deadlines and rate checks of the slow client guard, the execution
+ * deadlines of CGI scripts, the idle checks of HTTP/2 connections and the delayed closes that used to be a sleep of half a second in the thread that
+ * had sent the response. The tasks run on the ticking thread, so they must be short: close a socket, kill a process, set a flag.
+ *
+ * timer.tick   - length of one tick in ms, which is how precise the timeouts are (default 10)
+ * timer.wheel  - number of buckets; timeouts further away than tick * wheel take more than one turn (default 512)
+ */
+class TimerWheel {
+
+	static TimerWheel shared;
+
+	long tick;
+	private Timeout[] buckets;		//Head of each bucket's list; guarded by this
+	private long ticks = 0;			//Ticks done so far; guarded by this
+	private long started;
+	private AtomicLong pending = new AtomicLong();
+	private volatile long lag = 0;	//How far behind the clock the last tick ran, in ms
+
+	public TimerWheel(long tick, int size){
+		this.tick = tick;
+		this.buckets = new Timeout[size];
+		ServerMetrics.gauge("timer_pending", new DoubleSupplier(){
+			public double getAsDouble(){
+				return pending.get();
+			}
+		});
+		ServerMetrics.gauge("timer_lag_ms", new DoubleSupplier(){
+			public double getAsDouble(){
+				return lag;
+			}
+		});
+	}
+
+	public static void configure(){
+		shared = new TimerWheel(Math.max(1, ServerConfig.getLong("timer.tick", 10)), Math.max(16, ServerConfig.getInt("timer.wheel", 512)));
+		shared.start();
+	}
+
+	/*
+	 * One scheduled task. cancel() may be called any number of times, from any thread, before or after the task has run.
+	 */
+	static class Timeout {
+		TimerWheel wheel;
+		Runnable task;
+		long rounds;
+		int bucket = -1;	//-1 once the timeout has fired or been cancelled
+		Timeout prev;
+		Timeout next;
+
+		public boolean cancel(){
+			return wheel.remove(this, true);
+		}
+	}
+
+	/*
+	 * Runs the task once, delay ms from now (rounded up to whole ticks).
+	 */
+	public Timeout schedule(Runnable task, long delay){
+		Timeout t = new Timeout();
+		t.wheel = this;
+		t.task = task;
+		long due = Math.max(1, (delay + tick - 1) / tick);
+		synchronized(this){
+			t.rounds = (due - 1) / buckets.length;
+			int b = (int) ((ticks + due) % buckets.length);
+			t.bucket = b;
+			t.next = buckets[b];
+			if(t.next != null){
+				t.next.prev = t;
+			}
+			buckets[b] = t;
+		}
+		pending.incrementAndGet();
+		ServerMetrics.increment("timer_scheduled");
+		return t;
+	}
+
+	//Takes a timeout out of its bucket; false if it was no longer in one
+	private synchronized boolean remove(Timeout t, boolean cancelled){
+		if(t.bucket < 0){
+			return false;
+		}
+		if(t.prev != null){
+			t.prev.next = t.next;
+		}else{
+			buckets[t.bucket] = t.next;
+		}
+		if(t.next != null){
+			t.next.prev = t.prev;
+		}
+		t.bucket = -1;
+		t.prev = null;
+		t.next = null;
+		pending.decrementAndGet();
+		if(cancelled){
+			ServerMetrics.increment("timer_cancelled");
+		}
+		return true;
+	}
+
+	private void start(){
+		started = System.currentTimeMillis();
+		Thread thread = new Thread(new Runnable(){
+			public void run(){
+				while(true){
+					//Sleeps until the next tick is due by the clock, so that a slow tick is caught up with instead of pushing every later one back
+					long wait;
+					synchronized(TimerWheel.this){
+						wait = started + (ticks + 1) * tick - System.currentTimeMillis();
+					}
+					if(wait > 0){
+						try{
+							Thread.sleep(wait);
+						}catch(InterruptedException e){
+							return;
+						}
+					}
+					lag = Math.max(0, -wait);
+					advance();
+				}
+			}
+		}, "timer-wheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * One tick: the due timeouts of the next bucket are taken out under the lock and run outside of it, so that a task may schedule or cancel others.
+	 */
+	private void advance(){
+		Timeout due = null;
+		synchronized(this){
+			ticks++;
+			int b = (int) (ticks % buckets.length);
+			Timeout t = buckets[b];
+			while(t != null){
+				Timeout next = t.next;
+				if(t.rounds > 0){
+					t.rounds--;
+				}else{
+					remove(t, false);
+					t.next = due;
+					due = t;
+				}
+				t = next;
+			}
+		}
+		while(due != null){
+			Timeout next = due.next;
+			due.next = null;
+			ServerMetrics.increment("timer_fired");
+			try{
+				due.task.run();
+			}catch(RuntimeException e){
+				System.err.println("Exception in a timer task: "+e);
+			}
+			due = next;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * This class records the requests the server receives, so that real traffic can be sent again later with the TrafficReplay tool. Every request is
+ * recorded as the raw bytes the RequestReader handed out for it (request line, headers and body, exactly as the client sent them), together with the
+ * time its first byte was read and the connection it came on. A writer thread appends the records to a compact binary log:
+ *
+ *     header:  "HCAP", version (int, 1), start of the capture (long, ms since the epoch)
+ *     record:  time since the start (long, microseconds), connection (int), length (int), the bytes
+ *
+ * Requests longer than capture.maxRequestBytes are left out (and so is an HTTP/2 connection, which reads as one endless request), and when the writer
+ * cannot keep up the requests it has no room for are dropped rather than slowing the server down; both are counted.
+ *
+ * capture.file             - the log; nothing is captured without one. Requests carry cookies and credentials, so keep it where they are safe.
+ * capture.maxRequestBytes  - longest request recorded (default 65536)
+ * capture.maxBytes         - the log stops growing at this size (default 1 GB)
+ * capture.queue            - requests waiting for the writer before new ones are dropped (default 10000)
+ */
+class TrafficCapture {
+
+	//Created at startup; stays null without capture.file, so that reading requests pays nothing for it
+	static TrafficCapture instance;
+
+	static final int MAGIC = 0x48434150;	//"HCAP"
+	static final int VERSION = 1;
+
+	String file;
+	int maxRequestBytes;
+	long maxBytes;
+	private long start = System.nanoTime();
+	private ArrayBlockingQueue<CapturedRequest> queue;
+	private AtomicInteger connections = new AtomicInteger();
+
+	static class CapturedRequest {
+		long micros;
+		int connection;
+		byte[] bytes;
+	}
+
+	public static TrafficCapture fromConfig(){
+		String file = ServerConfig.getString("capture.file", null);
+		if(file == null){
+			return null;
+		}
+		TrafficCapture capture = new TrafficCapture();
+		capture.file = file;
+		capture.maxRequestBytes = Math.max(1, ServerConfig.getInt("capture.maxRequestBytes", 65536));
+		capture.maxBytes = ServerConfig.getLong("capture.maxBytes", 1024L * 1024 * 1024);
+		capture.queue = new ArrayBlockingQueue<CapturedRequest>(Math.max(1, ServerConfig.getInt("capture.queue", 10000)));
+		DataOutputStream out;
+		try{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+		}catch(IOException e){
+			System.err.println("Cannot write the traffic capture "+file+": "+e.getMessage()+"; capturing nothing.");
+			return null;
+		}
+		capture.startWriter(out);
+		System.out.println("Capturing requests to "+file);
+		return capture;
+	}
+
+	//A number for a connection, the first time it has a request to record
+	public int connectionId(){
+		return connections.incrementAndGet();
+	}
+
+	/*
+	 * Queues one request for the writer. Called by the thread that read it, so this must never wait.
+	 */
+	public void record(int connection, long arrived, byte[] bytes){
+		if(bytes.length > maxRequestBytes){
+			ServerMetrics.increment("capture_too_large");
+			return;
+		}
+		CapturedRequest r = new CapturedRequest();
+		r.micros = (arrived - start) / 1000;
+		r.connection = connection;
+		r.bytes = bytes;
+		if(!queue.offer(r)){
+			ServerMetrics.increment("capture_dropped");
+		}
+	}
+
+	private void startWriter(final DataOutputStream out){
+		Thread writer = new Thread(new Runnable(){
+			public void run(){
+				long written = 16;
+				try{
+					while(written < maxBytes){
+						CapturedRequest r = queue.poll(1, TimeUnit.SECONDS);
+						if(r == null){
+							//A quiet moment is when the log is brought up to date on disk
+							out.flush();
+							continue;
+						}
+						out.writeLong(r.micros);
+						out.writeInt(r.connection);
+						out.writeInt(r.bytes.length);
+						out.write(r.bytes);
+						written += 16 + r.bytes.length;
+						ServerMetrics.increment("capture_requests");
+					}
+					System.err.println("The traffic capture "+file+" reached capture.maxBytes; capturing nothing more.");
+				}catch(IOException e){
+					System.err.println("IOException in writing the traffic capture: "+e.getMessage());
+				}catch(InterruptedException e){
+					//Ending
+				}finally{
+					instance = null;
+					try{
+						out.close();
+					}catch(IOException e){
+						System.err.println("IOException in closing the traffic capture");
+					}
+				}
+			}
+		}, "traffic-capture");
+		writer.setDaemon(true);
+		writer.start();
+	}
+}
@@ -0,0 +1,367 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * This is the tool that sends traffic recorded by the TrafficCapture to a server again, and compares what two servers (say, two builds of this one)
+ * made of it:
+ *
+ *     java TrafficReplay replay <capture> <port> [-speed <factor> | -max] [-connections <n>] [-out <results>]
+ *     java TrafficReplay compare <results> <results>
+ *
+ * replay sends every recorded request to the server on 127.0.0.1:<port>, each recorded connection on a connection of its own with its requests in the
+ * order they came. By default each request is sent at the time it originally arrived, relative to the start of the capture; -speed 2 sends at twice
+ * that pace, -speed 0.5 at half, and -max as fast as the server answers, with every connection starting at once. Up to -connections connections
+ * (default 64) are replayed at the same time; a recorded connection that has to wait for one of them starts late, and how late the requests went out
+ * is reported, so that a run which could not keep the original timing is recognised as such. Each request waits for its response before the next is
+ * sent, so pipelined requests are replayed one at a time. Requests that switched to HTTP/2 are not replayed.
+ *
+ * The results are printed (status codes and latency percentiles) and, with -out, written one request per line as "index, status, latency in
+ * microseconds, request line", tab separated. compare reads two such files, prints both distributions side by side and every request whose status
+ * differs, and exits with status 1 if any does.
+ *
+ * The whole capture is read into memory first.
+ */
+class TrafficReplay {
+
+	static class Replayed {
+		int index;
+		long micros;		//When it arrived, since the start of the capture
+		byte[] bytes;
+		String requestLine;
+		int status = 0;		//-1 for a request that failed on the connection
+		long latency;		//microseconds
+		long late;			//microseconds it went out after its scheduled time
+	}
+
+	public static void main(String[] args){
+		if(args.length >= 3 && args[0].equals("replay")){
+			replay(args);
+		}else if(args.length == 3 && args[0].equals("compare")){
+			compare(args[1], args[2]);
+		}else{
+			System.err.println("Usage: java TrafficReplay replay <capture> <port> [-speed <factor> | -max] [-connections <n>] [-out <results>]");
+			System.err.println("       java TrafficReplay compare <results> <results>");
+			System.exit(2);
+		}
+	}
+
+	static void replay(String[] args){
+		String capture = args[1];
+		final int port;
+		double speed = 1.0;
+		boolean max = false;
+		int concurrency = 64;
+		String out = null;
+		try{
+			port = Integer.parseInt(args[2]);
+			for(int i = 3; i < args.length; i++){
+				if(args[i].equals("-speed")){
+					speed = Double.parseDouble(args[++i]);
+				}else if(args[i].equals("-max")){
+					max = true;
+				}else if(args[i].equals("-connections")){
+					concurrency = Integer.parseInt(args[++i]);
+				}else if(args[i].equals("-out")){
+					out = args[++i];
+				}else{
+					System.err.println("Unknown option "+args[i]);
+					System.exit(2);
+					return;
+				}
+			}
+		}catch(RuntimeException e){
+			System.err.println("Bad options: "+e);
+			System.exit(2);
+			return;
+		}
+		if(speed <= 0){
+			System.err.println("The speed must be above 0.");
+			System.exit(2);
+		}
+
+		ArrayList<Replayed> all = new ArrayList<Replayed>();
+		LinkedHashMap<Integer, ArrayList<Replayed>> connections = new LinkedHashMap<Integer, ArrayList<Replayed>>();
+		int skipped;
+		try{
+			skipped = read(capture, all, connections);
+		}catch(IOException e){
+			System.err.println("Cannot read the capture "+capture+": "+e.getMessage());
+			System.exit(2);
+			return;
+		}
+		System.out.println("Replaying "+all.size()+" requests on "+connections.size()+" connections"+(skipped > 0 ? " ("+skipped+" HTTP/2 requests left out)" : ""));
+
+		//Connections start in the order of their first request, which is the order they are in
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, concurrency));
+		final long start = System.nanoTime();
+		final double pace = max ? 0 : 1.0 / speed;
+		long began = System.currentTimeMillis();
+		for(final ArrayList<Replayed> requests : connections.values()){
+			if(pace > 0){
+				sleepUntil(start + (long) (requests.get(0).micros * pace * 1000));
+			}
+			pool.execute(new Runnable(){
+				public void run(){
+					replayConnection(port, requests, start, pace);
+				}
+			});
+		}
+		pool.shutdown();
+		try{
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e){
+			System.exit(2);
+		}
+		long took = System.currentTimeMillis() - began;
+
+		System.out.println("Took "+took+" ms");
+		summarize("", all);
+		if(pace > 0){
+			long[] late = new long[all.size()];
+			for(int i = 0; i < late.length; i++){
+				late[i] = all.get(i).late;
+			}
+			Arrays.sort(late);
+			System.out.println(String.format("Sent late by: p50 %.1f ms, p99 %.1f ms, max %.1f ms", percentile(late, 0.50), percentile(late, 0.99), percentile(late, 1.0)));
+		}
+		if(out != null){
+			try{
+				PrintWriter w = new PrintWriter(Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8));
+				try{
+					for(Replayed r : all){
+						w.print(r.index+"\t"+r.status+"\t"+r.latency+"\t"+r.requestLine+"\n");
+					}
+				}finally{
+					w.close();
+				}
+				System.out.println("Results written to "+out);
+			}catch(IOException e){
+				System.err.println("Cannot write the results to "+out+": "+e.getMessage());
+				System.exit(2);
+			}
+		}
+	}
+
+	/*
+	 * Reads every record of a capture, numbering the requests in the order they were written. Returns how many were left out.
+	 */
+	static int read(String capture, ArrayList<Replayed> all, LinkedHashMap<Integer, ArrayList<Replayed>> connections) throws IOException{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(capture), 64 * 1024));
+		int skipped = 0;
+		try{
+			if(in.readInt() != TrafficCapture.MAGIC){
+				throw new IOException("not a traffic capture");
+			}
+			int version = in.readInt();
+			if(version != TrafficCapture.VERSION){
+				throw new IOException("capture version "+version+" is not supported");
+			}
+			in.readLong();
+			while(true){
+				Replayed r = new Replayed();
+				try{
+					r.micros = in.readLong();
+				}catch(EOFException e){
+					break;
+				}
+				int connection = in.readInt();
+				int length = in.readInt();
+				if(length < 0){
+					throw new IOException("corrupt record");
+				}
+				r.bytes = new byte[length];
+				try{
+					in.readFully(r.bytes);
+				}catch(EOFException e){
+					//The server was stopped in the middle of writing this one
+					break;
+				}
+				String text = new String(r.bytes, StandardCharsets.ISO_8859_1);
+				String lower = text.toLowerCase();
+				if(text.startsWith("PRI * HTTP/2.0") || lower.contains("\nupgrade: h2c") || lower.contains("\nhttp2-settings:")){
+					skipped++;
+					continue;
+				}
+				int eol = text.indexOf('\n');
+				r.requestLine = (eol < 0 ? text : text.substring(0, eol)).trim().replace('\t', ' ');
+				r.index = all.size();
+				all.add(r);
+				ArrayList<Replayed> requests = connections.get(connection);
+				if(requests == null){
+					requests = new ArrayList<Replayed>();
+					connections.put(connection, requests);
+				}
+				requests.add(r);
+			}
+		}finally{
+			in.close();
+		}
+		return skipped;
+	}
+
+	/*
+	 * Sends one recorded connection's requests in turn, opening a new connection whenever the server closed the last one.
+	 */
+	static void replayConnection(int port, ArrayList<Replayed> requests, long start, double pace){
+		HttpConnection conn = null;
+		for(Replayed r : requests){
+			if(pace > 0){
+				long due = start + (long) (r.micros * pace * 1000);
+				sleepUntil(due);
+				r.late = Math.max(0, (System.nanoTime() - due) / 1000);
+			}
+			long sent = System.nanoTime();
+			try{
+				if(conn == null){
+					conn = new HttpConnection(port);
+				}
+				r.status = conn.exchange(r.bytes);
+			}catch(IOException e){
+				r.status = -1;
+			}catch(RuntimeException e){
+				//A response this client could not make sense of
+				r.status = -1;
+			}
+			r.latency = (System.nanoTime() - sent) / 1000;
+			if(conn != null && (r.status < 0 || !conn.open)){
+				conn.close();
+				conn = null;
+			}
+		}
+		if(conn != null){
+			conn.close();
+		}
+	}
+
+	static void sleepUntil(long nanoTime){
+		long wait = nanoTime - System.nanoTime();
+		if(wait > 0){
+			try{
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*
+	 * Prints how many requests got each status, and the latency percentiles of all of them and of each status.
+	 */
+	static void summarize(String title, ArrayList<Replayed> results){
+		if(!title.isEmpty()){
+			System.out.println(title);
+		}
+		TreeMap<Integer, ArrayList<Long>> byStatus = new TreeMap<Integer, ArrayList<Long>>();
+		long[] all = new long[results.size()];
+		for(int i = 0; i < all.length; i++){
+			Replayed r = results.get(i);
+			all[i] = r.latency;
+			ArrayList<Long> l = byStatus.get(r.status);
+			if(l == null){
+				l = new ArrayList<Long>();
+				byStatus.put(r.status, l);
+			}
+			l.add(r.latency);
+		}
+		Arrays.sort(all);
+		System.out.println("  "+line("all", all));
+		for(Map.Entry<Integer, ArrayList<Long>> e : byStatus.entrySet()){
+			long[] l = new long[e.getValue().size()];
+			for(int i = 0; i < l.length; i++){
+				l[i] = e.getValue().get(i);
+			}
+			Arrays.sort(l);
+			System.out.println("  "+line(e.getKey() < 0 ? "failed" : String.valueOf(e.getKey()), l));
+		}
+	}
+
+	private static String line(String name, long[] sorted){
+		return String.format("%-7s %7d requests   p50 %8.2f ms   p90 %8.2f ms   p99 %8.2f ms   max %8.2f ms", name, sorted.length, percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), percentile(sorted, 1.0));
+	}
+
+	//In ms, from microseconds
+	static double percentile(long[] sorted, double p){
+		if(sorted.length == 0){
+			return 0;
+		}
+		int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+		return sorted[Math.max(0, i)] / 1000.0;
+	}
+
+	static void compare(String a, String b){
+		ArrayList<Replayed> first;
+		ArrayList<Replayed> second;
+		try{
+			first = readResults(a);
+			second = readResults(b);
+		}catch(IOException e){
+			System.err.println("Cannot read the results: "+e.getMessage());
+			System.exit(2);
+			return;
+		}
+		summarize(a, first);
+		summarize(b, second);
+		int differ = 0;
+		int n = Math.min(first.size(), second.size());
+		for(int i = 0; i < n; i++){
+			Replayed x = first.get(i);
+			Replayed y = second.get(i);
+			if(x.status != y.status){
+				if(differ < 50){
+					System.out.println("  #"+x.index+" "+x.requestLine+": "+x.status+" -> "+y.status);
+				}
+				differ++;
+			}
+		}
+		if(first.size() != second.size()){
+			System.out.println("The runs have "+first.size()+" and "+second.size()+" requests; only the first "+n+" are compared.");
+		}
+		System.out.println(differ == 0 ? "Every request got the same status." : differ+" requests got a different status.");
+		if(differ > 0){
+			System.exit(1);
+		}
+	}
+
+	static ArrayList<Replayed> readResults(String file) throws IOException{
+		ArrayList<Replayed> results = new ArrayList<Replayed>();
+		BufferedReader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+		try{
+			String line;
+			while((line = in.readLine()) != null){
+				String[] fields = line.split("\t", 4);
+				if(fields.length < 3){
+					continue;
+				}
+				Replayed r = new Replayed();
+				try{
+					r.index = Integer.parseInt(fields[0]);
+					r.status = Integer.parseInt(fields[1]);
+					r.latency = Long.parseLong(fields[2]);
+				}catch(NumberFormatException e){
+					throw new IOException(file+" is not a results file");
+				}
+				r.requestLine = fields.length > 3 ? fields[3] : "";
+				results.add(r);
+			}
+		}finally{
+			in.close();
+		}
+		return results;
+	}
+}
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * One upstream server, with its pool of idle keep-alive connections and its passive health state.
+ */
+class UpstreamBackend {
+	String host;
+	int port;
+	int maxIdle;
+	long idleTimeout;
+	int maxFailures;
+	long cooldown;
+
+	AtomicInteger outstanding = new AtomicInteger();
+	ConcurrentLinkedDeque<UpstreamConnection> idle = new ConcurrentLinkedDeque<UpstreamConnection>();
+	AtomicInteger idleCount = new AtomicInteger();
+	AtomicInteger failures = new AtomicInteger();
+	volatile long downUntil = 0;
+
+	public UpstreamBackend(String host, int port, int maxIdle, long idleTimeout, int maxFailures, long cooldown){
+		this.host = host;
+		this.port = port;
+		this.maxIdle = maxIdle;
+		this.idleTimeout = idleTimeout;
+		this.maxFailures = maxFailures;
+		this.cooldown = cooldown;
+	}
+
+	public boolean isAvailable(long now){
+		return downUntil <= now;
+	}
+
+	/*
+	 * Takes the most recently used idle connection (the one least likely to have been closed by the backend), discarding any that sat idle too long.
+	 */
+	public UpstreamConnection acquire(int connectTimeout, int readTimeout) throws IOException{
+		long now = System.currentTimeMillis();
+		UpstreamConnection conn;
+		while((conn = idle.pollFirst()) != null){
+			idleCount.decrementAndGet();
+			if(now - conn.lastUsed < idleTimeout && !conn.socket.isClosed()){
+				conn.reused = true;
+				conn.socket.setSoTimeout(readTimeout);
+				return conn;
+			}
+			conn.close();
+		}
+		return connect(connectTimeout, readTimeout);
+	}
+
+	public UpstreamConnection connect(int connectTimeout, int readTimeout) throws IOException{
+		Socket socket = new Socket();
+		try{
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			socket.setSoTimeout(readTimeout);
+			return new UpstreamConnection(socket);
+		}catch(IOException e){
+			socket.close();
+			throw e;
+		}
+	}
+
+	//Puts the connection back in the pool if the last exchange left it reusable and the pool has room
+	public void release(UpstreamConnection conn, boolean reusable){
+		if(!reusable || idleCount.incrementAndGet() > maxIdle){
+			if(reusable){
+				idleCount.decrementAndGet();
+			}
+			conn.close();
+			return;
+		}
+		conn.lastUsed = System.currentTimeMillis();
+		idle.offerFirst(conn);
+	}
+
+	public void markSuccess(){
+		failures.set(0);
+		downUntil = 0;
+	}
+
+	public void markFailure(){
+		if(failures.incrementAndGet() >= maxFailures){
+			downUntil = System.currentTimeMillis() + cooldown;
+			failures.set(0);
+			System.err.println("Proxy backend "+this+" marked down for "+cooldown+" ms");
+			//Anything in the pool is probably as dead as the connection that just failed
+			UpstreamConnection conn;
+			while((conn = idle.pollFirst()) != null){
+				idleCount.decrementAndGet();
+				conn.close();
+			}
+		}
+	}
+
+	@Override
+	public String toString(){
+		return host+":"+port;
+	}
+}
@@ -0,0 +1,31 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/*
+ * A socket to a backend together with its buffered streams, so that bytes read ahead of one response stay with the connection for the next one.
+ */
+class UpstreamConnection {
+	Socket socket;
+	RequestReader in;
+	OutputStream out;
+	long lastUsed;
+	boolean reused = false;
+
+	public UpstreamConnection(Socket socket) throws IOException{
+		this.socket = socket;
+		this.in = new RequestReader(socket.getInputStream());
+		//The backend's status and header lines are held to the same length as the client's
+		this.in.maxLineLength = CommunicationThread.maxLineLength;
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+	}
+
+	public void close(){
+		try{
+			socket.close();
+		}catch(IOException e){
+			System.err.println("IOException in closing the upstream socket");
+		}
+	}
+}